@@ -0,0 +1,57 @@
+package main.java.pt.tecnico.a01.benchmark;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.security.Key;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import main.java.pt.tecnico.a01.cryptography.CryptoLibrary;
+
+/**
+ * The keys shared by every benchmark, read from the repository's keys directory (set with the
+ * {@code meditrack.bench.keys} system property, ../keys by default, i.e. benchmarks run from the MediTrack
+ * directory).
+ *
+ * CryptoLibrary logs every record it touches; the forked benchmark JVM discards that output so it does not
+ * dominate the measurements.
+ */
+@State(Scope.Benchmark)
+public class BenchmarkKeys {
+
+    public static final String KEYS_PROPERTY = "meditrack.bench.keys";
+
+    private static final String DEFAULT_KEYS = "../keys";
+
+    public Key serverPrivate;
+    public Key serverPublic;
+    public Key userPublic;
+    public Key userPrivate;
+    public Key sosPublic;
+    public Key doctorPublic;
+    public Key doctorPrivate;
+
+    @Setup(Level.Trial)
+    public void readKeys() throws Exception {
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        }));
+        String keys = System.getProperty(KEYS_PROPERTY, DEFAULT_KEYS) + "/";
+        serverPrivate = CryptoLibrary.readPrivateKey(keys + "server.privkey");
+        serverPublic = CryptoLibrary.readPublicKey(keys + "server.pubkey");
+        userPublic = CryptoLibrary.readPublicKey(keys + "user.pubkey");
+        userPrivate = CryptoLibrary.readPrivateKey(keys + "user.privkey");
+        sosPublic = CryptoLibrary.readPublicKey(keys + "sospub.key");
+        doctorPublic = CryptoLibrary.readPublicKey(keys + "drSmithpub.key");
+        doctorPrivate = CryptoLibrary.readPrivateKey(keys + "drSmithpriv.key");
+    }
+}
@@ -0,0 +1,51 @@
+package main.java.pt.tecnico.a01.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.gson.JsonObject;
+
+import main.java.pt.tecnico.a01.cryptography.CryptoLibrary;
+
+/**
+ * Signing a consultation record with a physician's private key and verifying the signature.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ConsultationSignatureBenchmark {
+
+    private JsonObject consultationRecord;
+    private JsonObject signedConsultationRecord;
+
+    @Setup(Level.Trial)
+    public void setUp(BenchmarkKeys keys) throws Exception {
+        consultationRecord = RecordGenerator.generateConsultationRecord(new Random(42));
+        signedConsultationRecord = CryptoLibrary.signRecord(consultationRecord, new JsonObject(), keys.doctorPrivate);
+    }
+
+    @Benchmark
+    public JsonObject signRecord(BenchmarkKeys keys) throws Exception {
+        return CryptoLibrary.signRecord(consultationRecord, new JsonObject(), keys.doctorPrivate);
+    }
+
+    @Benchmark
+    public boolean verifyConsultationRecord(BenchmarkKeys keys) throws Exception {
+        return CryptoLibrary.verifyConsultationRecord(signedConsultationRecord, keys.doctorPublic);
+    }
+}
@@ -0,0 +1,76 @@
+package main.java.pt.tecnico.a01.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.gson.JsonObject;
+
+import main.java.pt.tecnico.a01.cryptography.CryptoLibrary;
+
+/**
+ * Record-size dependent operations of CryptoLibrary: protect, unprotect (by the patient and by a doctor with
+ * shared keys) and check, for records with 1 to 10,000 consultation records.
+ *
+ * Both throughput and sampled latency (with percentiles) are reported; run with {@code -prof gc} for the
+ * allocation rate. Unwrapped field keys are cached by default, add
+ * {@code -jvmArgsAppend -Dmeditrack.keycache.maxEntries=0} to measure the uncached path.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CryptoLibraryBenchmark {
+
+    private static final long SEED = 42;
+
+    @Param({"1", "10", "100", "1000", "10000"})
+    public int consultationRecords;
+
+    private JsonObject record;
+    private JsonObject protectedRecord;
+    private JsonObject doctorKeys;
+
+    @Setup(Level.Trial)
+    public void setUp(BenchmarkKeys keys) throws Exception {
+        record = RecordGenerator.generate(consultationRecords, SEED);
+        protectedRecord = CryptoLibrary.protect(record, keys.serverPrivate, keys.userPublic, keys.sosPublic);
+        JsonObject fieldKeys = CryptoLibrary.unprotectKeys(
+            protectedRecord.get("metadata").getAsJsonObject().get("keys").getAsJsonObject(), keys.userPrivate);
+        doctorKeys = CryptoLibrary.protectKeys(fieldKeys, keys.doctorPublic, CryptoLibrary.FIELDS);
+    }
+
+    @Benchmark
+    public JsonObject protect(BenchmarkKeys keys) throws Exception {
+        return CryptoLibrary.protect(record, keys.serverPrivate, keys.userPublic, keys.sosPublic);
+    }
+
+    @Benchmark
+    public JsonObject unprotect(BenchmarkKeys keys) throws Exception {
+        return CryptoLibrary.unprotect(protectedRecord, keys.userPrivate);
+    }
+
+    @Benchmark
+    public JsonObject unprotectWithCustomKeys(BenchmarkKeys keys) throws Exception {
+        return CryptoLibrary.unprotectWithCustomKeys(protectedRecord, doctorKeys, keys.doctorPrivate);
+    }
+
+    @Benchmark
+    public boolean check(BenchmarkKeys keys) throws Exception {
+        // the freshness token goes stale during a long run; the verification work is the same either way
+        return CryptoLibrary.check(protectedRecord, keys.serverPublic);
+    }
+}
@@ -0,0 +1,99 @@
+package main.java.pt.tecnico.a01.benchmark;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.Key;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import main.java.pt.tecnico.a01.cryptography.CryptoLibrary;
+import main.java.pt.tecnico.a01.cryptography.FieldCipher;
+
+/**
+ * Decrypting the consultationRecords field of a protected record, received as Base64 text, into parsed JSON. The
+ * field is laid out as protect writes it, one segment (with its own IV) per consultation record, and decrypted
+ * through Strings and byte arrays and through a ByteBuffer decoded and decrypted in place, as decryptFields does.
+ * Run with {@code -prof gc}: the difference in allocated bytes per operation is the copies the buffer path avoids.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FieldDecryptBenchmark {
+
+    private static final String FIELD = "consultationRecords";
+
+    @Param({"10", "1000"})
+    public int consultationRecords;
+
+    @Param({"false", "true"})
+    public boolean direct;
+
+    private FieldCipher fieldCipher;
+    private Key key;
+    // the Base64 ciphertext of every segment as received from the network, and the segment IVs
+    private byte[][] received;
+    private byte[][] ivs;
+    private ByteBuffer buffer;
+
+    @Setup(Level.Trial)
+    public void setUp(BenchmarkKeys keys) throws Exception {
+        JsonArray plaintext = RecordGenerator.generate(consultationRecords, 42)
+            .getAsJsonObject("patient").getAsJsonArray(FIELD);
+        fieldCipher = FieldCipher.create();
+        key = CryptoLibrary.generateKeyAES();
+        received = new byte[plaintext.size()][];
+        ivs = new byte[plaintext.size()][];
+        int maxLength = 0;
+        for (int i = 0; i < plaintext.size(); i++) {
+            JsonObject segment = CryptoLibrary.encryptConsultationRecord(plaintext.get(i), key, fieldCipher);
+            received[i] = segment.get("segment").getAsString().getBytes(StandardCharsets.US_ASCII);
+            ivs[i] = Base64.getDecoder().decode(segment.get("iv").getAsString());
+            maxLength = Math.max(maxLength, received[i].length);
+        }
+        buffer = direct ? ByteBuffer.allocateDirect(maxLength) : ByteBuffer.allocate(maxLength);
+    }
+
+    @Benchmark
+    public JsonArray viaStrings() throws Exception {
+        JsonArray decryptedRecords = new JsonArray();
+        for (int i = 0; i < received.length; i++) {
+            String base64 = new String(received[i], StandardCharsets.US_ASCII);
+            byte[] decrypted = fieldCipher.decrypt(FIELD, Base64.getDecoder().decode(base64.getBytes()), key, ivs[i]);
+            decryptedRecords.add(JsonParser.parseString(new String(decrypted)));
+        }
+        return decryptedRecords;
+    }
+
+    @Benchmark
+    public JsonArray viaByteBuffer() throws Exception {
+        JsonArray decryptedRecords = new JsonArray();
+        for (int i = 0; i < received.length; i++) {
+            // stands for reading the segment into the buffer
+            buffer.clear();
+            buffer.put(received[i]).flip();
+            decryptedRecords.add(CryptoLibrary.parseJson(CryptoLibrary.decryptField(fieldCipher, FIELD, buffer, key,
+                ivs[i])));
+        }
+        return decryptedRecords;
+    }
+}
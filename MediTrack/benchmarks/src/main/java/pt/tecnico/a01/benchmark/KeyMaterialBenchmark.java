@@ -0,0 +1,79 @@
+package main.java.pt.tecnico.a01.benchmark;
+
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.spec.IvParameterSpec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.gson.JsonObject;
+
+import main.java.pt.tecnico.a01.cryptography.CryptoLibrary;
+import main.java.pt.tecnico.a01.cryptography.KeyMaterialService;
+
+/**
+ * IV and key generation, and protect, under concurrent load (4 threads). The legacy benchmarks reproduce what
+ * CryptoLibrary used to do per field: a new strong SecureRandom per IV and a new KeyGenerator per key.
+ *
+ * Add {@code -jvmArgsAppend -Dmeditrack.random.poolSize=1024} to measure the pre-generated ring buffer.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class KeyMaterialBenchmark {
+
+    private static final String ALGORITHM_AES = "AES";
+
+    private JsonObject record;
+
+    @Setup(Level.Trial)
+    public void setUp(BenchmarkKeys keys) {
+        record = RecordGenerator.generate(10, 42);
+    }
+
+    @Benchmark
+    public IvParameterSpec iv() throws Exception {
+        return KeyMaterialService.nextIv(ALGORITHM_AES);
+    }
+
+    @Benchmark
+    public IvParameterSpec legacyIv() throws Exception {
+        byte[] iv = new byte[16];
+        SecureRandom.getInstanceStrong().nextBytes(iv);
+        return new IvParameterSpec(iv);
+    }
+
+    @Benchmark
+    public Object key() {
+        return KeyMaterialService.nextAesKey();
+    }
+
+    @Benchmark
+    public Object legacyKey() throws Exception {
+        KeyGenerator keyGen = KeyGenerator.getInstance(ALGORITHM_AES);
+        keyGen.init(128);
+        return keyGen.generateKey();
+    }
+
+    @Benchmark
+    public JsonObject protect(BenchmarkKeys keys) throws Exception {
+        return CryptoLibrary.protect(record, keys.serverPrivate, keys.userPublic, keys.sosPublic);
+    }
+}
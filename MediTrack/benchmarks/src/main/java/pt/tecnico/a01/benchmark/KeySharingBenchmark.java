@@ -0,0 +1,54 @@
+package main.java.pt.tecnico.a01.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.gson.JsonObject;
+
+import main.java.pt.tecnico.a01.cryptography.CryptoLibrary;
+
+/**
+ * Wrapping the field keys of a record for a doctor (what a patient does when sharing a record) and unwrapping
+ * them again. Neither depends on the size of the record.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class KeySharingBenchmark {
+
+    private JsonObject fieldKeys;
+    private JsonObject doctorKeys;
+
+    @Setup(Level.Trial)
+    public void setUp(BenchmarkKeys keys) throws Exception {
+        JsonObject protectedRecord = CryptoLibrary.protect(RecordGenerator.generate(1, 42),
+            keys.serverPrivate, keys.userPublic, keys.sosPublic);
+        fieldKeys = CryptoLibrary.unprotectKeys(
+            protectedRecord.get("metadata").getAsJsonObject().get("keys").getAsJsonObject(), keys.userPrivate);
+        doctorKeys = CryptoLibrary.protectKeys(fieldKeys, keys.doctorPublic, CryptoLibrary.FIELDS);
+    }
+
+    @Benchmark
+    public JsonObject protectKeys(BenchmarkKeys keys) throws Exception {
+        return CryptoLibrary.protectKeys(fieldKeys, keys.doctorPublic, CryptoLibrary.FIELDS);
+    }
+
+    @Benchmark
+    public JsonObject unprotectKeys(BenchmarkKeys keys) throws Exception {
+        return CryptoLibrary.unprotectKeys(doctorKeys, keys.doctorPrivate);
+    }
+}
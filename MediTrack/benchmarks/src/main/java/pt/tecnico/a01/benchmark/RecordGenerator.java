@@ -0,0 +1,124 @@
+package main.java.pt.tecnico.a01.benchmark;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+/**
+ * Generates MediTrack records the same way as scripts/gen_records/gen_records.py, but with a chosen number of
+ * consultation records and a fixed seed, so every benchmark run encrypts the same data.
+ *
+ * Names, blood types and allergies are read from the script's data directory (set with the
+ * {@code meditrack.bench.data} system property, ../scripts/gen_records/data by default); a small built-in list is
+ * used when it is not available. Consultation records use the field names of CryptoLibrary.
+ */
+public final class RecordGenerator {
+
+    public static final String DATA_PROPERTY = "meditrack.bench.data";
+
+    private static final String DEFAULT_DATA = "../scripts/gen_records/data";
+
+    private static final String[] SPECIALTIES = {"Cardiology", "Neurology", "Pediatrics", "Ophthalmology",
+        "Endocrinology", "Gynecology", "Urology", "Psychiatry", "Oncology", "Dentistry", "Pediatrics"};
+    private static final String[] TREATMENTS = {"Routine Check-up", "Minor Surgery", "Prescribed Medication",
+        "Therapy Sessions", "Emergency Procedure", "Vaccination", "Health Counseling", "Diagnostic Tests",
+        "Physical Therapy", "Dental Cleaning"};
+    private static final String[] PRACTICES = {"Health Center", "Clinic"};
+    private static final String[] SEXES = {"Male", "Female", "Nonconforming"};
+
+    private static final List<String> FORENAMES = readData("forenames-pt.txt", "Sara", "Nuno", "Matilde", "Pedro");
+    private static final List<String> SURNAMES = readData("surnames-pt.txt", "Fialho", "Carneiro", "Tavares", "Prata");
+    private static final List<String> BLOOD_TYPES = readData("blood-types.txt", "A+", "A-", "B+", "B-", "O+", "O-");
+    private static final List<String> ALLERGIES = readData("allergies.txt", "Peanuts", "Milk", "Pollen", "Latex",
+        "Penicillin", "Aspirin");
+
+    private static final LocalDate START_DATE = LocalDate.of(1940, 1, 1);
+    private static final LocalDate END_DATE = LocalDate.of(2020, 12, 31);
+
+    private RecordGenerator() {
+    }
+
+    /**
+     * @param  consultationRecords The number of consultation records of the patient.
+     * @param  seed                The seed of the generator.
+     * @return                     A record of the form {"patient": {...}}, as read by CryptoLibrary.protect.
+     */
+    public static JsonObject generate(int consultationRecords, long seed) {
+        Random random = new Random(seed);
+
+        JsonObject patient = new JsonObject();
+        patient.addProperty("name", pick(random, FORENAMES) + " " + pick(random, SURNAMES));
+        patient.addProperty("sex", SEXES[random.nextInt(SEXES.length)]);
+        patient.addProperty("dateOfBirth", randomDate(random));
+        patient.addProperty("bloodType", pick(random, BLOOD_TYPES));
+
+        List<String> allergies = new ArrayList<String>(ALLERGIES);
+        Collections.shuffle(allergies, random);
+        JsonArray knownAllergies = new JsonArray();
+        for (String allergy : allergies.subList(0, random.nextInt(Math.min(5, allergies.size()) + 1))) {
+            knownAllergies.add(allergy);
+        }
+        patient.add("knownAllergies", knownAllergies);
+
+        JsonArray records = new JsonArray();
+        for (int i = 0; i < consultationRecords; i++) {
+            records.add(generateConsultationRecord(random));
+        }
+        patient.add("consultationRecords", records);
+
+        JsonObject root = new JsonObject();
+        root.add("patient", patient);
+        return root;
+    }
+
+    /**
+     * @return A single consultation record, as read by CryptoLibrary.signRecord.
+     */
+    public static JsonObject generateConsultationRecord(Random random) {
+        String specialty = SPECIALTIES[random.nextInt(SPECIALTIES.length)];
+        JsonObject record = new JsonObject();
+        record.addProperty("date", randomDate(random));
+        record.addProperty("medicalSpeciality", specialty);
+        record.addProperty("doctorName", "Dr. " + (char) ('A' + random.nextInt(26)) + (char) ('A' + random.nextInt(26)) + ".");
+        record.addProperty("practice", specialty + " " + PRACTICES[random.nextInt(PRACTICES.length)]);
+        record.addProperty("treatmentSummary", TREATMENTS[random.nextInt(TREATMENTS.length)]);
+        return record;
+    }
+
+    private static String randomDate(Random random) {
+        long days = END_DATE.toEpochDay() - START_DATE.toEpochDay();
+        return START_DATE.plusDays((long) (random.nextDouble() * days)).toString();
+    }
+
+    private static String pick(Random random, List<String> values) {
+        return values.get(random.nextInt(values.size()));
+    }
+
+    private static List<String> readData(String file, String... fallback) {
+        Path path = Paths.get(System.getProperty(DATA_PROPERTY, DEFAULT_DATA), file);
+        try {
+            List<String> lines = new ArrayList<String>();
+            for (String line : Files.readAllLines(path, StandardCharsets.UTF_8)) {
+                if (!line.trim().isEmpty()) {
+                    lines.add(line);
+                }
+            }
+            if (!lines.isEmpty()) {
+                return lines;
+            }
+        } catch (Exception e) {
+            // the script's data is optional, the built-in values are enough for benchmarking
+        }
+        return Arrays.asList(fallback);
+    }
+}
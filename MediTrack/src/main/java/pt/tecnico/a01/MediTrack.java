@@ -19,6 +19,9 @@ public class MediTrack
     private static String MESSAGE_USAGE = " protect (input-file) (output-file) ...\n" +
                                             "unprotect (input-file) (output-file) ...\n" +
                                             "check (input-file) \n" +
+                                            "protect-dir (input-dir|glob) (output-dir) ...\n" +
+                                            "unprotect-dir (input-dir|glob) (output-dir) ...\n" +
+                                            "check-dir (input-dir|glob) \n" +
                                             "sign (input-file) (output-file) (physician-private-key)\n" +
                                             "verify-sign (input-file) (physician-public-key)\n"+
                                             "note that: `...` denotes 0 or more arguments are expected.\n" +
@@ -35,12 +38,16 @@ public class MediTrack
     private static String MESSAGE_CHECK = "[MediTrack - check]: Verifying the integrity and status of the document.";
     private static String MESSAGE_SIGN = "[MediTrack - sign]: Signing a consultation record ";
     private static String MESSAGE_VERIFY_SIGN = "[MediTrack - verify-sign]: Verifying a consultationRecord ";
+    private static String MESSAGE_PROTECT_DIR = "[MediTrack - protect-dir]: Protecting files ";
+    private static String MESSAGE_UNPROTECT_DIR = "[MediTrack - unprotect-dir]: Unprotecting files ";
+    private static String MESSAGE_CHECK_DIR = "[MediTrack - check-dir]: Verifying the integrity and status of files ";
     private static String MESSAGE_TO = " to ";
     private static String ERROR_PROTECT = "Error protecting file: ";
     private static String ERROR_UNPROTECT = "Error unprotecting file ";
     private static String ERROR_CHECK = "Error checking file: ";
     private static String ERROR_VERIFY_SIGN = "Error veryfying the signature a consultation record ";
     private static String ERROR_SIGN = "Error veryfying the signature a consultation record ";
+    private static String ERROR_BATCH = "Error processing directory: ";
  
     public static void main(String[] args )
     {
@@ -127,6 +134,67 @@ public class MediTrack
                     printUsage();
                 }
                 break;      
+            case "protect-dir":
+                if(args.length >= 3) {
+                    System.out.println(MESSAGE_PROTECT_DIR + inputFile + MESSAGE_TO + outputFile);
+                    String[] fields = args.length >= 4 ? Arrays.copyOfRange(args, 3, args.length) : new String[0];
+                    try {
+                        // keys are parsed once for the whole batch
+                        Key serverPrivate = CryptoLibrary.readPrivateKey(serverPrivateKeyPath);
+                        Key userPublic = CryptoLibrary.readPublicKey(userPublicKeyPath);
+                        Key sosPublic = CryptoLibrary.readPublicKey(sosPublicKeyPath);
+                        long failures = new MediTrackBatch().run(inputFile, outputFile, (input, output) -> {
+                            CryptoLibrary.protect(input.toString(), output.toString(), serverPrivate, userPublic,
+                                sosPublic, fields);
+                            return true;
+                        });
+                        System.exit(failures == 0 ? 0 : 1);
+                    } catch (Exception e) {
+                        System.out.println(ERROR_BATCH + e);
+                        System.exit(1);
+                    }
+                } else {
+                    printUsage();
+                }
+                break;
+
+            case "unprotect-dir":
+                if(args.length >= 3) {
+                    System.out.println(MESSAGE_UNPROTECT_DIR + inputFile + MESSAGE_TO + outputFile);
+                    String[] fields = args.length >= 4 ? Arrays.copyOfRange(args, 3, args.length) : new String[0];
+                    try {
+                        Key userPrivate = CryptoLibrary.readPrivateKey(userPrivateKeyPath);
+                        long failures = new MediTrackBatch().run(inputFile, outputFile, (input, output) -> {
+                            CryptoLibrary.unprotect(input.toString(), output.toString(), userPrivate, fields);
+                            return true;
+                        });
+                        System.exit(failures == 0 ? 0 : 1);
+                    } catch (Exception e) {
+                        System.out.println(ERROR_BATCH + e);
+                        System.exit(1);
+                    }
+                } else {
+                    printUsage();
+                }
+                break;
+
+            case "check-dir":
+                if(args.length == 2) {
+                    System.out.println(MESSAGE_CHECK_DIR + inputFile);
+                    try {
+                        Key serverPublic = CryptoLibrary.readPublicKey(serverPublicKeyPath);
+                        long failures = new MediTrackBatch().run(inputFile, null, (input, output) ->
+                            CryptoLibrary.check(CryptoLibrary.readFileToJsonObject(input.toString()), serverPublic));
+                        System.exit(failures == 0 ? 0 : 1);
+                    } catch (Exception e) {
+                        System.out.println(ERROR_BATCH + e);
+                        System.exit(1);
+                    }
+                } else {
+                    printUsage();
+                }
+                break;
+
             case "help":
                 printUsage();
                 break;
@@ -0,0 +1,150 @@
+package main.java.pt.tecnico.a01;
+
+import java.io.PrintStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import main.java.pt.tecnico.a01.cryptography.CryptoLibrary;
+
+/**
+ * Runs a MediTrack operation over every record file of a directory (or glob) within a single JVM.
+ *
+ * Files are processed on a fixed worker pool; a semaphore bounds how many files are in flight at once, so at most
+ * that many records are held in memory (files above the streaming threshold are streamed anyway). By default the
+ * per-record logging of CryptoLibrary is silenced for the operations of the batch (see CryptoLibrary.setQuiet),
+ * so only failures and the final throughput summary are printed; the rest of the process keeps its output.
+ */
+public class MediTrackBatch {
+
+    public static final String WORKERS_PROPERTY = "meditrack.batch.workers";
+    public static final String IN_FLIGHT_PROPERTY = "meditrack.batch.inFlight";
+
+    private static final String DEFAULT_GLOB = "*.json";
+    private static final String GLOB_CHARACTERS = "*?[{";
+
+    private static final String MESSAGE_BATCH = "[MediTrack - batch]: ";
+    private static final String MESSAGE_START = "Processing %d file(s) from %s with %d worker(s)";
+    private static final String MESSAGE_SUMMARY = "%d record(s), %d failure(s) in %.2f s - %.1f records/s, %.2f MB/s";
+    private static final String ERROR_FILE = "Error processing file %s: %s";
+    private static final String ERROR_REJECTED = "File %s rejected: check failed";
+
+    /**
+     * A per-file operation. Returns false if the file was processed but rejected (e.g. a failed check).
+     */
+    @FunctionalInterface
+    public interface FileOperation {
+        boolean apply(Path inputFile, Path outputFile) throws Exception;
+    }
+
+    private final int workers;
+    private final int maxInFlight;
+    private final boolean quiet;
+
+    public MediTrackBatch() {
+        this(true);
+    }
+
+    /**
+     * @param quiet true to silence the per-record logging of the operations.
+     */
+    public MediTrackBatch(boolean quiet) {
+        this.workers = Math.max(1, Integer.getInteger(WORKERS_PROPERTY, Runtime.getRuntime().availableProcessors()));
+        this.maxInFlight = Math.max(1, Integer.getInteger(IN_FLIGHT_PROPERTY, 2 * workers));
+        this.quiet = quiet;
+    }
+
+    /**
+     * Applies the operation to every file matching the input and prints a throughput summary.
+     *
+     * @param  input       A directory (all *.json files are processed) or a glob such as {@code records/*.json}.
+     * @param  outputDir   The directory where output files are written with the same file name, or null for
+     *                     operations that produce no output.
+     * @param  operation   The operation to apply to every file.
+     * @return             The number of files that failed or were rejected.
+     * @throws Exception   If the input cannot be listed or the output directory cannot be created.
+     */
+    public long run(String input, String outputDir, FileOperation operation) throws Exception {
+        Path inputDir = Paths.get(input);
+        String glob = DEFAULT_GLOB;
+        if (!Files.isDirectory(inputDir) && containsGlob(inputDir.getFileName().toString())) {
+            glob = inputDir.getFileName().toString();
+            inputDir = inputDir.toAbsolutePath().getParent();
+        }
+        Path output = outputDir == null ? null : Files.createDirectories(Paths.get(outputDir));
+
+        PrintStream console = System.out;
+        long count = 0;
+        AtomicLong failures = new AtomicLong();
+        AtomicLong bytes = new AtomicLong();
+        Semaphore inFlight = new Semaphore(maxInFlight);
+        ExecutorService executor = Executors.newFixedThreadPool(workers);
+        long start = System.nanoTime();
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(inputDir, glob)) {
+            console.println(MESSAGE_BATCH + String.format(MESSAGE_START, countFiles(inputDir, glob), inputDir, workers));
+            for (Path file : files) {
+                if (!Files.isRegularFile(file)) {
+                    continue;
+                }
+                count++;
+                inFlight.acquire();
+                Path outputFile = output == null ? null : output.resolve(file.getFileName());
+                executor.execute(() -> {
+                    // CryptoLibrary logs every record it touches; that would dominate a batch of thousands of files
+                    CryptoLibrary.setQuiet(quiet);
+                    try {
+                        bytes.addAndGet(Files.size(file));
+                        if (!operation.apply(file, outputFile)) {
+                            failures.incrementAndGet();
+                            // the operation's own status line may have been silenced
+                            console.println(MESSAGE_BATCH + String.format(ERROR_REJECTED, file));
+                        }
+                    } catch (Exception e) {
+                        failures.incrementAndGet();
+                        console.println(MESSAGE_BATCH + String.format(ERROR_FILE, file, e));
+                    } finally {
+                        CryptoLibrary.setQuiet(false);
+                        inFlight.release();
+                    }
+                });
+            }
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        double seconds = Math.max(System.nanoTime() - start, 1) / 1e9;
+        console.println(MESSAGE_BATCH + String.format(MESSAGE_SUMMARY, count, failures.get(), seconds,
+            count / seconds, bytes.get() / (1024.0 * 1024.0) / seconds));
+        return failures.get();
+    }
+
+    private static long countFiles(Path inputDir, String glob) throws Exception {
+        long count = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(inputDir, glob)) {
+            for (Path file : files) {
+                if (Files.isRegularFile(file)) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    private static boolean containsGlob(String name) {
+        for (char c : GLOB_CHARACTERS.toCharArray()) {
+            if (name.indexOf(c) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -3,43 +3,202 @@ package main.java.pt.tecnico.a01.client;
 import com.google.gson.Gson;
 import com.google.gson.JsonObject;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.security.Key;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import main.java.pt.tecnico.a01.cryptography.CryptoLibrary;
+import main.java.pt.tecnico.a01.cryptography.FieldCipher;
+import main.java.pt.tecnico.a01.cryptography.RecordEnvelope;
 import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
 import okhttp3.FormBody;
+import okhttp3.HttpUrl;
 import okhttp3.MediaType;
 import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
 import okhttp3.Request;
 import okhttp3.RequestBody;
 import okhttp3.Response;
+import okio.BufferedSink;
 
 public class ClientHttp {
 
-    private OkHttpClient client = new OkHttpClient();
+    /**
+     * Records are exchanged with the server as binary envelopes; setting this system property to {@code json}
+     * falls back to JSON, e.g. for servers that predate envelopes.
+     */
+    public static final String FORMAT_PROPERTY = "meditrack.http.format";
+    public static final String FORMAT_JSON = "json";
+
+    /**
+     * Connection reuse and concurrency. Connections are kept alive and reused across the commands of a session;
+     * independent requests of a command (e.g. a record and its keys) are sent at once, up to
+     * {@code meditrack.http.maxRequestsPerHost} (16 by default). Setting {@code meditrack.http.h2c} to true speaks
+     * HTTP/2 without TLS (prior knowledge), multiplexing all requests over one connection, for servers or proxies
+     * that support it.
+     */
+    public static final String MAX_IDLE_CONNECTIONS_PROPERTY = "meditrack.http.maxIdleConnections";
+    public static final String KEEP_ALIVE_PROPERTY = "meditrack.http.keepAliveMillis";
+    public static final String MAX_REQUESTS_PER_HOST_PROPERTY = "meditrack.http.maxRequestsPerHost";
+    public static final String H2C_PROPERTY = "meditrack.http.h2c";
+
+    private static final int DEFAULT_MAX_IDLE_CONNECTIONS = 8;
+    // 5 minutes, so the connections survive between the commands typed in a session
+    private static final long DEFAULT_KEEP_ALIVE = 300000;
+    private static final int DEFAULT_MAX_REQUESTS_PER_HOST = 16;
+
+    private static final MediaType ENVELOPE_TYPE = MediaType.parse(RecordEnvelope.MEDIA_TYPE);
+    private static final MediaType NDJSON_TYPE = MediaType.parse("application/x-ndjson");
+
+    /**
+     * Reads the body of a successful response.
+     */
+    @FunctionalInterface
+    private interface ResponseReader<T> {
+        T read(Response response) throws Exception;
+    }
+
+    private OkHttpClient client = createClient();
 
     private Gson gson = new Gson();
 
     private String serverAddress;
 
+    private HttpUrl baseUrl;
+
     public ClientHttp(String serverAddress) {
         this.serverAddress = serverAddress;
         try {
+            this.baseUrl = HttpUrl.get("http://" + serverAddress + "/");
         } catch (Exception e) {
-            System.out.println("Error reading server private key: " + e.getMessage());
+            System.out.println("Error parsing server address: " + e.getMessage());
             System.exit(1);
         }
     }
+
+    private static OkHttpClient createClient() {
+        // daemon threads, so an idle dispatcher does not keep the client running after the session ends
+        ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "meditrack-http");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Dispatcher dispatcher = new Dispatcher(executor);
+        dispatcher.setMaxRequestsPerHost(Integer.getInteger(MAX_REQUESTS_PER_HOST_PROPERTY, DEFAULT_MAX_REQUESTS_PER_HOST));
+        OkHttpClient.Builder builder = new OkHttpClient.Builder()
+            .dispatcher(dispatcher)
+            .connectionPool(new ConnectionPool(Integer.getInteger(MAX_IDLE_CONNECTIONS_PROPERTY, DEFAULT_MAX_IDLE_CONNECTIONS),
+                Long.getLong(KEEP_ALIVE_PROPERTY, DEFAULT_KEEP_ALIVE), TimeUnit.MILLISECONDS));
+        if (Boolean.getBoolean(H2C_PROPERTY)) {
+            builder.protocols(Collections.singletonList(Protocol.H2_PRIOR_KNOWLEDGE));
+        }
+        return builder.build();
+    }
+
+    /**
+     * @return The URL of the given path on the server, each segment escaped.
+     */
+    private HttpUrl.Builder url(String... segments) {
+        HttpUrl.Builder url = baseUrl.newBuilder();
+        for (String segment : segments) {
+            url.addPathSegment(segment);
+        }
+        return url;
+    }
+
+    /**
+     * Sends a request without waiting for the response.
+     *
+     * @param error  The message a failed response is reported with, followed by the response body.
+     * @param reader Reads the body of a successful response, on the thread that received it.
+     */
+    private <T> CompletableFuture<T> send(Request request, String error, ResponseReader<T> reader) {
+        CompletableFuture<T> future = new CompletableFuture<T>();
+        client.newCall(request).enqueue(new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                future.completeExceptionally(e);
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) {
+                try (Response received = response) {
+                    if (received.code() != 200) {
+                        throw new Exception(error + received.body().string());
+                    }
+                    future.complete(reader.read(received));
+                } catch (Exception e) {
+                    future.completeExceptionally(e);
+                }
+            }
+        });
+        return future;
+    }
+
+    /**
+     * @return The result of the request, or its failure rethrown.
+     */
+    private static <T> T await(CompletableFuture<T> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+    }
     
-    public void addConsultationRecordAsDoctor(JsonObject record, String patientName, Key patientPublic) {
+    public void addConsultationRecordAsDoctor(JsonObject record, String patientName, String doctorName, Key doctorPrivate) {
         // perhaps the server should check the record's integrity and authenticity before adding it to the database
+        JsonObject encryptedRecord;
         try {
-            // JsonObject encryptedRecord = CryptoLibrary.protectConsultationRecord(record, patientPublic);
-            
+            // the consultation record is encrypted on its own under the key the patient shared with us,
+            // so the rest of the history is never downloaded nor re-encrypted
+            CompletableFuture<JsonObject> keys = getKeysAsync(doctorName, patientName);
+            // the segment must use the record's cipher; asking for no fields only downloads the metadata
+            CompletableFuture<JsonObject> metadataOnly = getRecordAsync(patientName, Collections.<String>emptyList(), null);
+            JsonObject doctorsKeys = await(keys);
+            if (doctorsKeys.get("consultationRecords") == null) {
+                System.out.println("Error adding consultation record as Doctor: consultation records were not shared");
+                return;
+            }
+            Key fieldKey = CryptoLibrary.unwrapFieldKey(doctorsKeys, "consultationRecords", doctorPrivate);
+            JsonObject metadata = await(metadataOnly).get("metadata").getAsJsonObject();
+            encryptedRecord = CryptoLibrary.encryptConsultationRecord(record, fieldKey, FieldCipher.of(metadata));
         }
         catch (Exception e) {
             System.out.println("Error adding consultation record as Doctor: " + e.getMessage());
+            return;
+        }
+        RequestBody formBody = FormBody.create(gson.toJson(encryptedRecord), MediaType.parse("application/json"));
+        Request request = new Request.Builder()
+            .url(url(patientName, "consultations").build())
+            .post(formBody)
+            .build();
+        Call call = client.newCall(request);
+        try (Response response = call.execute()) {
+            if (response.code() != 200) {
+                System.out.println("Error adding consultation record: " + response.body().string());
+            }
+            else {
+                System.out.println("Consultation record added successfully");
+            }
+        } catch (Exception e) {
+            System.out.println("Error adding consultation record as Doctor: " + e.getMessage());
         }
     }
 
@@ -52,6 +211,77 @@ public class ClientHttp {
         }
     }
 
+    /**
+     * Imports protected records in bulk, in a single request streamed to the server. Prints the records that
+     * failed and the totals.
+     *
+     * @param path an NDJSON file with one protected record per line (e.g. an export of {@code GET /records}), or a
+     *             directory whose *.json files are protected records
+     */
+    public void importRecords(String path) {
+        File input = new File(path);
+        RequestBody body;
+        if (input.isDirectory()) {
+            File[] files = input.listFiles((dir, name) -> name.endsWith(".json"));
+            if (files == null) {
+                System.out.println("Error importing records: cannot list " + path);
+                return;
+            }
+            Arrays.sort(files);
+            body = new RequestBody() {
+                @Override
+                public MediaType contentType() {
+                    return NDJSON_TYPE;
+                }
+
+                @Override
+                public void writeTo(BufferedSink sink) throws IOException {
+                    // each record file is sent as one line, read one at a time
+                    for (File file : files) {
+                        try {
+                            sink.writeUtf8(gson.toJson(CryptoLibrary.readFileToJsonObject(file.getPath()))).writeByte('\n');
+                        } catch (IOException e) {
+                            throw e;
+                        } catch (Exception e) {
+                            throw new IOException("Cannot read " + file + ": " + e.getMessage(), e);
+                        }
+                    }
+                }
+            };
+        } else {
+            body = RequestBody.create(input, NDJSON_TYPE);
+        }
+        Request request = new Request.Builder()
+            .url(url("records", "bulk").build())
+            .post(body)
+            .build();
+        // a batch can take the server longer than the default timeouts to sign and store
+        OkHttpClient bulkClient = client.newBuilder()
+            .readTimeout(0, TimeUnit.MILLISECONDS)
+            .writeTimeout(0, TimeUnit.MILLISECONDS)
+            .build();
+        try (Response response = bulkClient.newCall(request).execute()) {
+            if (response.code() != 200) {
+                System.out.println("Error importing records: " + response.body().string());
+                return;
+            }
+            BufferedReader results = new BufferedReader(response.body().charStream());
+            String line;
+            while ((line = results.readLine()) != null) {
+                JsonObject result = gson.fromJson(line, JsonObject.class);
+                if (result.get("status") == null) {
+                    System.out.println("Records imported: " + result.get("inserted") + " inserted, "
+                        + result.get("replaced") + " replaced, " + result.get("failed") + " failed");
+                } else if ("failed".equals(result.get("status").getAsString())) {
+                    System.out.println("Error importing record at line " + result.get("line") + ": "
+                        + result.get("error").getAsString());
+                }
+            }
+        } catch (Exception e) {
+            System.out.println("Error importing records: " + e.getMessage());
+        }
+    }
+
     public void saveRecordAsPatient(JsonObject record, Key patientPublic, Key sosPublic) {
         try {
             // REMOVE SERVER PRIVATE KEY
@@ -67,15 +297,22 @@ public class ClientHttp {
     }
 
     public void saveRecord(JsonObject record) {
-        RequestBody formBody = FormBody.create(gson.toJson(record), MediaType.parse("application/json"));
+        RequestBody formBody;
+        try {
+            formBody = useEnvelopes()
+                ? RequestBody.create(RecordEnvelope.encode(record), ENVELOPE_TYPE)
+                : FormBody.create(gson.toJson(record), MediaType.parse("application/json"));
+        } catch (Exception e) {
+            System.out.println("Error saving record: " + e.getMessage());
+            return;
+        }
         Request request = new Request.Builder()
-            .url("http://" + this.serverAddress + "/" + record.get("name").getAsString())
+            .url(url(record.get("name").getAsString()).build())
             .put(formBody)
             .build();
         System.out.println("Saving record... url: " + request.url().toString());
         Call call = client.newCall(request);
-        try {
-            Response response = call.execute();
+        try (Response response = call.execute()) {
             if (response.code() != 200) {
                 System.out.println("Error saving record: " + response.body().string());
             }
@@ -106,8 +343,12 @@ public class ClientHttp {
 
     public JsonObject getRecordAsDoctor(String patientName, String doctorName, Key doctorPrivate, Key serverPublic) {
         try {
-            JsonObject encryptedRecord = getRecord(patientName);
-            JsonObject doctorsKeys = getKeys(doctorName, patientName);
+            // only the fields shared with the doctor are downloaded, the Merkle tree covers the others; the server
+            // knows which they are, so the record and the keys are requested at once
+            CompletableFuture<JsonObject> keys = getKeysAsync(doctorName, patientName);
+            CompletableFuture<JsonObject> record = getRecordAsync(patientName, null, doctorName);
+            JsonObject doctorsKeys = await(keys);
+            JsonObject encryptedRecord = await(record);
             System.out.println("Doctors keys: " + gson.toJson(doctorsKeys));
             System.out.println("Checking record");
             boolean healthy = CryptoLibrary.check(encryptedRecord, serverPublic);
@@ -131,8 +372,10 @@ public class ClientHttp {
         // the server would then unprotect keys on behalf of the doctor and send them, encrypted with the doctor's public key 
         // To put in report: the records should ideally be re-encrypted with new keys after an sos event. We won't do this.
         try {
-            JsonObject encryptedRecord = getRecord(patientName);
-            JsonObject sosKeys = getSosKeys(patientName, doctorName, keyfile);
+            CompletableFuture<JsonObject> record = getRecordAsync(patientName, null, null);
+            CompletableFuture<JsonObject> keys = getSosKeysAsync(patientName, doctorName, keyfile);
+            JsonObject encryptedRecord = await(record);
+            JsonObject sosKeys = await(keys);
             JsonObject decryptedRecord = CryptoLibrary.unprotectWithCustomKeys(encryptedRecord, sosKeys, doctorPrivate);
             return decryptedRecord;
         }
@@ -143,39 +386,70 @@ public class ClientHttp {
     }
 
     public JsonObject getRecord(String name) throws Exception {
-        Request request = new Request.Builder()
-            .url("http://" + this.serverAddress + "/" + name)
-            .build();
-        Call call = client.newCall(request);
-        Response response = call.execute();
-        if (response.code() != 200) {
-            throw new Exception("Error getting record: " + response.body().string());
+        return getRecord(name, null);
+    }
+
+    /**
+     * @param name
+     * @param fields the protected fields to download, or null for the whole record
+     */
+    public JsonObject getRecord(String name, Collection<String> fields) throws Exception {
+        return await(getRecordAsync(name, fields, null));
+    }
+
+    /**
+     * @param name
+     * @param fields the protected fields to download, or null for the whole record
+     * @param sharedWith a doctor, to download only the fields the patient shared with them, or null
+     */
+    public CompletableFuture<JsonObject> getRecordAsync(String name, Collection<String> fields, String sharedWith) {
+        HttpUrl.Builder url = url(name);
+        if (fields != null) {
+            url.addQueryParameter("fields", String.join(",", fields));
         }
-        return this.gson.fromJson(response.body().string(), JsonObject.class);
+        if (sharedWith != null) {
+            url.addQueryParameter("sharedWith", sharedWith);
+        }
+        Request.Builder request = new Request.Builder()
+            .url(url.build());
+        if (useEnvelopes()) {
+            request.header("Accept", RecordEnvelope.MEDIA_TYPE);
+        }
+        return send(request.build(), "Error getting record: ", response -> {
+            MediaType contentType = response.body().contentType();
+            if (contentType != null && contentType.toString().startsWith(RecordEnvelope.MEDIA_TYPE)) {
+                return RecordEnvelope.decode(response.body().bytes());
+            }
+            return this.gson.fromJson(response.body().string(), JsonObject.class);
+        });
+    }
+
+    private static boolean useEnvelopes() {
+        return !FORMAT_JSON.equals(System.getProperty(FORMAT_PROPERTY));
     }
 
     public JsonObject getKeys(String doctorName, String patientName) throws Exception {
+        return await(getKeysAsync(doctorName, patientName));
+    }
+
+    public CompletableFuture<JsonObject> getKeysAsync(String doctorName, String patientName) {
         Request request = new Request.Builder()
-            .url("http://" + this.serverAddress + "/keys/" + doctorName + "/" + patientName)
+            .url(url("keys", doctorName, patientName).build())
             .build();
-        Call call = client.newCall(request);
-        Response response = call.execute();
-        if (response.code() != 200) {
-            throw new Exception("Error getting keys: " + response.body().string());
-        }
-        return this.gson.fromJson(response.body().string(), JsonObject.class);
+        return send(request, "Error getting keys: ",
+            response -> this.gson.fromJson(response.body().string(), JsonObject.class));
     }
 
     public JsonObject getSosKeys(String patientName, String doctorName, String keyfile) throws Exception {
+        return await(getSosKeysAsync(patientName, doctorName, keyfile));
+    }
+
+    public CompletableFuture<JsonObject> getSosKeysAsync(String patientName, String doctorName, String keyfile) {
         Request request = new Request.Builder()
-            .url("http://" + this.serverAddress + "/sos/" + patientName + "/" + doctorName + "/" + keyfile)
+            .url(url("sos", patientName, doctorName, keyfile).build())
             .build();
-        Call call = client.newCall(request);
-        Response response = call.execute();
-        if (response.code() != 200) {
-            throw new Exception("Error getting sos keys: " + response.body().string());
-        }
-        return this.gson.fromJson(response.body().string(), JsonObject.class);
+        return send(request, "Error getting sos keys: ",
+            response -> this.gson.fromJson(response.body().string(), JsonObject.class));
     }
 
     public void shareKeys(String patientName, String[] fields, String doctorName, Key userPrivate, Key doctorPublic) {
@@ -198,12 +472,11 @@ public class ClientHttp {
         System.out.println("Encrypted keys: " + gson.toJson(encryptedKeys));
         RequestBody formBody = FormBody.create(gson.toJson(encryptedKeys), MediaType.parse("application/json"));
         Request request = new Request.Builder()
-            .url("http://" + this.serverAddress + "/keys/" + doctorName + "/" + patientName)
+            .url(url("keys", doctorName, patientName).build())
             .post(formBody)
             .build();
         Call call = client.newCall(request);
-        try {
-            Response response = call.execute();
+        try (Response response = call.execute()) {
             if (response.code() != 200) {
                 System.out.println("Error sharing keys: " + response.body().string());
             }
@@ -1,6 +1,7 @@
 package main.java.pt.tecnico.a01.client;
 
 import main.java.pt.tecnico.a01.cryptography.CryptoLibrary;
+import main.java.pt.tecnico.a01.cryptography.KeyRegistry;
 
 import com.google.gson.Gson;
 import com.google.gson.JsonObject;
@@ -33,6 +34,8 @@ public class ClientSession {
 
     private Key serverPublic;
 
+    private KeyRegistry keyRegistry;
+
     // If we wish to have different users the key will need to be changed on login
 
 
@@ -60,6 +63,7 @@ public class ClientSession {
         
         runtimeOptions.addOption("p", "patient", true, "Sign in as a patient. Usage: -p <name>");
         runtimeOptions.addOption("d", "doctor", true, "Sign in as a doctor. Usage: -d <name>");
+        runtimeOptions.addOption("b", "bulk", true, "Import protected records in bulk. Usage: -b <path to NDJSON file or directory>");
         runtimeOptions.addOption("q", "quit", false, "Quit the application. Usage: -q");
         
         patientOptions.addOption("p", "patient", true, "Sign in as a patient. Usage: -p <name>");
@@ -83,8 +87,9 @@ public class ClientSession {
         CommandLine cmd;
         try {
             cmd = parser.parse(options, args);
-            this.sosPublic = CryptoLibrary.readPublicKey("../keys/sospub.key");
-            this.serverPublic = CryptoLibrary.readPublicKey("../keys/server.pubkey");
+            this.keyRegistry = new KeyRegistry("../keys");
+            this.sosPublic = keyRegistry.getPublicKey(KeyRegistry.SOS_PUBLIC);
+            this.serverPublic = keyRegistry.getPublicKey(KeyRegistry.SERVER_PUBLIC);
         } catch (Exception e) {
             System.err.println("Error parsing command and reading keys: " + e.getMessage());
             return;
@@ -143,8 +148,8 @@ public class ClientSession {
         if (cmd.hasOption("patient")) {
             this.userName = cmd.getOptionValue("patient");
             try {
-                this.userPublic = CryptoLibrary.readPublicKey("../keys/user.pubkey");
-                this.userPrivate = CryptoLibrary.readPrivateKey("../keys/user.privkey");
+                this.userPublic = keyRegistry.getPublicKey(KeyRegistry.USER_PUBLIC);
+                this.userPrivate = keyRegistry.getPrivateKey(KeyRegistry.USER_PRIVATE);
             } catch (Exception e) {
                 System.out.println("Error reading user key: " + e.getMessage());
                 return RUNTIME;
@@ -161,6 +166,9 @@ public class ClientSession {
                 return RUNTIME;
             }
             return DOCTOR;
+        } else if (cmd.hasOption("bulk")) {
+            clientHttp.importRecords(cmd.getOptionValue("bulk"));
+            return RUNTIME;
         } else if (cmd.hasOption("quit")) {
             return QUIT;
         } else {
@@ -180,8 +188,8 @@ public class ClientSession {
         if (cmd.hasOption("patient")) {
             this.userName = cmd.getOptionValue("patient");
             try {
-                this.userPublic = CryptoLibrary.readPublicKey("../keys/user.pubkey");
-                this.userPrivate = CryptoLibrary.readPrivateKey("../keys/user.privkey");
+                this.userPublic = keyRegistry.getPublicKey(KeyRegistry.USER_PUBLIC);
+                this.userPrivate = keyRegistry.getPrivateKey(KeyRegistry.USER_PRIVATE);
             } catch (Exception e) {
                 System.out.println("Error reading user key: " + e.getMessage());
                 return RUNTIME;
@@ -251,8 +259,8 @@ public class ClientSession {
         if (cmd.hasOption("patient")) {
         this.userName = cmd.getOptionValue("patient");
             try {
-                this.userPublic = CryptoLibrary.readPublicKey("../keys/user.pubkey");
-                this.userPrivate = CryptoLibrary.readPrivateKey("../keys/user.privkey");
+                this.userPublic = keyRegistry.getPublicKey(KeyRegistry.USER_PUBLIC);
+                this.userPrivate = keyRegistry.getPrivateKey(KeyRegistry.USER_PRIVATE);
             } catch (Exception e) {
                 System.out.println("Error reading user key: " + e.getMessage());
                 return RUNTIME;
@@ -305,7 +313,7 @@ public class ClientSession {
             String patientName = addArgs[0];
             String filePath = addArgs[1];
             try {
-                this.clientHttp.addConsultationRecordAsDoctor(CryptoLibrary.readFileToJsonObject(filePath), patientName, userPrivate);
+                this.clientHttp.addConsultationRecordAsDoctor(CryptoLibrary.readFileToJsonObject(filePath), patientName, userName, userPrivate);
             } catch (Exception e) {
                 System.out.println("Error: " + e.getMessage());
                 return DOCTOR;
@@ -331,28 +339,17 @@ public class ClientSession {
     }
 
     public Key getDoctorPrivateKey(String name) throws Exception {
-        if (name.equals("Smith") || name.equals("Johnson") || name.equals("Martins")) {
-            return CryptoLibrary.readPrivateKey("../keys/dr" + name + "priv.key");
-        }
-        else {
-            throw new Exception("Doctor does not exist. ");
-        }
+        return keyRegistry.getDoctorPrivateKey(name);
     }
 
     public Key getDoctorPublicKey(String name) throws Exception {
-        if (name.equals("Smith") || name.equals("Johnson") || name.equals("Martins")) {
-            return CryptoLibrary.readPublicKey("../keys/dr" + name + "pub.key");
-        }
-        else {
-            throw new Exception("Doctor does not exist. ");
-        }
+        return keyRegistry.getDoctorPublicKey(name);
     }
 
     public String getDoctorKeyFile(String name) {
-        if (name.equals("Smith") || name.equals("Johnson") || name.equals("Martins")) {
-            return "../keys/dr" + name + "pub.key";
-        }
-        else {
+        try {
+            return keyRegistry.getDoctorPublicKeyFile(name);
+        } catch (Exception e) {
             return null;
         }
     }
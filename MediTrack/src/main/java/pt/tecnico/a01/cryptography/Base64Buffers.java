@@ -0,0 +1,78 @@
+package main.java.pt.tecnico.a01.cryptography;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Base64 helpers for the ByteBuffer variants of {@link CryptoLibrary}'s operations.
+ *
+ * {@link java.util.Base64.Decoder#decode(ByteBuffer)} always allocates the decoded buffer. Since decoding only
+ * shrinks its input, it can instead be done in place, each group of four characters overwriting the start of the
+ * buffer with three bytes; a ciphertext received into a (heap or direct) buffer can then be decoded and decrypted
+ * without being copied.
+ */
+public final class Base64Buffers {
+
+    private static final byte[] DECODE = new byte[128];
+    private static final byte INVALID = -1;
+    private static final byte PADDING = -2;
+
+    static {
+        Arrays.fill(DECODE, INVALID);
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        for (int i = 0; i < alphabet.length(); i++) {
+            DECODE[alphabet.charAt(i)] = (byte) i;
+        }
+        DECODE['='] = PADDING;
+    }
+
+    private Base64Buffers() {
+    }
+
+    /**
+     * Decodes the remaining bytes of the buffer, standard Base64 text with padding, into the same storage.
+     *
+     * @param  base64 The Base64 text. Its position is moved to its limit.
+     * @return        A view of the decoded bytes, starting where the text started.
+     * @throws IllegalArgumentException If the text is not valid Base64.
+     */
+    public static ByteBuffer decodeInPlace(ByteBuffer base64) {
+        int start = base64.position();
+        int end = base64.limit();
+        if ((end - start) % 4 != 0) {
+            throw new IllegalArgumentException("Base64 text length is not a multiple of 4: " + (end - start));
+        }
+        int write = start;
+        for (int read = start; read < end; read += 4) {
+            int a = value(base64.get(read));
+            int b = value(base64.get(read + 1));
+            int c = value(base64.get(read + 2));
+            int d = value(base64.get(read + 3));
+            boolean padded = c == PADDING || d == PADDING;
+            if (a == PADDING || b == PADDING || (c == PADDING && d != PADDING) || (padded && read + 4 != end)) {
+                throw new IllegalArgumentException("Invalid Base64 text at " + (read - start));
+            }
+            // the write position never passes the read position, so no unread character is overwritten
+            base64.put(write++, (byte) (a << 2 | b >> 4));
+            if (c != PADDING) {
+                base64.put(write++, (byte) (b << 4 | c >> 2));
+                if (d != PADDING) {
+                    base64.put(write++, (byte) (c << 6 | d));
+                }
+            }
+        }
+        base64.position(end);
+        ByteBuffer decoded = base64.duplicate();
+        decoded.position(start);
+        decoded.limit(write);
+        return decoded.slice();
+    }
+
+    private static int value(byte character) {
+        byte value = character < 0 ? INVALID : DECODE[character];
+        if (value == INVALID) {
+            throw new IllegalArgumentException("Illegal Base64 character: " + (char) character);
+        }
+        return value;
+    }
+}
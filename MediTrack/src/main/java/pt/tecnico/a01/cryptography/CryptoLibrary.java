@@ -1,36 +1,37 @@
 package main.java.pt.tecnico.a01.cryptography;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.security.GeneralSecurityException;
 import java.security.KeyPair;
 import java.security.KeyPairGenerator;
 import java.security.MessageDigest;
 import java.security.PrivateKey;
 import java.security.PublicKey;
-import java.security.NoSuchAlgorithmException;
 import java.security.spec.PKCS8EncodedKeySpec;
 import java.security.spec.X509EncodedKeySpec;
-import java.security.SecureRandom;
 import java.security.Signature;
 
 import java.time.Instant;
-import java.lang.reflect.Type;
 
 import javax.crypto.spec.SecretKeySpec;
 
 import javax.crypto.Cipher;
-import javax.crypto.NoSuchPaddingException;
 import java.security.Key;
 import java.security.KeyFactory;
 
 import javax.crypto.spec.IvParameterSpec;
-import javax.crypto.KeyGenerator;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
-import com.google.gson.reflect.TypeToken;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
 
 
 
@@ -47,8 +48,12 @@ public class CryptoLibrary {
     // we can share an instance and let methods reuse it
     public static Gson gson = new Gson();
 
+    // progress messages are printed unless the calling thread asked for quiet, see setQuiet
+    private static final ThreadLocal<Boolean> QUIET = ThreadLocal.withInitial(() -> Boolean.FALSE);
+
     // 1 minute 
     private static final long FRESHNESS_RANGE = 60000;  
+    private static final String EPOCH_TOKEN_PREFIX = "epoch:";
 
     private static final String PATIENT = "patient";
     private static final String CONSULTATION_RECORDS = "consultationRecords";
@@ -74,6 +79,7 @@ public class CryptoLibrary {
     private static final String INITIALIZATION_VECTOR = "iv";
     private static final String KEYS = "keys";
     private static final String SOS = "sos";
+    private static final String ERROR_LEGACY_CONSULTATION_RECORDS = "Consultation records are not stored in the chunked layout";
     private static final String MESSAGE_CIPHER = "Ciphering with ";
     private static final String MESSAGE_DECIPHER = "Deciphering with ";
     private static final String ALGORITHM_AES = "AES";
@@ -81,7 +87,9 @@ public class CryptoLibrary {
     private static final String ALGORITHM_RSA = "RSA";
     private static final String CIPHER_ALGO_RSA = "RSA/ECB/PKCS1Padding";
     private static final String DIGITAL_SIGNATURE_INSTANCE = "SHA256withRSA";
+    private static final String DIGEST_ALGORITHM = "SHA-256";
     private static final String DIGITAL_SIGNATURE = "digitalSignature";
+    private static final String SEGMENT = "segment";
     
     // --------------------------------------------------------------------------------------------
     //  Main operations
@@ -104,6 +112,11 @@ public class CryptoLibrary {
     public static void protect(String inputFile, String outputFile, Key serverPrivate, Key userPublic, Key sosPublic,
                        String... fields) throws Exception {
 
+        if (StreamingRecordCodec.shouldStream(inputFile)) {
+            // large histories are protected without loading the whole record in memory
+            StreamingRecordCodec.protect(inputFile, outputFile, serverPrivate, userPublic, sosPublic, fields);
+            return;
+        }
         JsonObject rootJson = readFileToJsonObject(inputFile);
         JsonObject protectedRecord = protect(rootJson, serverPrivate, userPublic, sosPublic, fields);
         writeJsonObjectToFile(protectedRecord,outputFile);
@@ -124,7 +137,7 @@ public class CryptoLibrary {
      */
     public static JsonObject protect(JsonObject rootJson, Key serverPrivate, Key userPublic, Key sosPublic,
                        String... fields) throws Exception {
-        System.out.println(MESSAGE_JSON_OBJECT + rootJson);
+        log(MESSAGE_JSON_OBJECT + rootJson);
         
         JsonObject protectedRecord = new JsonObject();
         JsonObject metadata = new JsonObject();
@@ -142,7 +155,7 @@ public class CryptoLibrary {
     }
 
     public static JsonObject protect(JsonObject rootJson, Key userPublic, Key sosPublic, String... fields) throws Exception {
-        System.out.println(MESSAGE_JSON_OBJECT + rootJson);
+        log(MESSAGE_JSON_OBJECT + rootJson);
         
         JsonObject protectedRecord = new JsonObject();
         JsonObject metadata = new JsonObject();
@@ -175,6 +188,11 @@ public class CryptoLibrary {
      */
     public static void unprotect(String inputFile, String outputFile, Key userPrivate, String... args) throws Exception {
 
+        if (StreamingRecordCodec.shouldStream(inputFile)) {
+            // large histories are unprotected without loading the whole record in memory
+            StreamingRecordCodec.unprotect(inputFile, outputFile, userPrivate, args);
+            return;
+        }
         JsonObject rootJson = readFileToJsonObject(inputFile); 
         JsonObject patient = unprotect(rootJson, userPrivate, args);
         writeJsonObjectToFile(patient, outputFile);
@@ -195,16 +213,16 @@ public class CryptoLibrary {
      * @throws Exception    If any error occurs during file reading/writing or encryption processes.
      */
     public static JsonObject unprotect(JsonObject record, Key userPrivate, String... args) throws Exception {
-        System.out.println(MESSAGE_JSON_OBJECT + record);
+        log(MESSAGE_JSON_OBJECT + record);
 
         JsonObject patient = new JsonObject();
 
         // decrypts the secured document
+        JsonObject metadata = record.get(METADATA).getAsJsonObject();
         JsonObject unprotectedRecord = decryptRecord(record.get(RECORD).getAsJsonObject(),
-                                       record.get(METADATA).getAsJsonObject().get(
-                                       INITIALIZATION_VECTOR).getAsJsonObject(), 
-                                       record.get(METADATA).getAsJsonObject().get(
-                                       KEYS).getAsJsonObject(), userPrivate, args);
+                                       metadata.get(INITIALIZATION_VECTOR).getAsJsonObject(), 
+                                       metadata.get(KEYS).getAsJsonObject(), FieldCipher.of(metadata),
+                                       userPrivate, args);
 
         patient.add(PATIENT, unprotectedRecord);
         return patient;
@@ -248,20 +266,28 @@ public class CryptoLibrary {
     public static boolean check(JsonObject rootJson, Key serverPublic) throws Exception {
 
         JsonObject recordObject = rootJson.get(RECORD).getAsJsonObject();
+        JsonObject metadata = rootJson.get(METADATA).getAsJsonObject();
 
-        String storedHashBase64 = rootJson.get(METADATA).getAsJsonObject().get(HASH).getAsString();
+        String storedHashBase64 = metadata.get(HASH).getAsString();
         byte[] decryptedHash = rsaDecrypt(Base64.getDecoder().decode(storedHashBase64), serverPublic);
-        byte[] computedHash = createDigest(recordObject);
-        String refreshTokenBase64 = rootJson.get(METADATA).getAsJsonObject().get(REFRESH_TOKEN).getAsString();
+        String refreshTokenBase64 = metadata.get(REFRESH_TOKEN).getAsString();
         String refreshToken =  getRefreshToken(refreshTokenBase64, serverPublic);
         
-        boolean integrityStatus = compareHashes(decryptedHash, computedHash);
+        boolean integrityStatus;
+        if (metadata.has(RecordMerkleTree.MERKLE)) {
+            // fields left out of a partial record are covered by their hashes in the signed tree
+            integrityStatus = RecordMerkleTree.verify(recordObject,
+                metadata.get(RecordMerkleTree.MERKLE).getAsJsonObject(), decryptedHash);
+        } else {
+            // records sealed before the Merkle digest: a hash over the whole encrypted record
+            integrityStatus = compareHashes(decryptedHash, createDigest(recordObject));
+        }
         boolean freshnessStatus = compareRefreshTokenInterval(refreshToken,FRESHNESS_RANGE);
 
         String statusMessage = String.format("%sstatus= `%s` - `%s`",
             MESSAGE_PREFIX_CHECK, integrityStatus ? UNALTERED : ALTERED, freshnessStatus ? FRESH : STALE);
 
-        System.out.println(statusMessage);
+        log(statusMessage);
 
         return integrityStatus && freshnessStatus;
     
@@ -289,8 +315,8 @@ public class CryptoLibrary {
      */
     public static byte[] aesEncryptWithIV(byte[] bytes, Key key, IvParameterSpec iv) throws Exception{
         // cipher data
-        System.out.println(MESSAGE_CIPHER + CIPHER_ALGO_AES + "...");
-        Cipher cipher = Cipher.getInstance(CIPHER_ALGO_AES);
+        log(MESSAGE_CIPHER + CIPHER_ALGO_AES + "...");
+        Cipher cipher = CryptoPrimitives.cipher(CIPHER_ALGO_AES);
         cipher.init(Cipher.ENCRYPT_MODE, key, iv);
         byte[] cipherBytes = cipher.doFinal(bytes);
         return cipherBytes;
@@ -314,13 +340,42 @@ public class CryptoLibrary {
      */
     public static byte[] AesDecryptWithIV(byte[] bytes, Key key, byte[] iv) throws Exception{
         // decipher data
-        System.out.println(MESSAGE_DECIPHER + CIPHER_ALGO_AES + "...");
-        Cipher cipher = Cipher.getInstance(CIPHER_ALGO_AES);
+        log(MESSAGE_DECIPHER + CIPHER_ALGO_AES + "...");
+        Cipher cipher = CryptoPrimitives.cipher(CIPHER_ALGO_AES);
         cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(iv));
         byte[] decipheredBytes = cipher.doFinal(bytes);
         return decipheredBytes;
     }
 
+    /**
+     * ByteBuffer variant of {@link #aesEncryptWithIV(byte[], Key, IvParameterSpec)}: encrypts the remaining bytes
+     * of the input into the output. Both may be heap or direct buffers.
+     *
+     * @return           The number of bytes written to the output.
+     * @throws Exception If the output is too small or any error occurs during the encryption process.
+     */
+    public static int aesEncryptWithIV(ByteBuffer input, ByteBuffer output, Key key, IvParameterSpec iv)
+                      throws Exception {
+        log(MESSAGE_CIPHER + CIPHER_ALGO_AES + "...");
+        Cipher cipher = CryptoPrimitives.cipher(CIPHER_ALGO_AES);
+        cipher.init(Cipher.ENCRYPT_MODE, key, iv);
+        return cipher.doFinal(input, output);
+    }
+
+    /**
+     * ByteBuffer variant of {@link #AesDecryptWithIV(byte[], Key, byte[])}. The output may be the input itself
+     * (e.g. a duplicate of it), the plaintext then overwrites the ciphertext.
+     *
+     * @return           The number of bytes written to the output.
+     * @throws Exception If the output is too small or any error occurs during the decryption process.
+     */
+    public static int AesDecryptWithIV(ByteBuffer input, ByteBuffer output, Key key, byte[] iv) throws Exception {
+        log(MESSAGE_DECIPHER + CIPHER_ALGO_AES + "...");
+        Cipher cipher = CryptoPrimitives.cipher(CIPHER_ALGO_AES);
+        cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(iv));
+        return cipher.doFinal(input, output);
+    }
+
     /**
      * Encrypts the given byte array using the RSA encryption algorithm.
      * 
@@ -338,9 +393,8 @@ public class CryptoLibrary {
      */
     public static byte[] rsaEncrypt(byte[] bytes, Key key) throws Exception{
         // cipher data
-        final String CIPHER_ALGO = "RSA/ECB/PKCS1Padding";
-        System.out.println(MESSAGE_CIPHER + CIPHER_ALGO + "...");
-        Cipher cipher = Cipher.getInstance(CIPHER_ALGO);
+        log(MESSAGE_CIPHER + CIPHER_ALGO_RSA + "...");
+        Cipher cipher = CryptoPrimitives.cipher(CIPHER_ALGO_RSA);
         cipher.init(Cipher.ENCRYPT_MODE, key);
         byte[] cipherBytes = cipher.doFinal(bytes);
         return cipherBytes;
@@ -363,13 +417,58 @@ public class CryptoLibrary {
      */
     public static byte[] rsaDecrypt(byte[] bytes, Key key) throws Exception{
         // cipher data
-        System.out.println(MESSAGE_DECIPHER + CIPHER_ALGO_RSA + "...");
-        Cipher cipher = Cipher.getInstance(CIPHER_ALGO_RSA);
+        log(MESSAGE_DECIPHER + CIPHER_ALGO_RSA + "...");
+        Cipher cipher = CryptoPrimitives.cipher(CIPHER_ALGO_RSA);
         cipher.init(Cipher.DECRYPT_MODE, key);
         byte[] decipheredBytes = cipher.doFinal(bytes);
         return decipheredBytes;
     }
 
+    /**
+     * ByteBuffer variant of {@link #rsaEncrypt(byte[], Key)}.
+     *
+     * @return The number of bytes written to the output.
+     */
+    public static int rsaEncrypt(ByteBuffer input, ByteBuffer output, Key key) throws Exception {
+        log(MESSAGE_CIPHER + CIPHER_ALGO_RSA + "...");
+        Cipher cipher = CryptoPrimitives.cipher(CIPHER_ALGO_RSA);
+        cipher.init(Cipher.ENCRYPT_MODE, key);
+        return cipher.doFinal(input, output);
+    }
+
+    /**
+     * ByteBuffer variant of {@link #rsaDecrypt(byte[], Key)}.
+     *
+     * @return The number of bytes written to the output.
+     */
+    public static int rsaDecrypt(ByteBuffer input, ByteBuffer output, Key key) throws Exception {
+        log(MESSAGE_DECIPHER + CIPHER_ALGO_RSA + "...");
+        Cipher cipher = CryptoPrimitives.cipher(CIPHER_ALGO_RSA);
+        cipher.init(Cipher.DECRYPT_MODE, key);
+        return cipher.doFinal(input, output);
+    }
+
+    /**
+     * Unwraps an RSA-wrapped symmetric key, going through the {@link UnwrappedKeyCache} first.
+     * 
+     * Field keys are wrapped once per recipient but unwrapped every time a record or a shared-key set is opened,
+     * so repeated opens of the same record skip the RSA private-key operation entirely.
+     *
+     * @param  wrappedKey  The RSA-wrapped key bytes.
+     * @param  userPrivate The private key used to unwrap them.
+     * @return             The unwrapped key bytes. The caller owns (and may wipe) the returned array.
+     * @throws Exception   If any error occurs during the decryption process.
+     */
+    public static byte[] rsaUnwrapKey(byte[] wrappedKey, Key userPrivate) throws Exception {
+        UnwrappedKeyCache cache = UnwrappedKeyCache.getInstance();
+        byte[] unwrappedKey = cache.get(wrappedKey, userPrivate);
+        if (unwrappedKey == null) {
+            unwrappedKey = rsaDecrypt(wrappedKey, userPrivate);
+            cache.put(wrappedKey, userPrivate, unwrappedKey);
+        }
+        return unwrappedKey;
+    }
+
     /**
      * Encrypts the given byte array using the RSA encryption algorithm.
      * 
@@ -388,8 +487,8 @@ public class CryptoLibrary {
      */
     public static byte[] rsaEncryptWithIV(byte[] bytes, Key key, IvParameterSpec iv) throws Exception{
         // cipher data
-        System.out.println(MESSAGE_CIPHER + CIPHER_ALGO_RSA + "...");
-        Cipher cipher = Cipher.getInstance(CIPHER_ALGO_RSA);
+        log(MESSAGE_CIPHER + CIPHER_ALGO_RSA + "...");
+        Cipher cipher = CryptoPrimitives.cipher(CIPHER_ALGO_RSA);
         cipher.init(Cipher.ENCRYPT_MODE, key, iv);
         byte[] cipherBytes = cipher.doFinal(bytes);
         return cipherBytes;
@@ -413,8 +512,8 @@ public class CryptoLibrary {
      */
     public static byte[] rsaDecryptWithIV(byte[] bytes, Key key, byte[] iv) throws Exception{
         // cipher data
-        System.out.println(MESSAGE_DECIPHER + CIPHER_ALGO_RSA + "...");
-        Cipher cipher = Cipher.getInstance(CIPHER_ALGO_RSA);
+        log(MESSAGE_DECIPHER + CIPHER_ALGO_RSA + "...");
+        Cipher cipher = CryptoPrimitives.cipher(CIPHER_ALGO_RSA);
         cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(iv));
         byte[] decipheredBytes = cipher.doFinal(bytes);
         return decipheredBytes;
@@ -446,7 +545,7 @@ public class CryptoLibrary {
      * @throws Exception     If any I/O or key generation error occurs.
      */
     public static Key readPrivateKey(String filename) throws Exception {
-        System.out.println(MESSAGE_READ_PRIVATE_KEY + filename + " ...");
+        log(MESSAGE_READ_PRIVATE_KEY + filename + " ...");
         byte[] privEncoded = readFile(filename);
         PKCS8EncodedKeySpec privSpec = new PKCS8EncodedKeySpec(privEncoded);
         KeyFactory keyFacPriv = KeyFactory.getInstance(ALGORITHM_RSA);
@@ -462,7 +561,7 @@ public class CryptoLibrary {
      * @throws Exception     If any I/O or key generation error occurs.
      */
     public static Key readPublicKey(String filename) throws Exception {
-        System.out.println(MESSAGE_READ_PUBLIC_KEY + filename + " ...");
+        log(MESSAGE_READ_PUBLIC_KEY + filename + " ...");
         byte[] pubEncoded = readFile(filename);
         X509EncodedKeySpec pubSpec = new X509EncodedKeySpec(pubEncoded);
         KeyFactory keyFacPub = KeyFactory.getInstance(ALGORITHM_RSA);
@@ -480,32 +579,19 @@ public class CryptoLibrary {
      * @throws Exception   If a key generation error occurs.
      */
     public static Key generateKeyAES() throws Exception {
-        // Create a KeyGenerator instance for the AES encryption algorithm
-        KeyGenerator keyGen = KeyGenerator.getInstance(ALGORITHM_AES);
-
-
-        // DEBUG: 128 bits - 16bytes I want a 16 bytes keys not a 28 bytes
-        // Initialize the KeyGenerator with a key size of 128 bits
-        keyGen.init(128);
-
-        // Generate and return the AES key
-        Key key = keyGen.generateKey();
-        return key;
+        // 128 bits - 16 bytes, from the calling thread's generator instead of a new KeyGenerator per field
+        return KeyMaterialService.nextAesKey();
     }
 
     /**
-     * TODO:
+     * Generates a random IV for the given algorithm, without blocking on the entropy pool.
      * 
-     * @param algorithm        
-     * @return            
-     * @throws Exception   
+     * @param algorithm   The cipher algorithm, whose block size is the length of the IV.
+     * @return            The IV.
+     * @throws GeneralSecurityException If the cipher algorithm is unavailable.
      */
-    public static IvParameterSpec getIVSecureRandom(String algorithm) throws NoSuchAlgorithmException,
-                                  NoSuchPaddingException {
-        SecureRandom random = SecureRandom.getInstanceStrong();
-        byte[] iv = new byte[Cipher.getInstance(algorithm).getBlockSize()];
-        random.nextBytes(iv);
-        return new IvParameterSpec(iv);
+    public static IvParameterSpec getIVSecureRandom(String algorithm) throws GeneralSecurityException {
+        return KeyMaterialService.nextIv(algorithm);
     }
 
     // --------------------------------------------------------------------------------------------
@@ -522,21 +608,62 @@ public class CryptoLibrary {
      * @throws Exception       
      */
     public static boolean compareRefreshTokenInterval(String refreshToken, long range) {
-        Instant refreshTokenInstant = Instant.parse(refreshToken);
+        if (refreshToken.startsWith(EPOCH_TOKEN_PREFIX)) {
+            // epoch:<number>:<length in ms>:<start instant>
+            String[] epoch = refreshToken.split(":", 4);
+            long epochMillis = Long.parseLong(epoch[2]);
+            // the token is shared by every response of its epoch, so it may be up to one epoch older
+            return isWithinRange(Instant.parse(epoch[3]), range + epochMillis, range);
+        }
+        return isWithinRange(Instant.parse(refreshToken), range, range);
+    }
+
+    private static boolean isWithinRange(Instant refreshTokenInstant, long rangeBefore, long rangeAfter) {
         Instant current = Instant.now();
        
         if(refreshTokenInstant.equals(current)) {
             return true;
         } 
-        boolean isWithinBeforeRange = (refreshTokenInstant.isAfter(current.minusMillis(range))
+        boolean isWithinBeforeRange = (refreshTokenInstant.isAfter(current.minusMillis(rangeBefore))
                                        && refreshTokenInstant.isBefore(current));
         boolean isWithinAfterRange = (refreshTokenInstant.isAfter(current) 
-                                      && refreshTokenInstant.isBefore(current.plusMillis(range)));
+                                      && refreshTokenInstant.isBefore(current.plusMillis(rangeAfter)));
         
         return isWithinBeforeRange || isWithinAfterRange;
     }
+
+    /**
+     * Creates a freshness token covering a whole epoch, so a server can sign it once and attach it to every
+     * response of that epoch. {@link #compareRefreshTokenInterval(String, long)} accepts it for the given range
+     * plus the length of the epoch.
+     *
+     * @param  epoch         The number of the epoch (its start in milliseconds divided by its length).
+     * @param  epochMillis   The length of the epoch in milliseconds.
+     * @param  serverPrivate The private key of the server.
+     * @return               The freshness token.
+     * @throws Exception     If an encryption error occurs.
+     */
+    public static String createEpochRefreshToken(long epoch, long epochMillis, Key serverPrivate) throws Exception {
+        String freshness = EPOCH_TOKEN_PREFIX + epoch + ":" + epochMillis + ":"
+            + Instant.ofEpochMilli(epoch * epochMillis);
+        byte[] encryptedFreshness = rsaEncrypt(freshness.getBytes(), serverPrivate);
+        return Base64.getEncoder().encodeToString(encryptedFreshness);
+    }
     
 
+    /**
+     * Creates a freshness token: the current instant encrypted with the server's private key, encoded in Base64.
+     *
+     * @param  serverPrivate The private key of the server.
+     * @return               The freshness token.
+     * @throws Exception     If an encryption error occurs.
+     */
+    public static String createRefreshToken(Key serverPrivate) throws Exception {
+        byte[] freshnessBytes = Instant.now().toString().getBytes();
+        byte[] encryptedFreshness = rsaEncrypt(freshnessBytes, serverPrivate);
+        return Base64.getEncoder().encodeToString(encryptedFreshness);
+    }
+
     /** Decodes and Decrypts a each byte of two separate Base64 hashes in order to verify if they both correspond to the 
      * same record
      * 
@@ -583,16 +710,48 @@ public class CryptoLibrary {
      * @throws Exception     If an I/O error occurs or the file cannot be written.
      */
     public static String digestAndEncrypt(JsonObject recordObject,Key serverPrivate) throws Exception {
-        MessageDigest digest = MessageDigest.getInstance("SHA-256");
-        byte[] hash = digest.digest(gson.toJson(recordObject).getBytes("UTF-8"));
+        byte[] hash = createDigest(recordObject);
         byte[] encryptedHash = rsaEncrypt(hash, serverPrivate);
         String hashBase64 = Base64.getEncoder().encodeToString(encryptedHash);
 
         return hashBase64;
     }
 
+    /**
+     * Builds the Merkle tree of an encrypted record, stores it in the metadata and adds the root, encrypted with
+     * the server's private key, as the record's hash.
+     *
+     * @param  metadata        The metadata of the record, where the tree and the hash are stored.
+     * @param  encryptedRecord The encrypted record.
+     * @param  serverPrivate   The private key of the server.
+     * @throws Exception       If an error occurs while hashing or encrypting the root.
+     */
+    public static void addMerkleDigest(JsonObject metadata, JsonObject encryptedRecord, Key serverPrivate)
+            throws Exception {
+        JsonObject merkle = RecordMerkleTree.build(encryptedRecord);
+        metadata.add(RecordMerkleTree.MERKLE, merkle);
+        metadata.addProperty(HASH, signDigest(
+            Base64.getDecoder().decode(merkle.get(RecordMerkleTree.ROOT).getAsString()), serverPrivate));
+    }
+
+    /**
+     * @return The digest encrypted with the server's private key, encoded in Base64.
+     */
+    public static String signDigest(byte[] digest, Key serverPrivate) throws Exception {
+        return Base64.getEncoder().encodeToString(rsaEncrypt(digest, serverPrivate));
+    }
+
+    /**
+     * @return The SHA-256 digest of the remaining bytes of the buffer, which is consumed.
+     */
+    public static byte[] createDigest(ByteBuffer bytes) throws Exception {
+        MessageDigest digest = CryptoPrimitives.messageDigest(DIGEST_ALGORITHM);
+        digest.update(bytes);
+        return digest.digest();
+    }
+
     public static byte[] createDigest(JsonObject recordObject) throws Exception {
-        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        MessageDigest digest = CryptoPrimitives.messageDigest(DIGEST_ALGORITHM);
         byte[] hash = digest.digest(gson.toJson(recordObject).getBytes("UTF-8"));
 
         return hash;
@@ -615,8 +774,9 @@ public class CryptoLibrary {
     public static void writeJsonObjectToFile(JsonObject jsonObject, String outputFile) throws Exception {
 
         try (FileWriter fileWriter = new FileWriter(outputFile)) {
-            gson = new GsonBuilder().setPrettyPrinting().create();
-            gson.toJson(jsonObject, fileWriter);
+            // a local instance: the shared one must stay compact, since digests are computed over its output
+            Gson prettyGson = new GsonBuilder().setPrettyPrinting().create();
+            prettyGson.toJson(jsonObject, fileWriter);
         }
     }
     
@@ -673,28 +833,47 @@ public class CryptoLibrary {
         JsonObject iv = new JsonObject();
         JsonObject keys = new JsonObject();
         JsonObject sos = new JsonObject();
-        for (String field : fields) 
-        {
+        FieldCipher fieldCipher = FieldCipher.create();
+        // fields are independent, so they may be encrypted concurrently; results come back in field order
+        List<JsonElement[]> encryptedFields = FieldTaskRunner.map(fields, field -> {
+            Key key = generateKeyAES();  
+            String keyEncoded = Base64.getEncoder().encodeToString(key.getEncoded());
+            if (field.equals(CONSULTATION_RECORDS)) {
+                // chunked layout: one segment per consultation record, so appends don't touch the history
+                JsonArray segments = new JsonArray();
+                JsonArray segmentIvs = new JsonArray();
+                for (JsonElement consultationRecord : patientObject.get(field).getAsJsonArray()) {
+                    JsonObject segment = encryptConsultationRecord(consultationRecord, key, fieldCipher);
+                    segments.add(segment.get(SEGMENT));
+                    segmentIvs.add(segment.get(INITIALIZATION_VECTOR));
+                }
+                return new JsonElement[] {segments, segmentIvs, new JsonPrimitive(keyEncoded)};
+            }
             byte[] bytes;
-            if (field.equals(CONSULTATION_RECORDS) || field.equals(KNOWN_ALLERGIES)) {
+            if (field.equals(KNOWN_ALLERGIES)) {
                 JsonArray jsonArray = patientObject.get(field).getAsJsonArray();
                 bytes = jsonArray.toString().getBytes();
             } else {
                 bytes = patientObject.get(field).getAsString().getBytes();
             }
-            Key key = generateKeyAES();  
-            IvParameterSpec ivRandom = getIVSecureRandom(ALGORITHM_AES);
-            byte[] encryptedBytes = aesEncryptWithIV(bytes, key, ivRandom);
+            byte[] ivRandom = fieldCipher.nextIv();
+            byte[] encryptedBytes = fieldCipher.encrypt(field, bytes, key, ivRandom);
             String encryptedBase64 = Base64.getEncoder().encodeToString(encryptedBytes);
-            String ivBase64 = Base64.getEncoder().encodeToString(ivRandom.getIV());
-            encryptedRecord.addProperty(field, encryptedBase64);
-            iv.addProperty(field, ivBase64);
-            String keyEncoded = Base64.getEncoder().encodeToString(key.getEncoded());
-            keys.addProperty(field, keyEncoded);
+            String ivBase64 = Base64.getEncoder().encodeToString(ivRandom);
+            return new JsonElement[] {new JsonPrimitive(encryptedBase64), new JsonPrimitive(ivBase64),
+                                      new JsonPrimitive(keyEncoded)};
+        });
+        for (int i = 0; i < fields.length; i++) 
+        {
+            JsonElement[] encryptedField = encryptedFields.get(i);
+            encryptedRecord.add(fields[i], encryptedField[0]);
+            iv.add(fields[i], encryptedField[1]);
+            keys.add(fields[i], encryptedField[2]);
         }
         metadata.add(INITIALIZATION_VECTOR,iv);
         metadata.add(KEYS,keys);
         metadata.add(SOS,sos);
+        fieldCipher.writeTo(metadata);
     }
 
     /**
@@ -711,25 +890,24 @@ public class CryptoLibrary {
         
         encryptMetadataWithoutDigest(metadata, userPublic, sosPublic);
 
-        byte[] freshnessBytes = Instant.now().toString().getBytes();
-        byte[] encryptedFreshness = rsaEncrypt(freshnessBytes, serverPrivate);
-        String freshnessEncoded = Base64.getEncoder().encodeToString(encryptedFreshness);
-        metadata.addProperty(REFRESH_TOKEN, freshnessEncoded);
+        metadata.addProperty(REFRESH_TOKEN, createRefreshToken(serverPrivate));
 
-        String hashBase64 = digestAndEncrypt(encryptedRecord, serverPrivate);
-        metadata.addProperty(HASH, hashBase64);
+        addMerkleDigest(metadata, encryptedRecord, serverPrivate);
     }
 
     /**
      * Decrypts specified fields of a patient's record using AES and RSA decryption.
      *
-     * @param  keyBase64   encoded and encrypted symmetric encryption key 
-     * @param  record      JsonObject containing data to decrypt. 
+     * @param  record      JsonObject containing data to decrypt.
+     * @param  iv          The IVs of the fields (metadata.iv).
+     * @param  keys        The wrapped field keys (metadata.keys).
+     * @param  fieldCipher The cipher the fields were encrypted with, see {@link FieldCipher#of(JsonObject)}.
      * @param  userPrivate The private RSA key for decryption.
+     * @param  fields      The fields to decrypt, or none for all of them.
      * @return             The decrypted patient record.
      * @throws Exception   If a decryption error occurs.
      */
-    public static JsonObject decryptRecord(JsonObject record, JsonObject iv, JsonObject keys,
+    public static JsonObject decryptRecord(JsonObject record, JsonObject iv, JsonObject keys, FieldCipher fieldCipher,
                              Key userPrivate, String... fields) throws Exception {
 
         JsonObject decryptedRecord = new JsonObject();
@@ -740,9 +918,9 @@ public class CryptoLibrary {
         }       
         if(fields.length == 0) {
             // Decrypt all fields using AES
-            decryptFields(record, iv, keys, decryptedRecord, userPrivate, FIELDS);
+            decryptFields(record, iv, keys, fieldCipher, decryptedRecord, userPrivate, FIELDS);
         } else {
-            decryptFields(record, iv, keys, decryptedRecord, userPrivate, fields);    
+            decryptFields(record, iv, keys, fieldCipher, decryptedRecord, userPrivate, fields);    
         }
         
         return decryptedRecord;
@@ -752,6 +930,7 @@ public class CryptoLibrary {
      * Decrypts fields of a JSON object using AES or RSA (when appropriate).
      *
      * @param  recordObject    JsonObject containing data to decrypt.
+     * @param  fieldCipher     The cipher the fields were encrypted with.
      * @param  decryptedRecord JsonObject to store decrypted data.
      * @param  fields          Array of field names to be decrypted.
      * @param  userPrivate     decryption key.
@@ -759,111 +938,268 @@ public class CryptoLibrary {
 
      * @throws Exception       If a decryption error occurs.
      */
-    private static void decryptFields(JsonObject recordObject, JsonObject iv, JsonObject keys, 
+    private static void decryptFields(JsonObject recordObject, JsonObject iv, JsonObject keys, FieldCipher fieldCipher,
                         JsonObject decryptedRecord, Key userPrivate, String[] fields) throws Exception {
                   
-        for (String field : fields) 
-        {   
+        // fields are independent, so they may be decrypted concurrently; results come back in field order
+        List<JsonElement> decryptedFields = FieldTaskRunner.map(fields, field -> {
             // ensure that only previously encrypted fields are decrypted
             if(iv.get(field) == null) {
-                continue;
+                return null;
             }
             if (keys.get(field) == null) {
-                continue;
+                return null;
+            }
+            // a partial record only holds the fields that were asked for
+            if (recordObject.get(field) == null) {
+                return null;
+            }
+            log("Decrypting field: " + field);
+            Key key = unwrapFieldKey(keys, field, userPrivate);
+
+            if (recordObject.get(field).isJsonArray()) {
+                // chunked layout: every consultation record is a segment with its own IV
+                return decryptConsultationRecords(recordObject.get(field).getAsJsonArray(),
+                                                  iv.get(field).getAsJsonArray(), key, fieldCipher);
             }
-            System.out.println("Decrypting field: " + field);
-            byte[] encryptedKey = Base64.getDecoder().decode(keys.get(field).getAsString());
-            byte[] decryptedKey = rsaDecrypt(encryptedKey, userPrivate);
-            System.out.println("Decrypted key: " + Base64.getEncoder().encodeToString(decryptedKey));
-            Key key = new SecretKeySpec(decryptedKey, 0, decryptedKey.length, ALGORITHM_AES);
     
-            byte[] bytes = recordObject.get(field).getAsString().getBytes();
-            byte[] decodedBytes = Base64.getDecoder().decode(bytes);
+            // Base64 is ASCII: the ciphertext is decoded and decrypted in the storage of its text
+            ByteBuffer ciphertext = ByteBuffer.wrap(recordObject.get(field).getAsString()
+                                                    .getBytes(StandardCharsets.US_ASCII));
             byte[] decodedIv = Base64.getDecoder().decode(iv.get(field).getAsString().getBytes());
-            byte[] decryptedBytes = AesDecryptWithIV(decodedBytes, key, decodedIv); 
+            ByteBuffer plaintext = decryptField(fieldCipher, field, ciphertext, key, decodedIv);
 
             if (field.equals(CONSULTATION_RECORDS) || field.equals(KNOWN_ALLERGIES)) {
-                // this is necessary since consultationRecords and KnownAllergies have different formats
-                // NOTE THAT:
-                // - consultationRecords comprises an array of JsonObjects, where each JsonObject represents 
-                //   a consultation record. 
-                // - knownAllergies, on the other hand, is an array of Strings, with each string representing 
-                //   a specific allergy.
-                // Example structures:
-                // "consultationRecords": [
-                //     {
-                //         "date": "example_date",
-                //         "medicalSpeciality": "example_speciality",
-                //         "doctorName": "example_name",
-                //         "practice": "example_practice",
-                //         "treatmentSummary": "example_summary"
-                //     },
-                //     ... (more records)
-                // ]
-                //
-                // "knownAllergies": ["allergy1", ... (more allergies)]
-                Type listType = field.equals(CONSULTATION_RECORDS) ? new TypeToken<List<JsonObject>>() {}.getType() : 
-                                new TypeToken<List<String>>() {}.getType();
-                List<String> compositeRecords = gson.fromJson(new String(decryptedBytes), listType);
-                decryptedRecord.add(field, gson.toJsonTree(compositeRecords));
+                // consultationRecords (an array of JsonObjects, one per consultation record) and knownAllergies
+                // (an array of Strings) are stored as JSON, parsed straight from the plaintext
+                return parseJson(plaintext);
             } else {
-                decryptedRecord.addProperty(field, new String(decryptedBytes));
-                
-            }        
+                return new JsonPrimitive(Charset.defaultCharset().decode(plaintext).toString());
+            }
+        });
+        for (int i = 0; i < fields.length; i++) 
+        {
+            if (decryptedFields.get(i) != null) {
+                decryptedRecord.add(fields[i], decryptedFields.get(i));
+            }
         }
     }
     
-    public static JsonObject protectKeys(JsonObject keys, Key doctorPublic, String[] fields) {
-        JsonObject protectedKeys = new JsonObject();
-        for (String field : fields) 
-        {
-            if (keys.get(field) == null) {
-                continue;
-            }
-            byte[] bytes = Base64.getDecoder().decode(keys.get(field).getAsString());
-            byte[] encryptedBytes = null;
-            try {
-                encryptedBytes = rsaEncrypt(bytes, doctorPublic);
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-            String encryptedBase64 = Base64.getEncoder().encodeToString(encryptedBytes);
-            protectedKeys.addProperty(field, encryptedBase64);
+    // --------------------------------------------------------------------------------------------
+    //  Consultation records - chunked layout
+    // --------------------------------------------------------------------------------------------
+
+    /**
+     * Encrypts a single consultation record as a segment of the chunked consultationRecords field.
+     * 
+     * Each segment is encrypted under the field key with its own IV, so new consultation records can be appended
+     * to a protected record without decrypting or re-encrypting the existing history.
+     *
+     * @param  consultationRecord The consultation record to encrypt.
+     * @param  fieldKey           The AES key of the consultationRecords field.
+     * @param  fieldCipher        The cipher of the record, see {@link FieldCipher#of(JsonObject)}.
+     * @return                    A JsonObject of the form {"segment": ciphertext, "iv": iv}, both Base64 encoded.
+     * @throws Exception          If an encryption error occurs.
+     */
+    public static JsonObject encryptConsultationRecord(JsonElement consultationRecord, Key fieldKey,
+                       FieldCipher fieldCipher) throws Exception {
+        byte[] ivRandom = fieldCipher.nextIv();
+        byte[] encryptedBytes = fieldCipher.encrypt(CONSULTATION_RECORDS, consultationRecord.toString().getBytes(),
+                                                    fieldKey, ivRandom);
+
+        JsonObject segment = new JsonObject();
+        segment.addProperty(SEGMENT, Base64.getEncoder().encodeToString(encryptedBytes));
+        segment.addProperty(INITIALIZATION_VECTOR, Base64.getEncoder().encodeToString(ivRandom));
+        return segment;
+    }
+
+    /**
+     * Appends a consultation record to a protected record in place. Only the new segment is encrypted, with the
+     * cipher of the record.
+     *
+     * @param  protectedRecord    The protected record ({"record": ..., "metadata": ...}).
+     * @param  consultationRecord The consultation record to append.
+     * @param  fieldKey           The AES key of the consultationRecords field.
+     * @throws Exception          If the record uses the legacy single-ciphertext layout or an encryption error occurs.
+     */
+    public static void appendConsultationRecord(JsonObject protectedRecord, JsonElement consultationRecord,
+                       Key fieldKey) throws Exception {
+        JsonObject record = protectedRecord.get(RECORD).getAsJsonObject();
+        JsonObject metadata = protectedRecord.get(METADATA).getAsJsonObject();
+        JsonObject iv = metadata.get(INITIALIZATION_VECTOR).getAsJsonObject();
+        if (record.get(CONSULTATION_RECORDS) == null || !record.get(CONSULTATION_RECORDS).isJsonArray()) {
+            throw new Exception(ERROR_LEGACY_CONSULTATION_RECORDS);
+        }
+        JsonObject segment = encryptConsultationRecord(consultationRecord, fieldKey, FieldCipher.of(metadata));
+        record.get(CONSULTATION_RECORDS).getAsJsonArray().add(segment.get(SEGMENT));
+        iv.get(CONSULTATION_RECORDS).getAsJsonArray().add(segment.get(INITIALIZATION_VECTOR));
+
+        JsonObject merkle = metadata.getAsJsonObject(RecordMerkleTree.MERKLE);
+        if (merkle != null) {
+            // keeps the tree current; the hash must be signed again by the server
+            RecordMerkleTree.appendSegment(merkle, CONSULTATION_RECORDS, segment.get(SEGMENT).getAsString());
+        }
+    }
+
+    /**
+     * Unwraps a field key, e.g. the consultationRecords key a patient shared with a physician.
+     *
+     * @param  wrappedKeyBase64 The Base64 encoded RSA-wrapped field key.
+     * @param  userPrivate      The private key used to unwrap it.
+     * @return                  The AES field key.
+     * @throws Exception        If a decryption error occurs.
+     */
+    public static Key unwrapFieldKey(String wrappedKeyBase64, Key userPrivate) throws Exception {
+        byte[] decryptedKey = rsaUnwrapKey(Base64.getDecoder().decode(wrappedKeyBase64), userPrivate);
+        Key key = new SecretKeySpec(decryptedKey, 0, decryptedKey.length, ALGORITHM_AES);
+        Arrays.fill(decryptedKey, (byte) 0);
+        return key;
+    }
+
+    /**
+     * Unwraps the key of a field from a keys object, in the legacy (RSA per field) or the KEK layout.
+     *
+     * @param  keys        The keys object, e.g. metadata.keys or the keys a patient shared with a physician.
+     * @param  field       The field.
+     * @param  userPrivate The private key used to unwrap it.
+     * @return             The AES field key, or null if the keys object has none for the field.
+     * @throws Exception   If a decryption error occurs.
+     */
+    public static Key unwrapFieldKey(JsonObject keys, String field, Key userPrivate) throws Exception {
+        byte[] decryptedKey = FieldKeyWrapper.unwrap(keys, field, userPrivate);
+        if (decryptedKey == null) {
+            return null;
+        }
+        Key key = new SecretKeySpec(decryptedKey, 0, decryptedKey.length, ALGORITHM_AES);
+        Arrays.fill(decryptedKey, (byte) 0);
+        return key;
+    }
+
+    /**
+     * Decrypts a field straight from the buffer it was received in (e.g. a network buffer holding its Base64
+     * ciphertext). The ciphertext is Base64 decoded and then decrypted in place, so the only bytes written are
+     * the buffer's own.
+     *
+     * @param  fieldCipher  The cipher of the record, see {@link FieldCipher#of(JsonObject)}.
+     * @param  field        The field.
+     * @param  base64       The Base64 ciphertext. It is overwritten, and its position moved to its limit.
+     * @param  key          The AES key of the field.
+     * @param  iv           The IV of the field.
+     * @return              A view of the plaintext, in the same storage as the ciphertext.
+     * @throws Exception    If a decryption error occurs.
+     */
+    public static ByteBuffer decryptField(FieldCipher fieldCipher, String field, ByteBuffer base64, Key key, byte[] iv)
+                      throws Exception {
+        ByteBuffer ciphertext = Base64Buffers.decodeInPlace(base64);
+        ByteBuffer plaintext = ciphertext.duplicate();
+        fieldCipher.decrypt(field, ciphertext, plaintext, key, iv);
+        plaintext.flip();
+        return plaintext;
+    }
+
+    /**
+     * Parses JSON straight from a buffer, e.g. the plaintext returned by
+     * {@link #decryptField(FieldCipher, String, ByteBuffer, Key, byte[])}, without copying it to a String first.
+     * The bytes are decoded once into the parser's input; a stream reader would instead allocate a buffer of
+     * several KB per call, more than a whole consultation record segment.
+     */
+    public static JsonElement parseJson(ByteBuffer json) throws Exception {
+        // the plaintext was encoded with the platform charset (String.getBytes()), see encryptFields
+        CharBuffer chars = Charset.defaultCharset().decode(json);
+        try (Reader reader = new CharArrayReader(chars.array(), chars.arrayOffset() + chars.position(),
+                                                 chars.remaining())) {
+            return JsonParser.parseReader(reader);
+        }
+    }
+
+    private static JsonArray decryptConsultationRecords(JsonArray segments, JsonArray segmentIvs, Key key,
+                        FieldCipher fieldCipher) throws Exception {
+        JsonArray consultationRecords = new JsonArray();
+        for (int i = 0; i < segments.size(); i++) {
+            // like the single-value fields, each segment is decoded, decrypted and parsed in the storage of its text
+            ByteBuffer ciphertext = ByteBuffer.wrap(segments.get(i).getAsString().getBytes(StandardCharsets.US_ASCII));
+            byte[] decodedIv = Base64.getDecoder().decode(segmentIvs.get(i).getAsString());
+            ByteBuffer plaintext = decryptField(fieldCipher, CONSULTATION_RECORDS, ciphertext, key, decodedIv);
+            consultationRecords.add(parseJson(plaintext).getAsJsonObject());
+        }
+        return consultationRecords;
+    }
+
+    /**
+     * Wraps plain (Base64 encoded) field keys for a physician. In the KEK layout this is a single RSA operation,
+     * whatever the number of fields.
+     *
+     * @param  keys         The plain field keys, as returned by unprotectKeys.
+     * @param  doctorPublic The physician's public key.
+     * @param  fields       The fields to share.
+     * @return              The keys object of the physician.
+     * @throws Exception    If an encryption error occurs.
+     */
+    public static JsonObject protectKeys(JsonObject keys, Key doctorPublic, String[] fields) throws Exception {
+        byte[][] fieldKeys = decodeFieldKeys(keys, fields);
+        try {
+            return FieldKeyWrapper.wrap(fields, fieldKeys, doctorPublic)[0];
+        } finally {
+            wipe(fieldKeys);
         }
-        return protectedKeys;
     }
 
-    public static JsonObject unprotectKeys(JsonObject protectedKeys, Key userPrivate) {
+    /**
+     * Unwraps every field key of a keys object, in either layout.
+     *
+     * @return The plain (Base64 encoded) field keys.
+     */
+    public static JsonObject unprotectKeys(JsonObject protectedKeys, Key userPrivate) throws Exception {
         JsonObject keys = new JsonObject();
-        for (String field : FIELDS) 
-        {
-            if (protectedKeys.get(field) == null) {
-                continue;
-            }
-            byte[] encryptedKey = Base64.getDecoder().decode(protectedKeys.get(field).getAsString());
-            byte[] decryptedKey = null;
-            try {
-                decryptedKey = rsaDecrypt(encryptedKey, userPrivate);
-            } catch (Exception e) {
-                e.printStackTrace();
+        List<String> decryptedKeys = FieldTaskRunner.map(FIELDS, field -> {
+            byte[] decryptedKey = FieldKeyWrapper.unwrap(protectedKeys, field, userPrivate);
+            if (decryptedKey == null) {
+                return null;
             }
             String keyEncoded = Base64.getEncoder().encodeToString(decryptedKey);
-            keys.addProperty(field, keyEncoded);
+            Arrays.fill(decryptedKey, (byte) 0);
+            return keyEncoded;
+        });
+        for (int i = 0; i < FIELDS.length; i++) 
+        {
+            if (decryptedKeys.get(i) != null) {
+                keys.addProperty(FIELDS[i], decryptedKeys.get(i));
+            }
         }
         return keys;
     }
 
+    private static byte[][] decodeFieldKeys(JsonObject keys, String[] fields) {
+        byte[][] fieldKeys = new byte[fields.length][];
+        for (int i = 0; i < fields.length; i++) {
+            if (keys.get(fields[i]) != null) {
+                fieldKeys[i] = Base64.getDecoder().decode(keys.get(fields[i]).getAsString());
+            }
+        }
+        return fieldKeys;
+    }
+
+    private static void wipe(byte[][] fieldKeys) {
+        for (byte[] fieldKey : fieldKeys) {
+            if (fieldKey != null) {
+                Arrays.fill(fieldKey, (byte) 0);
+            }
+        }
+    }
+
     public static JsonObject unprotectWithCustomKeys(JsonObject record, JsonObject keys, Key userPrivate) throws Exception {
-        System.out.println(MESSAGE_JSON_OBJECT + record);
+        log(MESSAGE_JSON_OBJECT + record);
 
         JsonObject patient = new JsonObject();
 
         // decrypts the secured document
         JsonObject unprotectedRecord = new JsonObject();
         // Must change decryptFields to check if key exists before decrypting the field
+        JsonObject metadata = record.get(METADATA).getAsJsonObject();
         decryptFields(record.get(RECORD).getAsJsonObject(),
-            record.get(METADATA).getAsJsonObject().get(INITIALIZATION_VECTOR).getAsJsonObject(),
+            metadata.get(INITIALIZATION_VECTOR).getAsJsonObject(),
             keys,
+            FieldCipher.of(metadata),
             unprotectedRecord,
             userPrivate,
             FIELDS);
@@ -877,7 +1213,7 @@ public class CryptoLibrary {
 
         JsonObject rootJson = readFileToJsonObject(inputFile);
 
-        System.out.println(MESSAGE_JSON_OBJECT + rootJson);
+        log(MESSAGE_JSON_OBJECT + rootJson);
         
         JsonObject signedConsultationRecord = new JsonObject();
         
@@ -893,7 +1229,7 @@ public class CryptoLibrary {
 
         byte[] consultationRecordBytes = gson.toJson(consultationRecord).getBytes("UTF-8");
         PrivateKey privateKey = (PrivateKey) physicianPrivateKey;
-        Signature signature = Signature.getInstance(DIGITAL_SIGNATURE_INSTANCE);
+        Signature signature = CryptoPrimitives.signature(DIGITAL_SIGNATURE_INSTANCE);
         signature.initSign(privateKey);
         signature.update(consultationRecordBytes);
         byte[] signedConsultationRecordBytes = signature.sign();
@@ -917,7 +1253,7 @@ public class CryptoLibrary {
 
     public static boolean verifyConsultationRecord(JsonObject rootJson, Key physicianPublicKey) throws Exception {
         
-        System.out.println(MESSAGE_JSON_OBJECT + rootJson);
+        log(MESSAGE_JSON_OBJECT + rootJson);
         
         JsonObject consultationRecord = new JsonObject();
 
@@ -925,14 +1261,14 @@ public class CryptoLibrary {
             consultationRecord.addProperty(field, rootJson.get(field).getAsString());
         }
 
-        System.out.println("JSON object: " + consultationRecord);
+        log("JSON object: " + consultationRecord);
 
         byte[] consultationRecordBytes = gson.toJson(consultationRecord).getBytes("UTF-8");
         byte[] decodedSignatureBytes =  Base64.getDecoder().decode(rootJson.get(
                                         DIGITAL_SIGNATURE).getAsString().getBytes());
         
         PublicKey publicKey = (PublicKey) physicianPublicKey;
-        Signature signature = Signature.getInstance(DIGITAL_SIGNATURE_INSTANCE);
+        Signature signature = CryptoPrimitives.signature(DIGITAL_SIGNATURE_INSTANCE);
         signature.initVerify(publicKey);
         signature.update(consultationRecordBytes);
         boolean result = signature.verify(decodedSignatureBytes);
@@ -942,7 +1278,7 @@ public class CryptoLibrary {
             MESSAGE_PREFIX_VERIFY_SIGN, result ? PHYSICIAN_SIGNED : PHYSICIAN_DID_NOT_SIGN, 
             result ? doctor : doctor);
 
-        System.out.println(verifyMessage);
+        log(verifyMessage);
 
         return result;
     }
@@ -958,8 +1294,7 @@ public class CryptoLibrary {
         JsonObject encryptedRecord = rootJson.get(RECORD).getAsJsonObject();
         JsonObject metadata = rootJson.get(METADATA).getAsJsonObject();
 
-        String hashBase64 = digestAndEncrypt(encryptedRecord, serverPrivate);
-        metadata.addProperty(HASH, hashBase64);
+        addMerkleDigest(metadata, encryptedRecord, serverPrivate);
 
         rootJson.add(METADATA,metadata);
         
@@ -974,40 +1309,71 @@ public class CryptoLibrary {
      * @throws Exception
      */
     public static JsonObject addFreshness(JsonObject rootJson, Key serverPrivate) throws Exception {
+        return addFreshness(rootJson, createRefreshToken(serverPrivate));
+    }
+
+    /**
+     * Adds an already signed freshness token, e.g. one reused by the server across the requests of a short window.
+     *
+     * @param rootJson
+     * @param refreshToken a token created by {@link #createRefreshToken(Key)}
+     * @return the encrypted record
+     */
+    public static JsonObject addFreshness(JsonObject rootJson, String refreshToken) {
         JsonObject encryptedRecord = rootJson.get(RECORD).getAsJsonObject();
         JsonObject metadata = rootJson.get(METADATA).getAsJsonObject();
 
-        byte[] freshnessBytes = Instant.now().toString().getBytes();
-        byte[] encryptedFreshness = rsaEncrypt(freshnessBytes, serverPrivate);
-        String freshnessEncoded = Base64.getEncoder().encodeToString(encryptedFreshness);
-        metadata.addProperty(REFRESH_TOKEN, freshnessEncoded);
+        metadata.addProperty(REFRESH_TOKEN, refreshToken);
 
         rootJson.add(METADATA,metadata);
         return encryptedRecord;
     }
 
     /**
-     * 
+     * Replaces the plain field keys of the metadata with the keys wrapped for the patient (metadata.keys) and for
+     * the SOS service (metadata.sos).
+     *
      * @param metadata
      * @param userPublic
      * @param sosPublic
      * @throws Exception
      */
     public static void encryptMetadataWithoutDigest(JsonObject metadata, Key userPublic, Key sosPublic) throws Exception {
-        for (String field : FIELDS) 
-        {
-            if(metadata.get(KEYS).getAsJsonObject().get(field) == null) {
-                continue;
-            }
-            byte[] decodedKeyBytes = Base64.getDecoder().decode(
-                                     metadata.get(KEYS).getAsJsonObject().get(field).getAsString());
-            byte[] encryptedBytesSos = rsaEncrypt(decodedKeyBytes, sosPublic);
-            byte[] encryptedBytes = rsaEncrypt(decodedKeyBytes, userPublic);
-            String encryptedBase64 = Base64.getEncoder().encodeToString(encryptedBytes);
-            String encryptedBase64Sos = Base64.getEncoder().encodeToString(encryptedBytesSos);
-            metadata.get(KEYS).getAsJsonObject().addProperty(field, encryptedBase64);
-            metadata.get(SOS).getAsJsonObject().addProperty(field, encryptedBase64Sos);
-      
+        byte[][] fieldKeys = decodeFieldKeys(metadata.get(KEYS).getAsJsonObject(), FIELDS);
+        JsonObject[] wrappedKeys;
+        try {
+            wrappedKeys = FieldKeyWrapper.wrap(FIELDS, fieldKeys, userPublic, sosPublic);
+        } finally {
+            wipe(fieldKeys);
+        }
+        metadata.add(KEYS, wrappedKeys[0]);
+        JsonObject sos = metadata.get(SOS).getAsJsonObject();
+        for (Map.Entry<String, JsonElement> entry : wrappedKeys[1].entrySet()) {
+            sos.add(entry.getKey(), entry.getValue());
+        }
+    }
+
+    // --------------------------------------------------------------------------------------------
+    //  Logging
+    // --------------------------------------------------------------------------------------------
+
+    /**
+     * Silences (or restores) the progress messages of the operations run by the calling thread, and of the field
+     * tasks they hand to FieldTaskRunner. Other threads keep logging.
+     *
+     * @param quiet true to silence the messages.
+     */
+    public static void setQuiet(boolean quiet) {
+        QUIET.set(quiet);
+    }
+
+    public static boolean isQuiet() {
+        return QUIET.get();
+    }
+
+    static void log(String message) {
+        if (!QUIET.get()) {
+            System.out.println(message);
         }
     }
 }
@@ -0,0 +1,89 @@
+package main.java.pt.tecnico.a01.cryptography;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.Signature;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.crypto.Cipher;
+
+/**
+ * Per-thread cache of JCA primitives used by {@link CryptoLibrary}.
+ *
+ * Looking up a Cipher, Signature or MessageDigest walks the installed providers and builds a fresh SPI object
+ * every time. None of these objects are thread-safe, but all of them are fully reset by {@code init} (or by
+ * completing a {@code digest}/{@code sign}), so each thread can keep one instance per transformation and reuse it
+ * for every field of every request it handles.
+ *
+ * Callers must not hold on to a returned instance across calls that may re-enter this class for the same
+ * transformation on the same thread.
+ */
+public final class CryptoPrimitives {
+
+    private static final ThreadLocal<Map<String, Cipher>> CIPHERS =
+        ThreadLocal.withInitial(HashMap::new);
+    private static final ThreadLocal<Map<String, Signature>> SIGNATURES =
+        ThreadLocal.withInitial(HashMap::new);
+    private static final ThreadLocal<Map<String, MessageDigest>> DIGESTS =
+        ThreadLocal.withInitial(HashMap::new);
+
+    private CryptoPrimitives() {
+    }
+
+    /**
+     * Returns this thread's Cipher for the given transformation, creating it on first use.
+     * The caller is expected to {@code init} it before use.
+     *
+     * @param  transformation  The transformation, e.g. "AES/CBC/PKCS5Padding".
+     * @return                 A cached Cipher instance owned by the calling thread.
+     * @throws GeneralSecurityException If no provider supports the transformation.
+     */
+    public static Cipher cipher(String transformation) throws GeneralSecurityException {
+        Map<String, Cipher> ciphers = CIPHERS.get();
+        Cipher cipher = ciphers.get(transformation);
+        if (cipher == null) {
+            cipher = Cipher.getInstance(transformation);
+            ciphers.put(transformation, cipher);
+        }
+        return cipher;
+    }
+
+    /**
+     * Returns this thread's Signature for the given algorithm, creating it on first use.
+     * The caller is expected to {@code initSign}/{@code initVerify} it before use.
+     *
+     * @param  algorithm  The signature algorithm, e.g. "SHA256withRSA".
+     * @return            A cached Signature instance owned by the calling thread.
+     * @throws GeneralSecurityException If no provider supports the algorithm.
+     */
+    public static Signature signature(String algorithm) throws GeneralSecurityException {
+        Map<String, Signature> signatures = SIGNATURES.get();
+        Signature signature = signatures.get(algorithm);
+        if (signature == null) {
+            signature = Signature.getInstance(algorithm);
+            signatures.put(algorithm, signature);
+        }
+        return signature;
+    }
+
+    /**
+     * Returns this thread's MessageDigest for the given algorithm, reset and ready for use.
+     *
+     * @param  algorithm  The digest algorithm, e.g. "SHA-256".
+     * @return            A cached MessageDigest instance owned by the calling thread.
+     * @throws GeneralSecurityException If no provider supports the algorithm.
+     */
+    public static MessageDigest messageDigest(String algorithm) throws GeneralSecurityException {
+        Map<String, MessageDigest> digests = DIGESTS.get();
+        MessageDigest digest = digests.get(algorithm);
+        if (digest == null) {
+            digest = MessageDigest.getInstance(algorithm);
+            digests.put(algorithm, digest);
+        } else {
+            // a previous caller may have failed half-way through an update
+            digest.reset();
+        }
+        return digest;
+    }
+}
@@ -0,0 +1,187 @@
+package main.java.pt.tecnico.a01.cryptography;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.util.Base64;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+/**
+ * The cipher the fields (and consultation record segments) of a protected record are encrypted with.
+ *
+ * The format of a record is given by the {@code version} member of its metadata:
+ * <ul>
+ *   <li>1 (no {@code version} member, the original format): AES/CBC/PKCS5Padding with a random 16-byte IV. The
+ *       ciphertext is only authenticated by the digest the server signs over the record;</li>
+ *   <li>2: AES/GCM/NoPadding with a random 12-byte IV and a 128-bit tag. The associated data binds every
+ *       ciphertext to its field and to the record, whose random {@code id} is kept in the metadata, so a
+ *       ciphertext that was altered, or moved to another field or record, fails to decrypt.</li>
+ * </ul>
+ * New records are written in version 2, unless the {@code meditrack.cipher} system property is set to
+ * {@code cbc}. Both versions are always readable.
+ */
+public final class FieldCipher {
+
+    public static final String CIPHER_PROPERTY = "meditrack.cipher";
+    public static final String CIPHER_CBC = "cbc";
+
+    public static final String VERSION = "version";
+    public static final String RECORD_ID = "id";
+
+    public static final int VERSION_CBC = 1;
+    public static final int VERSION_GCM = 2;
+
+    /** Version 1, for records (and consultation records) written before the metadata was versioned. */
+    public static final FieldCipher CBC = new FieldCipher(VERSION_CBC, null);
+
+    private static final String CIPHER_ALGO_CBC = "AES/CBC/PKCS5Padding";
+    private static final String CIPHER_ALGO_GCM = "AES/GCM/NoPadding";
+    private static final int GCM_IV_LENGTH = 12;
+    private static final int GCM_TAG_LENGTH = 128;
+    private static final int RECORD_ID_LENGTH = 12;
+
+    private static final String ERROR_UNKNOWN_VERSION = "Unsupported record format version: ";
+    private static final String ERROR_AUTHENTICATION = "Field failed authentication: ";
+
+    private final int version;
+    private final String recordId;
+
+    private FieldCipher(int version, String recordId) {
+        this.version = version;
+        this.recordId = recordId;
+    }
+
+    /**
+     * @return The cipher of a new record, with a fresh record id.
+     */
+    public static FieldCipher create() {
+        if (CIPHER_CBC.equals(System.getProperty(CIPHER_PROPERTY))) {
+            return CBC;
+        }
+        byte[] id = new byte[RECORD_ID_LENGTH];
+        KeyMaterialService.nextBytes(id);
+        return new FieldCipher(VERSION_GCM, Base64.getUrlEncoder().withoutPadding().encodeToString(id));
+    }
+
+    /**
+     * @param  metadata  The metadata of a protected record.
+     * @return           The cipher its fields are encrypted with.
+     * @throws Exception If the version is unknown.
+     */
+    public static FieldCipher of(JsonObject metadata) throws Exception {
+        JsonElement version = metadata.get(VERSION);
+        if (version == null || version.getAsInt() == VERSION_CBC) {
+            return CBC;
+        }
+        if (version.getAsInt() != VERSION_GCM) {
+            throw new Exception(ERROR_UNKNOWN_VERSION + version);
+        }
+        return new FieldCipher(VERSION_GCM, metadata.get(RECORD_ID).getAsString());
+    }
+
+    /**
+     * Adds the version (and record id) to the metadata of a new record. Version 1 records are left as they were.
+     */
+    public void writeTo(JsonObject metadata) {
+        if (version == VERSION_CBC) {
+            return;
+        }
+        metadata.addProperty(VERSION, version);
+        metadata.addProperty(RECORD_ID, recordId);
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public String getRecordId() {
+        return recordId;
+    }
+
+    public String getAlgorithm() {
+        return version == VERSION_GCM ? CIPHER_ALGO_GCM : CIPHER_ALGO_CBC;
+    }
+
+    /**
+     * @return A random IV of the length the cipher expects.
+     */
+    public byte[] nextIv() throws GeneralSecurityException {
+        if (version == VERSION_GCM) {
+            byte[] iv = new byte[GCM_IV_LENGTH];
+            KeyMaterialService.nextBytes(iv);
+            return iv;
+        }
+        return KeyMaterialService.nextIv(CIPHER_ALGO_CBC).getIV();
+    }
+
+    /**
+     * Initializes the calling thread's cipher to encrypt or decrypt a value of the given field.
+     *
+     * @param  mode  Cipher.ENCRYPT_MODE or Cipher.DECRYPT_MODE.
+     * @param  field The field the value belongs to, bound to the ciphertext in version 2.
+     * @return       The initialized cipher, ready for update/doFinal or a cipher stream.
+     */
+    public Cipher init(int mode, String field, Key key, byte[] iv) throws GeneralSecurityException {
+        Cipher cipher = CryptoPrimitives.cipher(getAlgorithm());
+        if (version == VERSION_GCM) {
+            cipher.init(mode, key, new GCMParameterSpec(GCM_TAG_LENGTH, iv));
+            cipher.updateAAD(associatedData(field));
+        } else {
+            cipher.init(mode, key, new IvParameterSpec(iv));
+        }
+        return cipher;
+    }
+
+    public byte[] encrypt(String field, byte[] bytes, Key key, byte[] iv) throws Exception {
+        CryptoLibrary.log("Ciphering with " + getAlgorithm() + "...");
+        return init(Cipher.ENCRYPT_MODE, field, key, iv).doFinal(bytes);
+    }
+
+    public byte[] decrypt(String field, byte[] bytes, Key key, byte[] iv) throws Exception {
+        CryptoLibrary.log("Deciphering with " + getAlgorithm() + "...");
+        try {
+            return init(Cipher.DECRYPT_MODE, field, key, iv).doFinal(bytes);
+        } catch (AEADBadTagException e) {
+            throw new Exception(ERROR_AUTHENTICATION + field);
+        }
+    }
+
+    /**
+     * ByteBuffer variant of {@link #encrypt(String, byte[], Key, byte[])}: encrypts the remaining bytes of the input
+     * into the output, heap or direct.
+     *
+     * @return The number of bytes written to the output.
+     */
+    public int encrypt(String field, ByteBuffer input, ByteBuffer output, Key key, byte[] iv) throws Exception {
+        CryptoLibrary.log("Ciphering with " + getAlgorithm() + "...");
+        return init(Cipher.ENCRYPT_MODE, field, key, iv).doFinal(input, output);
+    }
+
+    /**
+     * ByteBuffer variant of {@link #decrypt(String, byte[], Key, byte[])}. The output may be the input itself
+     * (e.g. a duplicate of it), the plaintext then overwrites the ciphertext.
+     *
+     * @return The number of bytes written to the output.
+     */
+    public int decrypt(String field, ByteBuffer input, ByteBuffer output, Key key, byte[] iv) throws Exception {
+        CryptoLibrary.log("Deciphering with " + getAlgorithm() + "...");
+        try {
+            return init(Cipher.DECRYPT_MODE, field, key, iv).doFinal(input, output);
+        } catch (AEADBadTagException e) {
+            throw new Exception(ERROR_AUTHENTICATION + field);
+        }
+    }
+
+    private byte[] associatedData(String field) {
+        // <record id> NUL <field>: neither contains a NUL, so the encoding is unambiguous
+        return (recordId + '\0' + field).getBytes(StandardCharsets.UTF_8);
+    }
+}
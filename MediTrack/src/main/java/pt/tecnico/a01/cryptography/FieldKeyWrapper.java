@@ -0,0 +1,170 @@
+package main.java.pt.tecnico.a01.cryptography;
+
+import java.security.Key;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+/**
+ * Wraps the per-field AES keys of a record for its recipients (the patient, the SOS service, a doctor).
+ *
+ * Two layouts of a keys object are supported:
+ * <ul>
+ *   <li>legacy: every field key is RSA-encrypted for the recipient, {@code {"name": "<rsa>", ...}}, i.e. one RSA
+ *       operation per field and recipient;</li>
+ *   <li>key-encryption key (KEK): the field keys are wrapped (RFC 3394) under a random AES KEK and only the KEK is
+ *       RSA-encrypted, {@code {"kek:<id>": "<rsa>", "name": "kw:<id>:<wrapped>", ...}}, i.e. one RSA operation per
+ *       recipient. The id lets keys wrapped under different KEKs live in the same object, as happens when a
+ *       patient shares more fields with a doctor later on.</li>
+ * </ul>
+ * Both layouts are always readable; new keys use the KEK layout unless the {@code meditrack.keys.format} system
+ * property is set to {@code legacy}.
+ */
+public final class FieldKeyWrapper {
+
+    public static final String FORMAT_PROPERTY = "meditrack.keys.format";
+    public static final String FORMAT_LEGACY = "legacy";
+
+    public static final String KEK_PREFIX = "kek:";
+    public static final String WRAPPED_PREFIX = "kw:";
+
+    private static final String ALGORITHM_AES = "AES";
+    private static final String CIPHER_ALGO_AES_WRAP = "AESWrap";
+    private static final int KEK_ID_LENGTH = 6;
+
+    private static final String ERROR_MISSING_KEK = "Key-encryption key not found: ";
+
+    private FieldKeyWrapper() {
+    }
+
+    /**
+     * @return true if new keys are wrapped in the KEK layout.
+     */
+    public static boolean useKek() {
+        return !FORMAT_LEGACY.equals(System.getProperty(FORMAT_PROPERTY));
+    }
+
+    /**
+     * Wraps field keys for one or more recipients.
+     *
+     * @param  fields     The fields, in the order their members are added.
+     * @param  fieldKeys  The raw AES key of each field, or null for a field without a key.
+     * @param  recipients The public keys of the recipients.
+     * @return            One keys object per recipient, in the same order.
+     * @throws Exception  If an encryption error occurs.
+     */
+    public static JsonObject[] wrap(String[] fields, byte[][] fieldKeys, Key... recipients) throws Exception {
+        JsonObject[] wrapped = new JsonObject[recipients.length];
+        for (int r = 0; r < recipients.length; r++) {
+            wrapped[r] = new JsonObject();
+        }
+
+        if (!useKek()) {
+            // wraps every field key for every recipient concurrently; results come back in field order
+            List<String[]> encryptedKeys = FieldTaskRunner.map(fields, field -> {
+                byte[] fieldKey = fieldKeys[indexOf(fields, field)];
+                if (fieldKey == null) {
+                    return null;
+                }
+                String[] encrypted = new String[recipients.length];
+                for (int r = 0; r < recipients.length; r++) {
+                    encrypted[r] = Base64.getEncoder().encodeToString(CryptoLibrary.rsaEncrypt(fieldKey, recipients[r]));
+                }
+                return encrypted;
+            });
+            for (int i = 0; i < fields.length; i++) {
+                for (int r = 0; r < recipients.length && encryptedKeys.get(i) != null; r++) {
+                    wrapped[r].addProperty(fields[i], encryptedKeys.get(i)[r]);
+                }
+            }
+            return wrapped;
+        }
+
+        SecretKey kek = KeyMaterialService.nextAesKey();
+        byte[] id = new byte[KEK_ID_LENGTH];
+        KeyMaterialService.nextBytes(id);
+        String kekId = Base64.getUrlEncoder().withoutPadding().encodeToString(id);
+
+        // only the KEK goes through RSA, once per recipient
+        for (int r = 0; r < recipients.length; r++) {
+            wrapped[r].addProperty(KEK_PREFIX + kekId,
+                Base64.getEncoder().encodeToString(CryptoLibrary.rsaEncrypt(kek.getEncoded(), recipients[r])));
+        }
+
+        Cipher cipher = CryptoPrimitives.cipher(CIPHER_ALGO_AES_WRAP);
+        cipher.init(Cipher.WRAP_MODE, kek);
+        for (int i = 0; i < fields.length; i++) {
+            if (fieldKeys[i] == null) {
+                continue;
+            }
+            String wrappedKey = WRAPPED_PREFIX + kekId + ":" + Base64.getEncoder().encodeToString(
+                cipher.wrap(new SecretKeySpec(fieldKeys[i], ALGORITHM_AES)));
+            for (int r = 0; r < recipients.length; r++) {
+                wrapped[r].addProperty(fields[i], wrappedKey);
+            }
+        }
+        return wrapped;
+    }
+
+    /**
+     * Unwraps the key of a field from a keys object in either layout. RSA results are cached, so the KEK of a keys
+     * object is only RSA-decrypted once for all of its fields.
+     *
+     * @param  keys        The keys object of the recipient.
+     * @param  field       The field.
+     * @param  userPrivate The private key of the recipient.
+     * @return             The raw AES key of the field (to be wiped by the caller), or null if the field has none.
+     * @throws Exception   If a decryption error occurs.
+     */
+    public static byte[] unwrap(JsonObject keys, String field, Key userPrivate) throws Exception {
+        JsonElement value = keys.get(field);
+        if (value == null) {
+            return null;
+        }
+        String wrappedKey = value.getAsString();
+        if (!wrappedKey.startsWith(WRAPPED_PREFIX)) {
+            return CryptoLibrary.rsaUnwrapKey(Base64.getDecoder().decode(wrappedKey), userPrivate);
+        }
+
+        // kw:<id>:<wrapped>
+        int separator = wrappedKey.indexOf(':', WRAPPED_PREFIX.length());
+        String kekId = wrappedKey.substring(WRAPPED_PREFIX.length(), separator);
+        JsonElement encryptedKek = keys.get(KEK_PREFIX + kekId);
+        if (encryptedKek == null) {
+            throw new Exception(ERROR_MISSING_KEK + kekId);
+        }
+        byte[] kekBytes = CryptoLibrary.rsaUnwrapKey(Base64.getDecoder().decode(encryptedKek.getAsString()), userPrivate);
+        try {
+            Cipher cipher = CryptoPrimitives.cipher(CIPHER_ALGO_AES_WRAP);
+            cipher.init(Cipher.UNWRAP_MODE, new SecretKeySpec(kekBytes, ALGORITHM_AES));
+            Key fieldKey = cipher.unwrap(Base64.getDecoder().decode(wrappedKey.substring(separator + 1)),
+                ALGORITHM_AES, Cipher.SECRET_KEY);
+            return fieldKey.getEncoded();
+        } finally {
+            Arrays.fill(kekBytes, (byte) 0);
+        }
+    }
+
+    /**
+     * @return true if the member of a keys object holds a KEK rather than the key of a field.
+     */
+    public static boolean isKek(String member) {
+        return member.startsWith(KEK_PREFIX);
+    }
+
+    private static int indexOf(String[] fields, String field) {
+        for (int i = 0; i < fields.length; i++) {
+            if (fields[i].equals(field)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
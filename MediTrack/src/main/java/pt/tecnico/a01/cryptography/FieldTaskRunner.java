@@ -0,0 +1,116 @@
+package main.java.pt.tecnico.a01.cryptography;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Runs one task per record field, either sequentially or on a configurable executor.
+ *
+ * Every field of a MediTrack record is protected with its own AES key and IV, so encrypting, decrypting and
+ * wrapping the keys of different fields are independent operations. When an executor is configured the fields
+ * are processed concurrently; results are always returned in the order of the given fields, so callers that
+ * assemble JSON from them produce exactly the same layout as the sequential path.
+ *
+ * The executor can be set programmatically or through the {@code meditrack.crypto.parallelism} system property
+ * (a value above 1 creates a dedicated ForkJoinPool of that size). By default fields are processed sequentially.
+ */
+public final class FieldTaskRunner {
+
+    public static final String PARALLELISM_PROPERTY = "meditrack.crypto.parallelism";
+
+    @FunctionalInterface
+    public interface FieldTask<T> {
+        T apply(String field) throws Exception;
+    }
+
+    private static volatile ExecutorService executor = createDefaultExecutor();
+
+    private FieldTaskRunner() {
+    }
+
+    /**
+     * Sets the executor used to process fields concurrently.
+     *
+     * @param fieldExecutor  The executor to use, or null to process fields sequentially on the calling thread.
+     */
+    public static void setExecutor(ExecutorService fieldExecutor) {
+        executor = fieldExecutor;
+    }
+
+    /**
+     * @return The executor currently used to process fields, or null when running sequentially.
+     */
+    public static ExecutorService getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Applies the task to every field and returns the results in field order.
+     *
+     * @param  fields    The fields to process.
+     * @param  task      The per-field task. It must only touch state owned by its own field.
+     * @return           One result per field, in the same order as {@code fields}.
+     * @throws Exception The first failure, in field order, raised by any of the tasks.
+     */
+    public static <T> List<T> map(String[] fields, FieldTask<T> task) throws Exception {
+        List<T> results = new ArrayList<T>(fields.length);
+        ExecutorService fieldExecutor = executor;
+
+        if (fieldExecutor == null || fields.length < 2) {
+            for (String field : fields) {
+                results.add(task.apply(field));
+            }
+            return results;
+        }
+
+        List<Future<T>> futures = new ArrayList<Future<T>>(fields.length);
+        // pool threads log (or not) like the caller
+        boolean quiet = CryptoLibrary.isQuiet();
+        for (String field : fields) {
+            futures.add(fieldExecutor.submit(() -> {
+                boolean poolQuiet = CryptoLibrary.isQuiet();
+                CryptoLibrary.setQuiet(quiet);
+                try {
+                    return task.apply(field);
+                } finally {
+                    CryptoLibrary.setQuiet(poolQuiet);
+                }
+            }));
+        }
+        try {
+            for (Future<T> future : futures) {
+                results.add(future.get());
+            }
+        } catch (ExecutionException e) {
+            cancelAll(futures);
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw e;
+        } catch (InterruptedException e) {
+            cancelAll(futures);
+            Thread.currentThread().interrupt();
+            throw e;
+        }
+        return results;
+    }
+
+    private static void cancelAll(List<? extends Future<?>> futures) {
+        for (Future<?> future : futures) {
+            future.cancel(true);
+        }
+    }
+
+    private static ExecutorService createDefaultExecutor() {
+        int parallelism = Integer.getInteger(PARALLELISM_PROPERTY, 1);
+        if (parallelism <= 1) {
+            return null;
+        }
+        return new ForkJoinPool(parallelism);
+    }
+}
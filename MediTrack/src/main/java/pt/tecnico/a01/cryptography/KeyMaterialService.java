@@ -0,0 +1,168 @@
+package main.java.pt.tecnico.a01.cryptography;
+
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Source of the IVs and AES field keys used to protect records.
+ *
+ * Every thread owns a deterministic random bit generator, seeded from the platform's strong source and reseeded
+ * from it after a fixed number of requests, so generating an IV or a key never contends on a shared lock nor
+ * waits on the entropy pool (only the occasional reseed reads it). Optionally, a background thread keeps a ring
+ * buffer of pre-generated IVs and keys that callers take from first, falling back to their own generator when it
+ * runs dry.
+ *
+ * Tuned with system properties:
+ * <ul>
+ *   <li>{@code meditrack.random.algorithm}: the per-thread generator (SHA1PRNG by default, DRBG on Java 9+);</li>
+ *   <li>{@code meditrack.random.reseedInterval}: requests between reseeds (65536 by default);</li>
+ *   <li>{@code meditrack.random.poolSize}: IVs and keys kept pre-generated (0, no buffer, by default).</li>
+ * </ul>
+ */
+public final class KeyMaterialService {
+
+    public static final String ALGORITHM_PROPERTY = "meditrack.random.algorithm";
+    public static final String RESEED_INTERVAL_PROPERTY = "meditrack.random.reseedInterval";
+    public static final String POOL_SIZE_PROPERTY = "meditrack.random.poolSize";
+
+    private static final String DEFAULT_ALGORITHM = "SHA1PRNG";
+    private static final int DEFAULT_RESEED_INTERVAL = 65536;
+    private static final int SEED_LENGTH = 32;
+
+    private static final String ALGORITHM_AES = "AES";
+    // 128 bits
+    private static final int AES_KEY_LENGTH = 16;
+    private static final int AES_BLOCK_LENGTH = 16;
+
+    private static final String ALGORITHM = System.getProperty(ALGORITHM_PROPERTY, DEFAULT_ALGORITHM);
+    private static final int RESEED_INTERVAL = Math.max(1,
+        Integer.getInteger(RESEED_INTERVAL_PROPERTY, DEFAULT_RESEED_INTERVAL));
+
+    private static final SecureRandom SEED_SOURCE = createSeedSource();
+
+    private static final ThreadLocal<ReseedingRandom> RANDOM = new ThreadLocal<ReseedingRandom>() {
+        @Override
+        protected ReseedingRandom initialValue() {
+            return new ReseedingRandom();
+        }
+    };
+
+    private static final BlockingQueue<byte[]> IV_POOL = createPool();
+    private static final BlockingQueue<byte[]> KEY_POOL = createPool();
+
+    static {
+        if (IV_POOL != null) {
+            Thread filler = new Thread(KeyMaterialService::fillPools, "key-material-pool");
+            filler.setDaemon(true);
+            filler.start();
+        }
+    }
+
+    private KeyMaterialService() {
+    }
+
+    /**
+     * @param  algorithm The cipher algorithm, whose block size is the length of the IV.
+     * @return           A random IV.
+     * @throws GeneralSecurityException If the cipher algorithm is unavailable.
+     */
+    public static IvParameterSpec nextIv(String algorithm) throws GeneralSecurityException {
+        int length = CryptoPrimitives.cipher(algorithm).getBlockSize();
+        byte[] iv = length == AES_BLOCK_LENGTH ? take(IV_POOL) : null;
+        if (iv == null) {
+            iv = new byte[length];
+            nextBytes(iv);
+        }
+        return new IvParameterSpec(iv);
+    }
+
+    /**
+     * @return A random 128-bit AES key.
+     */
+    public static SecretKey nextAesKey() {
+        byte[] key = take(KEY_POOL);
+        if (key == null) {
+            key = new byte[AES_KEY_LENGTH];
+            nextBytes(key);
+        }
+        return new SecretKeySpec(key, ALGORITHM_AES);
+    }
+
+    /**
+     * Fills the array with random bytes from the calling thread's generator.
+     */
+    public static void nextBytes(byte[] bytes) {
+        RANDOM.get().nextBytes(bytes);
+    }
+
+    private static byte[] take(BlockingQueue<byte[]> pool) {
+        return pool == null ? null : pool.poll();
+    }
+
+    private static void fillPools() {
+        ReseedingRandom random = RANDOM.get();
+        try {
+            while (true) {
+                // blocks while both buffers are full
+                byte[] iv = new byte[AES_BLOCK_LENGTH];
+                random.nextBytes(iv);
+                IV_POOL.put(iv);
+                byte[] key = new byte[AES_KEY_LENGTH];
+                random.nextBytes(key);
+                KEY_POOL.put(key);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static BlockingQueue<byte[]> createPool() {
+        int size = Integer.getInteger(POOL_SIZE_PROPERTY, 0);
+        return size > 0 ? new ArrayBlockingQueue<byte[]>(size) : null;
+    }
+
+    private static SecureRandom createSeedSource() {
+        try {
+            return SecureRandom.getInstanceStrong();
+        } catch (NoSuchAlgorithmException e) {
+            return new SecureRandom();
+        }
+    }
+
+    /** A generator owned by a single thread that reseeds itself from the strong source. */
+    private static final class ReseedingRandom {
+        private final SecureRandom random;
+        private int untilReseed;
+
+        private ReseedingRandom() {
+            SecureRandom generator;
+            try {
+                generator = SecureRandom.getInstance(ALGORITHM);
+            } catch (NoSuchAlgorithmException e) {
+                generator = new SecureRandom();
+            }
+            this.random = generator;
+            reseed();
+        }
+
+        private void nextBytes(byte[] bytes) {
+            if (--untilReseed <= 0) {
+                reseed();
+            }
+            random.nextBytes(bytes);
+        }
+
+        private void reseed() {
+            // supplements, never replaces, the generator's state
+            random.setSeed(SEED_SOURCE.generateSeed(SEED_LENGTH));
+            untilReseed = RESEED_INTERVAL;
+        }
+    }
+}
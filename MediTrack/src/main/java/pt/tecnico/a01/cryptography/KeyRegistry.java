@@ -0,0 +1,210 @@
+package main.java.pt.tecnico.a01.cryptography;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.Key;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Directory-backed registry of the RSA keys of MediTrack's parties.
+ *
+ * Keys are parsed from their PKCS8/X509 files the first time they are asked for and then served from memory, so
+ * resolving a key on a hot path is a hash lookup. Doctors are found by name from the files in the directory
+ * ({@code dr<Name>pub.key} and {@code dr<Name>priv.key}), so adding a doctor only means adding their key files.
+ *
+ * When watching, a background thread reloads the directory as files are added, replaced or removed: the cached
+ * key of a changed file is dropped and parsed again on its next lookup.
+ */
+public class KeyRegistry implements AutoCloseable {
+
+    public static final String SERVER_PUBLIC = "server.pubkey";
+    public static final String SERVER_PRIVATE = "server.privkey";
+    public static final String USER_PUBLIC = "user.pubkey";
+    public static final String USER_PRIVATE = "user.privkey";
+    public static final String SOS_PUBLIC = "sospub.key";
+    public static final String SOS_PRIVATE = "sospriv.key";
+
+    private static final Pattern DOCTOR_KEY_FILE = Pattern.compile("dr(.+)(pub|priv)\\.key");
+    private static final String DOCTOR_PREFIX = "dr";
+    private static final String PUBLIC_SUFFIX = "pub.key";
+    private static final String PRIVATE_SUFFIX = "priv.key";
+
+    private static final String ERROR_UNKNOWN_DOCTOR = "Doctor does not exist. ";
+    private static final String ERROR_WATCH = "Error watching key directory: ";
+
+    private final Path directory;
+    private final ConcurrentMap<String, Key> keys = new ConcurrentHashMap<String, Key>();
+    private final Set<String> doctors = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private volatile WatchService watchService;
+
+    /**
+     * @param  directory The directory holding the key files, e.g. ../keys.
+     * @throws Exception If the directory cannot be listed.
+     */
+    public KeyRegistry(String directory) throws Exception {
+        this.directory = Paths.get(directory).toAbsolutePath().normalize();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(this.directory)) {
+            for (Path file : files) {
+                indexFile(file.getFileName().toString());
+            }
+        }
+    }
+
+    public Key getPublicKey(String fileName) throws Exception {
+        Key key = keys.get(fileName);
+        if (key == null) {
+            key = CryptoLibrary.readPublicKey(resolve(fileName));
+            keys.put(fileName, key);
+        }
+        return key;
+    }
+
+    public Key getPrivateKey(String fileName) throws Exception {
+        Key key = keys.get(fileName);
+        if (key == null) {
+            key = CryptoLibrary.readPrivateKey(resolve(fileName));
+            keys.put(fileName, key);
+        }
+        return key;
+    }
+
+    /**
+     * @param  doctorName The name of the doctor, e.g. Smith.
+     * @return            The doctor's public key.
+     * @throws Exception  If there is no such doctor or the key file cannot be read.
+     */
+    public Key getDoctorPublicKey(String doctorName) throws Exception {
+        return getPublicKey(getDoctorPublicKeyFile(doctorName));
+    }
+
+    public Key getDoctorPrivateKey(String doctorName) throws Exception {
+        if (!doctors.contains(doctorName)) {
+            throw new Exception(ERROR_UNKNOWN_DOCTOR);
+        }
+        return getPrivateKey(DOCTOR_PREFIX + doctorName + PRIVATE_SUFFIX);
+    }
+
+    /**
+     * @return The name of the doctor's public key file, relative to the registry's directory.
+     */
+    public String getDoctorPublicKeyFile(String doctorName) throws Exception {
+        if (!doctors.contains(doctorName)) {
+            throw new Exception(ERROR_UNKNOWN_DOCTOR);
+        }
+        return DOCTOR_PREFIX + doctorName + PUBLIC_SUFFIX;
+    }
+
+    public boolean isDoctor(String doctorName) {
+        return doctors.contains(doctorName);
+    }
+
+    public Set<String> getDoctors() {
+        return Collections.unmodifiableSet(new TreeSet<String>(doctors));
+    }
+
+    /**
+     * Starts reloading the directory on a daemon thread as key files change.
+     *
+     * @return           This registry.
+     * @throws Exception If the directory cannot be watched.
+     */
+    public synchronized KeyRegistry watch() throws Exception {
+        if (watchService != null) {
+            return this;
+        }
+        watchService = FileSystems.getDefault().newWatchService();
+        directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+            StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+        Thread watcher = new Thread(this::processEvents, "key-registry-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+        return this;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (watchService != null) {
+            watchService.close();
+            watchService = null;
+        }
+    }
+
+    private void processEvents() {
+        WatchService service = watchService;
+        try {
+            while (true) {
+                WatchKey watchKey = service.take();
+                for (WatchEvent<?> event : watchKey.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        // events were lost, start over from the directory's contents
+                        reload();
+                        continue;
+                    }
+                    String fileName = ((Path) event.context()).getFileName().toString();
+                    keys.remove(fileName);
+                    if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                        unindexFile(fileName);
+                    } else {
+                        indexFile(fileName);
+                    }
+                }
+                if (!watchKey.reset()) {
+                    return;
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // closed
+        } catch (Exception e) {
+            System.out.println(ERROR_WATCH + e);
+        }
+    }
+
+    private void reload() throws IOException {
+        keys.clear();
+        doctors.clear();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                indexFile(file.getFileName().toString());
+            }
+        }
+    }
+
+    private void indexFile(String fileName) {
+        Matcher matcher = DOCTOR_KEY_FILE.matcher(fileName);
+        if (matcher.matches() && matcher.group(2).equals("pub")) {
+            doctors.add(matcher.group(1));
+        }
+    }
+
+    private void unindexFile(String fileName) {
+        Matcher matcher = DOCTOR_KEY_FILE.matcher(fileName);
+        if (matcher.matches() && matcher.group(2).equals("pub")) {
+            doctors.remove(matcher.group(1));
+        }
+    }
+
+    private String resolve(String fileName) throws Exception {
+        Path file = directory.resolve(fileName).normalize();
+        // key names come from requests, they must not escape the directory
+        if (!directory.equals(file.getParent())) {
+            throw new Exception("Invalid key file: " + fileName);
+        }
+        return file.toString();
+    }
+}
@@ -0,0 +1,354 @@
+package main.java.pt.tecnico.a01.cryptography;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Map;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+
+/**
+ * Compact binary form of a protected record, used to store and transfer records instead of Base64-in-JSON.
+ *
+ * An envelope is the magic "MTRE", a format version byte and a sequence of length-prefixed sections, one per part
+ * of the protected record:
+ * <pre>
+ *   RECORD (ciphertexts), IV, KEYS (wrapped keys), SOS (SOS keys), FRESHNESS (refreshToken), DIGEST (hash),
+ *   MERKLE, METADATA (any other metadata member, e.g. version and id), HEADER (any other top level member,
+ *   e.g. name), END
+ * </pre>
+ * Each section holds a single value in a small tagged encoding. Every string that is canonical Base64 (all
+ * ciphertexts, IVs, keys, hashes and tokens) is stored as its raw bytes, which is what removes the ~33% Base64
+ * overhead; other strings are kept as UTF-8. Decoding gives back exactly the JSON the envelope was encoded from,
+ * so check, unprotect and the Merkle tree work on it unchanged.
+ *
+ * Envelopes are decoded from untrusted input (request and response bodies), so every length and count read is
+ * checked against the bytes left before anything is allocated, and values may only be nested a few levels deep.
+ */
+public final class RecordEnvelope {
+
+    public static final String MEDIA_TYPE = "application/octet-stream";
+
+    private static final byte[] MAGIC = {'M', 'T', 'R', 'E'};
+    private static final int FORMAT_VERSION = 1;
+
+    private static final int SECTION_END = 0;
+    private static final int SECTION_RECORD = 1;
+    private static final int SECTION_IV = 2;
+    private static final int SECTION_KEYS = 3;
+    private static final int SECTION_SOS = 4;
+    private static final int SECTION_FRESHNESS = 5;
+    private static final int SECTION_DIGEST = 6;
+    private static final int SECTION_MERKLE = 7;
+    private static final int SECTION_METADATA = 8;
+    private static final int SECTION_HEADER = 9;
+
+    private static final int TAG_NULL = 0;
+    private static final int TAG_BINARY = 1;
+    private static final int TAG_STRING = 2;
+    private static final int TAG_NUMBER = 3;
+    private static final int TAG_TRUE = 4;
+    private static final int TAG_FALSE = 5;
+    private static final int TAG_ARRAY = 6;
+    private static final int TAG_OBJECT = 7;
+
+    private static final String RECORD = "record";
+    private static final String METADATA = "metadata";
+    private static final String INITIALIZATION_VECTOR = "iv";
+    private static final String KEYS = "keys";
+    private static final String SOS = "sos";
+    private static final String REFRESH_TOKEN = "refreshToken";
+    private static final String HASH = "hash";
+
+    private static final String ERROR_NOT_ENVELOPE = "Not a record envelope";
+    private static final String ERROR_VERSION = "Unsupported record envelope version: ";
+    private static final String ERROR_SECTION = "Unknown record envelope section: ";
+    private static final String ERROR_TAG = "Unknown record envelope value: ";
+    private static final String ERROR_LENGTH = "Malformed record envelope: length or count out of bounds: ";
+    private static final String ERROR_DEPTH = "Malformed record envelope: values nested too deeply";
+    private static final String ERROR_NOT_OBJECT = "Malformed record envelope: expected an object in section ";
+    private static final String ERROR_TRAILING = "Malformed record envelope: trailing bytes in section ";
+
+    // records are at most a few levels deep (record, field, consultation, ...)
+    private static final int MAX_DEPTH = 32;
+
+    private RecordEnvelope() {
+    }
+
+    /**
+     * @param  protectedRecord The protected record ({"record": ..., "metadata": ..., ...}).
+     * @return                 Its envelope.
+     */
+    public static byte[] encode(JsonObject protectedRecord) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.write(MAGIC);
+        out.writeByte(FORMAT_VERSION);
+
+        JsonObject metadata = protectedRecord.has(METADATA) ? protectedRecord.getAsJsonObject(METADATA) : null;
+        writeSection(out, SECTION_RECORD, protectedRecord.get(RECORD));
+        if (metadata != null) {
+            writeSection(out, SECTION_IV, metadata.get(INITIALIZATION_VECTOR));
+            writeSection(out, SECTION_KEYS, metadata.get(KEYS));
+            writeSection(out, SECTION_SOS, metadata.get(SOS));
+            writeSection(out, SECTION_FRESHNESS, metadata.get(REFRESH_TOKEN));
+            writeSection(out, SECTION_DIGEST, metadata.get(HASH));
+            writeSection(out, SECTION_MERKLE, metadata.get(RecordMerkleTree.MERKLE));
+            writeSection(out, SECTION_METADATA, remainder(metadata, INITIALIZATION_VECTOR, KEYS, SOS, REFRESH_TOKEN,
+                HASH, RecordMerkleTree.MERKLE));
+        }
+        writeSection(out, SECTION_HEADER, remainder(protectedRecord, RECORD, METADATA));
+        out.writeByte(SECTION_END);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @param  envelope  An envelope produced by {@link #encode(JsonObject)}.
+     * @return           The protected record it holds.
+     * @throws Exception If the bytes are not a (supported) envelope.
+     */
+    public static JsonObject decode(byte[] envelope) throws Exception {
+        if (!isEnvelope(envelope)) {
+            throw new Exception(ERROR_NOT_ENVELOPE);
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(envelope));
+        in.skipBytes(MAGIC.length);
+        int version = in.readUnsignedByte();
+        if (version != FORMAT_VERSION) {
+            throw new Exception(ERROR_VERSION + version);
+        }
+
+        JsonObject protectedRecord = new JsonObject();
+        JsonObject metadata = null;
+        JsonObject metadataRemainder = null;
+        JsonElement freshness = null;
+        JsonElement merkle = null;
+        JsonElement digest = null;
+        int section;
+        while ((section = in.readUnsignedByte()) != SECTION_END) {
+            DataInputStream payload = new DataInputStream(new ByteArrayInputStream(readBytes(in)));
+            JsonElement value = readValue(payload, 0);
+            if (payload.available() != 0) {
+                throw new Exception(ERROR_TRAILING + section);
+            }
+            if (section != SECTION_RECORD && section != SECTION_HEADER && metadata == null) {
+                metadata = new JsonObject();
+            }
+            switch (section) {
+                case SECTION_RECORD:
+                    protectedRecord.add(RECORD, value);
+                    break;
+                case SECTION_IV:
+                    metadata.add(INITIALIZATION_VECTOR, value);
+                    break;
+                case SECTION_KEYS:
+                    metadata.add(KEYS, value);
+                    break;
+                case SECTION_SOS:
+                    metadata.add(SOS, value);
+                    break;
+                case SECTION_FRESHNESS:
+                    freshness = value;
+                    break;
+                case SECTION_DIGEST:
+                    digest = value;
+                    break;
+                case SECTION_MERKLE:
+                    merkle = value;
+                    break;
+                case SECTION_METADATA:
+                    metadataRemainder = asObject(value, section);
+                    break;
+                case SECTION_HEADER:
+                    if (metadata != null) {
+                        // same member order as the records written by protect
+                        addAll(metadata, metadataRemainder);
+                        addIfPresent(metadata, REFRESH_TOKEN, freshness);
+                        addIfPresent(metadata, RecordMerkleTree.MERKLE, merkle);
+                        addIfPresent(metadata, HASH, digest);
+                        protectedRecord.add(METADATA, metadata);
+                    }
+                    addAll(protectedRecord, asObject(value, section));
+                    break;
+                default:
+                    throw new Exception(ERROR_SECTION + section);
+            }
+        }
+        return protectedRecord;
+    }
+
+    /**
+     * @return true if the bytes start like an envelope (as opposed to, e.g., a JSON record).
+     */
+    public static boolean isEnvelope(byte[] bytes) {
+        return bytes != null && bytes.length > MAGIC.length
+            && Arrays.equals(Arrays.copyOf(bytes, MAGIC.length), MAGIC);
+    }
+
+    /**
+     * @return The decoded bytes if the value is canonical Base64 (it encodes back to the very same string), else
+     *         null.
+     */
+    public static byte[] decodeCanonicalBase64(String value) {
+        if (value.isEmpty() || value.length() % 4 != 0) {
+            return null;
+        }
+        try {
+            byte[] decoded = Base64.getDecoder().decode(value);
+            return Base64.getEncoder().encodeToString(decoded).equals(value) ? decoded : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static void writeSection(DataOutputStream out, int section, JsonElement value) throws IOException {
+        if (value == null) {
+            return;
+        }
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        writeValue(new DataOutputStream(payload), value);
+        out.writeByte(section);
+        out.writeInt(payload.size());
+        payload.writeTo(out);
+    }
+
+    private static void writeValue(DataOutputStream out, JsonElement value) throws IOException {
+        if (value.isJsonNull()) {
+            out.writeByte(TAG_NULL);
+        } else if (value.isJsonArray()) {
+            JsonArray array = value.getAsJsonArray();
+            out.writeByte(TAG_ARRAY);
+            out.writeInt(array.size());
+            for (JsonElement element : array) {
+                writeValue(out, element);
+            }
+        } else if (value.isJsonObject()) {
+            JsonObject object = value.getAsJsonObject();
+            out.writeByte(TAG_OBJECT);
+            out.writeInt(object.size());
+            for (Map.Entry<String, JsonElement> member : object.entrySet()) {
+                writeBytes(out, member.getKey().getBytes(StandardCharsets.UTF_8));
+                writeValue(out, member.getValue());
+            }
+        } else {
+            JsonPrimitive primitive = value.getAsJsonPrimitive();
+            if (primitive.isBoolean()) {
+                out.writeByte(primitive.getAsBoolean() ? TAG_TRUE : TAG_FALSE);
+            } else if (primitive.isNumber()) {
+                out.writeByte(TAG_NUMBER);
+                writeBytes(out, primitive.getAsString().getBytes(StandardCharsets.UTF_8));
+            } else {
+                byte[] binary = decodeCanonicalBase64(primitive.getAsString());
+                out.writeByte(binary != null ? TAG_BINARY : TAG_STRING);
+                writeBytes(out, binary != null ? binary : primitive.getAsString().getBytes(StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    private static JsonElement readValue(DataInputStream in, int depth) throws Exception {
+        if (depth > MAX_DEPTH) {
+            throw new Exception(ERROR_DEPTH);
+        }
+        int tag = in.readUnsignedByte();
+        switch (tag) {
+            case TAG_NULL:
+                return JsonNull.INSTANCE;
+            case TAG_BINARY:
+                return new JsonPrimitive(Base64.getEncoder().encodeToString(readBytes(in)));
+            case TAG_STRING:
+                return new JsonPrimitive(new String(readBytes(in), StandardCharsets.UTF_8));
+            case TAG_NUMBER:
+                return JsonParser.parseString(new String(readBytes(in), StandardCharsets.UTF_8));
+            case TAG_TRUE:
+                return new JsonPrimitive(true);
+            case TAG_FALSE:
+                return new JsonPrimitive(false);
+            case TAG_ARRAY: {
+                // every element takes at least its tag byte
+                int size = readLength(in);
+                JsonArray array = new JsonArray();
+                for (int i = 0; i < size; i++) {
+                    array.add(readValue(in, depth + 1));
+                }
+                return array;
+            }
+            case TAG_OBJECT: {
+                int size = readLength(in);
+                JsonObject object = new JsonObject();
+                for (int i = 0; i < size; i++) {
+                    String name = new String(readBytes(in), StandardCharsets.UTF_8);
+                    object.add(name, readValue(in, depth + 1));
+                }
+                return object;
+            }
+            default:
+                throw new Exception(ERROR_TAG + tag);
+        }
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws Exception {
+        byte[] bytes = new byte[readLength(in)];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    /**
+     * Reads a length or a count, which can be no larger than the number of bytes left in the input (the input is
+     * always an array, so available() is exact).
+     */
+    private static int readLength(DataInputStream in) throws Exception {
+        int length = in.readInt();
+        if (length < 0 || length > in.available()) {
+            throw new Exception(ERROR_LENGTH + length);
+        }
+        return length;
+    }
+
+    private static JsonObject asObject(JsonElement value, int section) throws Exception {
+        if (!value.isJsonObject()) {
+            throw new Exception(ERROR_NOT_OBJECT + section);
+        }
+        return value.getAsJsonObject();
+    }
+
+    private static JsonObject remainder(JsonObject object, String... excluded) {
+        JsonObject remainder = new JsonObject();
+        for (Map.Entry<String, JsonElement> member : object.entrySet()) {
+            if (!Arrays.asList(excluded).contains(member.getKey())) {
+                remainder.add(member.getKey(), member.getValue());
+            }
+        }
+        return remainder;
+    }
+
+    private static void addAll(JsonObject target, JsonObject members) {
+        if (members == null) {
+            return;
+        }
+        for (Map.Entry<String, JsonElement> member : members.entrySet()) {
+            target.add(member.getKey(), member.getValue());
+        }
+    }
+
+    private static void addIfPresent(JsonObject target, String name, JsonElement value) {
+        if (value != null) {
+            target.add(name, value);
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package main.java.pt.tecnico.a01.cryptography;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+/**
+ * Merkle tree over the protected fields of a record, used as its integrity digest.
+ *
+ * Every protected field is a leaf hashed over its stored (Base64) ciphertext. A chunked field, such as
+ * consultationRecords, is itself a subtree with one leaf per segment. The root over all field hashes is what the
+ * server signs. The tree is kept in the record metadata:
+ *
+ * <pre>
+ * "merkle": {
+ *   "fields": {"name": "&lt;field hash&gt;", ..., "consultationRecords": "&lt;subtree root&gt;"},
+ *   "consultationRecords": ["&lt;segment hash&gt;", ...],
+ *   "root": "&lt;root hash&gt;"
+ * }
+ * </pre>
+ *
+ * Because the hashes of every field are stored, a record holding only some of its fields (e.g. those a physician
+ * has keys for) can still be verified against the signed root, and appending a segment only hashes the new
+ * segment before recomputing the interior nodes from the stored leaf hashes.
+ */
+public final class RecordMerkleTree {
+
+    public static final String MERKLE = "merkle";
+    public static final String FIELDS = "fields";
+    public static final String ROOT = "root";
+
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+
+    // domain separation between the different kinds of nodes
+    private static final byte LEAF = 0x00;
+    private static final byte NODE = 0x01;
+    private static final byte SUBTREE = 0x02;
+    private static final byte EMPTY = 0x03;
+
+    private RecordMerkleTree() {
+    }
+
+    /**
+     * Builds the tree of a protected record.
+     *
+     * @param  record    The protected record (the "record" object), with string or chunked (array) fields.
+     * @return           The tree, in the layout described above.
+     * @throws Exception If the digest algorithm is unavailable.
+     */
+    public static JsonObject build(JsonObject record) throws Exception {
+        JsonObject merkle = new JsonObject();
+        JsonObject fieldHashes = new JsonObject();
+        merkle.add(FIELDS, fieldHashes);
+
+        for (String field : CryptoLibrary.FIELDS) {
+            JsonElement value = record.get(field);
+            if (value == null) {
+                continue;
+            }
+            byte[] fieldHash;
+            if (value.isJsonArray()) {
+                JsonArray segmentHashes = new JsonArray();
+                List<byte[]> leaves = new ArrayList<byte[]>();
+                JsonArray segments = value.getAsJsonArray();
+                for (int i = 0; i < segments.size(); i++) {
+                    byte[] leaf = segmentLeaf(field, i, segments.get(i).getAsString());
+                    leaves.add(leaf);
+                    segmentHashes.add(encode(leaf));
+                }
+                merkle.add(field, segmentHashes);
+                fieldHash = subtree(field, leaves);
+            } else {
+                fieldHash = leaf(field, value.getAsString());
+            }
+            fieldHashes.addProperty(field, encode(fieldHash));
+        }
+        merkle.addProperty(ROOT, encode(root(fieldHashes)));
+        return merkle;
+    }
+
+    /**
+     * Updates the tree after a segment was appended to a chunked field. Only the new segment is hashed; the field
+     * subtree and the root are recomputed from the stored hashes.
+     *
+     * @param  merkle    The tree to update in place.
+     * @param  field     The chunked field, e.g. consultationRecords.
+     * @param  segment   The Base64 ciphertext of the appended segment.
+     * @return           The new root.
+     * @throws Exception If the digest algorithm is unavailable.
+     */
+    public static byte[] appendSegment(JsonObject merkle, String field, String segment) throws Exception {
+        JsonArray segmentHashes = merkle.has(field) ? merkle.get(field).getAsJsonArray() : new JsonArray();
+        segmentHashes.add(encode(segmentLeaf(field, segmentHashes.size(), segment)));
+        merkle.add(field, segmentHashes);
+
+        JsonObject fieldHashes = merkle.get(FIELDS).getAsJsonObject();
+        fieldHashes.addProperty(field, encode(subtree(field, decodeAll(segmentHashes))));
+        byte[] root = root(fieldHashes);
+        merkle.addProperty(ROOT, encode(root));
+        return root;
+    }
+
+    /**
+     * Verifies a possibly partial record against a signed root. Fields present in the record are rehashed; fields
+     * that were left out are taken from the stored field hashes.
+     *
+     * @param  record      The protected record, possibly with only some of its fields.
+     * @param  merkle      The tree stored in the record metadata.
+     * @param  signedRoot  The root recovered from the server's signature.
+     * @return             true if the present fields and the stored hashes match the signed root.
+     * @throws Exception   If the digest algorithm is unavailable.
+     */
+    public static boolean verify(JsonObject record, JsonObject merkle, byte[] signedRoot) throws Exception {
+        JsonObject storedHashes = merkle.get(FIELDS).getAsJsonObject();
+        JsonObject fieldHashes = new JsonObject();
+
+        for (Map.Entry<String, JsonElement> member : record.entrySet()) {
+            if (!storedHashes.has(member.getKey())) {
+                // a field that is not covered by the signed tree
+                return false;
+            }
+        }
+        for (Map.Entry<String, JsonElement> stored : storedHashes.entrySet()) {
+            String field = stored.getKey();
+            JsonElement value = record.get(field);
+            if (value == null) {
+                fieldHashes.add(field, stored.getValue());
+            } else if (value.isJsonArray()) {
+                List<byte[]> leaves = new ArrayList<byte[]>();
+                JsonArray segments = value.getAsJsonArray();
+                for (int i = 0; i < segments.size(); i++) {
+                    leaves.add(segmentLeaf(field, i, segments.get(i).getAsString()));
+                }
+                fieldHashes.addProperty(field, encode(subtree(field, leaves)));
+            } else {
+                fieldHashes.addProperty(field, encode(leaf(field, value.getAsString())));
+            }
+        }
+        return MessageDigest.isEqual(root(fieldHashes), signedRoot);
+    }
+
+    // --------------------------------------------------------------------------------------------
+    //  Hashes
+    // --------------------------------------------------------------------------------------------
+
+    /**
+     * @return The hash of a field stored as a single Base64 ciphertext.
+     */
+    public static byte[] leaf(String field, String value) throws Exception {
+        MessageDigest digest = CryptoPrimitives.messageDigest(DIGEST_ALGORITHM);
+        digest.update(LEAF);
+        digest.update(field.getBytes(StandardCharsets.UTF_8));
+        digest.update(LEAF);
+        digest.update(value.getBytes(StandardCharsets.UTF_8));
+        return digest.digest();
+    }
+
+    /**
+     * @return A new digest that yields {@link #leaf(String, String)} once fed the field's Base64 ciphertext, for
+     *         callers that produce the ciphertext as a stream.
+     */
+    public static MessageDigest leafDigest(String field) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance(DIGEST_ALGORITHM);
+        digest.update(LEAF);
+        digest.update(field.getBytes(StandardCharsets.UTF_8));
+        digest.update(LEAF);
+        return digest;
+    }
+
+    /**
+     * @return The hash of the segment at the given position of a chunked field.
+     */
+    public static byte[] segmentLeaf(String field, int index, String segment) throws Exception {
+        MessageDigest digest = CryptoPrimitives.messageDigest(DIGEST_ALGORITHM);
+        digest.update(LEAF);
+        digest.update(field.getBytes(StandardCharsets.UTF_8));
+        digest.update(LEAF);
+        digest.update(ByteBuffer.allocate(4).putInt(index).array());
+        digest.update(segment.getBytes(StandardCharsets.UTF_8));
+        return digest.digest();
+    }
+
+    /**
+     * @return The hash of a chunked field, given the hashes of its segments.
+     */
+    public static byte[] subtree(String field, List<byte[]> segmentLeaves) throws Exception {
+        byte[] subtreeRoot = merkleRoot(segmentLeaves);
+        MessageDigest digest = CryptoPrimitives.messageDigest(DIGEST_ALGORITHM);
+        digest.update(SUBTREE);
+        digest.update(field.getBytes(StandardCharsets.UTF_8));
+        digest.update(SUBTREE);
+        digest.update(subtreeRoot);
+        return digest.digest();
+    }
+
+    /**
+     * @return The root over the given field hashes, in the order they are stored.
+     */
+    public static byte[] root(JsonObject fieldHashes) throws Exception {
+        List<byte[]> nodes = new ArrayList<byte[]>();
+        for (Map.Entry<String, JsonElement> fieldHash : fieldHashes.entrySet()) {
+            nodes.add(Base64.getDecoder().decode(fieldHash.getValue().getAsString()));
+        }
+        return merkleRoot(nodes);
+    }
+
+    private static byte[] merkleRoot(List<byte[]> leaves) throws Exception {
+        if (leaves.isEmpty()) {
+            return CryptoPrimitives.messageDigest(DIGEST_ALGORITHM).digest(new byte[] {EMPTY});
+        }
+        List<byte[]> level = leaves;
+        while (level.size() > 1) {
+            List<byte[]> next = new ArrayList<byte[]>((level.size() + 1) / 2);
+            for (int i = 0; i < level.size(); i += 2) {
+                if (i + 1 == level.size()) {
+                    // an odd node is promoted to the next level unchanged
+                    next.add(level.get(i));
+                    continue;
+                }
+                MessageDigest digest = CryptoPrimitives.messageDigest(DIGEST_ALGORITHM);
+                digest.update(NODE);
+                digest.update(level.get(i));
+                digest.update(level.get(i + 1));
+                next.add(digest.digest());
+            }
+            level = next;
+        }
+        return level.get(0);
+    }
+
+    public static String encode(byte[] hash) {
+        return Base64.getEncoder().encodeToString(hash);
+    }
+
+    private static List<byte[]> decodeAll(JsonArray hashes) {
+        List<byte[]> decoded = new ArrayList<byte[]>(hashes.size());
+        for (JsonElement hash : hashes) {
+            decoded.add(Base64.getDecoder().decode(hash.getAsString()));
+        }
+        return decoded;
+    }
+}
@@ -0,0 +1,862 @@
+package main.java.pt.tecnico.a01.cryptography;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestOutputStream;
+import java.security.Key;
+import java.security.MessageDigest;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
+import javax.crypto.CipherOutputStream;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Bounded-memory variant of the file based {@link CryptoLibrary#protect(String, String, Key, Key, Key, String...)}
+ * and {@link CryptoLibrary#unprotect(String, String, Key, String...)} operations.
+ *
+ * The in-memory path parses the whole record into a JsonObject, serializes each array field into a single String
+ * and Base64-encodes the whole ciphertext, so a long patient history is held several times over. Here the input
+ * is read with a JsonReader one value (one consultation record) at a time and pushed through a
+ * CipherOutputStream and a Base64 encoder into a temporary file per field; unprotect finds where every field
+ * starts in a single scan of the file, then seeks to each one and streams its Base64 string back through a
+ * decoder and a CipherInputStream. Only the metadata and a single array element are ever held in memory.
+ *
+ * The produced files use exactly the same format, plaintext serialization and digest as the in-memory path, so
+ * both can read each other's output.
+ */
+public final class StreamingRecordCodec {
+
+    public static final String THRESHOLD_PROPERTY = "meditrack.stream.threshold";
+
+    // 16 MiB
+    private static final long DEFAULT_THRESHOLD = 16L * 1024 * 1024;
+
+    private static final String PATIENT = "patient";
+    private static final String RECORD = "record";
+    private static final String METADATA = "metadata";
+    private static final String HASH = "hash";
+    private static final String REFRESH_TOKEN = "refreshToken";
+    private static final String INITIALIZATION_VECTOR = "iv";
+    private static final String KEYS = "keys";
+    private static final String SOS = "sos";
+    private static final String CONSULTATION_RECORDS = "consultationRecords";
+    private static final String KNOWN_ALLERGIES = "knownAllergies";
+    private static final String SEGMENT = "segment";
+    private static final String INDENT = "  ";
+    private static final String TEMP_PREFIX = "meditrack-";
+
+    private static final String MESSAGE_STREAMING = "Streaming ";
+    private static final String ERROR_MISSING_FIELD = "Field not found in record: ";
+    private static final String ERROR_MISSING_OBJECT = "Object not found in record: ";
+    private static final String ERROR_MALFORMED = "Malformed JSON record at character ";
+
+    // mirrors JsonElement.toString(), which is what the in-memory path encrypts
+    private static final Gson PLAIN_GSON = new GsonBuilder().disableHtmlEscaping().serializeNulls().create();
+    // mirrors CryptoLibrary.writeJsonObjectToFile
+    private static final Gson PRETTY_GSON = new GsonBuilder().setPrettyPrinting().create();
+
+    private StreamingRecordCodec() {
+    }
+
+    /**
+     * Decides whether a file should be processed with the streaming codec. Files larger than the
+     * {@code meditrack.stream.threshold} system property (in bytes, 16 MiB by default) are streamed.
+     *
+     * @param  inputFile The path of the file about to be processed.
+     * @return           true if the file should be streamed.
+     */
+    public static boolean shouldStream(String inputFile) {
+        long threshold = Long.getLong(THRESHOLD_PROPERTY, DEFAULT_THRESHOLD);
+        return new File(inputFile).length() > threshold;
+    }
+
+    // --------------------------------------------------------------------------------------------
+    //  Main operations
+    // --------------------------------------------------------------------------------------------
+
+    /**
+     * Streaming counterpart of {@link CryptoLibrary#protect(String, String, Key, Key, Key, String...)}.
+     *
+     * @param inputFile     The path of the input file containing the JSON object to be encrypted.
+     * @param outputFile    The path of the output file where the encrypted JSON object will be saved.
+     * @param serverPrivate The private key of the server, used to sign the digest and the freshness token.
+     * @param userPublic    The public key of the user, used to wrap the field keys.
+     * @param sosPublic     The public key used to wrap the emergency copy of the field keys.
+     * @param fields        The fields to protect, or none to protect every field.
+     * @throws Exception    If any error occurs during file reading/writing or encryption processes.
+     */
+    public static void protect(String inputFile, String outputFile, Key serverPrivate, Key userPublic, Key sosPublic,
+                       String... fields) throws Exception {
+        CryptoLibrary.log(MESSAGE_STREAMING + inputFile);
+        String[] targets = fields.length == 0 ? CryptoLibrary.FIELDS : fields;
+        Map<String, EncryptedField> encrypted = new LinkedHashMap<String, EncryptedField>();
+        FieldCipher fieldCipher = FieldCipher.create();
+
+        try {
+            encryptFieldsToTempFiles(inputFile, targets, fieldCipher, encrypted);
+            for (String field : targets) {
+                if (!encrypted.containsKey(field)) {
+                    throw new Exception(ERROR_MISSING_FIELD + field);
+                }
+            }
+
+            // the wrapped keys only depend on the generated field keys
+            byte[][] fieldKeys = new byte[targets.length][];
+            for (int i = 0; i < targets.length; i++) {
+                fieldKeys[i] = encrypted.get(targets[i]).key;
+            }
+            JsonObject[] wrappedKeys = FieldKeyWrapper.wrap(targets, fieldKeys, userPublic, sosPublic);
+
+            // the Merkle tree follows the field order of the in-memory path, whatever the order of the targets
+            JsonObject fieldHashes = new JsonObject();
+            for (String field : CryptoLibrary.FIELDS) {
+                if (encrypted.containsKey(field)) {
+                    fieldHashes.addProperty(field, RecordMerkleTree.encode(encrypted.get(field).hash));
+                }
+            }
+            String root = RecordMerkleTree.encode(RecordMerkleTree.root(fieldHashes));
+
+            try (Writer out = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(outputFile), StandardCharsets.UTF_8))) {
+                out.write("{\n" + INDENT + quote(RECORD) + ": {\n");
+                for (int i = 0; i < targets.length; i++) {
+                    String separator = i + 1 < targets.length ? "," : "";
+                    out.write(INDENT + INDENT + quote(targets[i]) + ": ");
+                    copyJson(encrypted.get(targets[i]).ciphertext, out);
+                    out.write(separator + "\n");
+                }
+                out.write(INDENT + "},\n");
+
+                String freshness = Base64.getEncoder().encodeToString(
+                    CryptoLibrary.rsaEncrypt(Instant.now().toString().getBytes(), serverPrivate));
+                String hash = CryptoLibrary.signDigest(Base64.getDecoder().decode(root), serverPrivate);
+
+                out.write(INDENT + quote(METADATA) + ": {\n");
+                writeMembers(out, INITIALIZATION_VECTOR, targets,
+                    i -> copyJson(encrypted.get(targets[i]).ivs, out));
+                out.write(",\n");
+                writeKeys(out, KEYS, wrappedKeys[0]);
+                out.write(",\n");
+                writeKeys(out, SOS, wrappedKeys[1]);
+                out.write(",\n");
+                if (fieldCipher.getVersion() != FieldCipher.VERSION_CBC) {
+                    out.write(INDENT + INDENT + quote(FieldCipher.VERSION) + ": " + fieldCipher.getVersion() + ",\n");
+                    out.write(INDENT + INDENT + quote(FieldCipher.RECORD_ID) + ": "
+                        + quote(fieldCipher.getRecordId()) + ",\n");
+                }
+                out.write(INDENT + INDENT + quote(REFRESH_TOKEN) + ": " + quote(freshness) + ",\n");
+                writeMerkleTree(out, fieldHashes, encrypted, root);
+                out.write(",\n");
+                out.write(INDENT + INDENT + quote(HASH) + ": " + quote(hash) + "\n");
+                out.write(INDENT + "}\n}");
+            }
+        } finally {
+            for (EncryptedField field : encrypted.values()) {
+                field.dispose();
+            }
+        }
+    }
+
+    /**
+     * Streaming counterpart of {@link CryptoLibrary#unprotect(String, String, Key, String...)}.
+     *
+     * @param inputFile     The path of the input file containing the JSON object to be decrypted.
+     * @param outputFile    The path of the output file where the decrypted JSON object will be saved.
+     * @param userPrivate   The private key of the user, used to unwrap the field keys.
+     * @param fields        The fields to unprotect, or none to unprotect every protected field.
+     * @throws Exception    If any error occurs during file reading/writing or decryption processes.
+     */
+    public static void unprotect(String inputFile, String outputFile, Key userPrivate, String... fields)
+                       throws Exception {
+        CryptoLibrary.log(MESSAGE_STREAMING + inputFile);
+        List<String> targets = Arrays.asList(fields.length == 0 ? CryptoLibrary.FIELDS : fields);
+        MemberIndex index = indexMembers(inputFile);
+        JsonObject metadata = readMetadata(inputFile, index);
+        JsonObject iv = metadata.get(INITIALIZATION_VECTOR).getAsJsonObject();
+        JsonObject keys = metadata.get(KEYS).getAsJsonObject();
+        FieldCipher fieldCipher = FieldCipher.of(metadata);
+
+        try (Writer fileWriter = new FileWriter(outputFile);
+             JsonWriter out = new JsonWriter(fileWriter)) {
+            out.setIndent(INDENT);
+            out.beginObject();
+            out.name(PATIENT);
+            out.beginObject();
+            for (String field : CryptoLibrary.FIELDS) {
+                out.name(field);
+                if (!targets.contains(field) || iv.get(field) == null || keys.get(field) == null) {
+                    out.value(new String());
+                    continue;
+                }
+                CryptoLibrary.log("Decrypting field: " + field);
+                Key key = CryptoLibrary.unwrapFieldKey(keys, field, userPrivate);
+
+                if (iv.get(field).isJsonArray()) {
+                    writeDecryptedSegments(inputFile, index, field, key, fieldCipher, out);
+                    continue;
+                }
+                Cipher cipher = fieldCipher.init(Cipher.DECRYPT_MODE, field, key,
+                    Base64.getDecoder().decode(iv.get(field).getAsString()));
+                try (InputStream file = openAt(inputFile, index.record.get(field), field)) {
+                    JsonScanner scanner = new JsonScanner(file);
+                    scanner.expect('"');
+                    try (InputStream plaintext = new CipherInputStream(Base64.getDecoder().wrap(
+                             new AsciiInputStream(scanner.stringReader())), cipher)) {
+                        writeDecryptedValue(field, plaintext, out);
+                    }
+                }
+            }
+            out.endObject();
+            out.endObject();
+        }
+    }
+
+    // --------------------------------------------------------------------------------------------
+    //  Utilities - protect
+    // --------------------------------------------------------------------------------------------
+
+    /**
+     * A protected field whose ciphertext and IV(s) are kept as JSON text in temporary files, along with its hash
+     * in the record's Merkle tree (and the hashes of its segments, for a chunked field).
+     */
+    private static final class EncryptedField {
+        private File ciphertext;
+        private File ivs;
+        private File segmentHashes;
+        private byte[] key;
+        private byte[] hash;
+
+        private void dispose() {
+            if (key != null) {
+                Arrays.fill(key, (byte) 0);
+            }
+            if (ciphertext != null) {
+                ciphertext.delete();
+            }
+            if (ivs != null) {
+                ivs.delete();
+            }
+            if (segmentHashes != null) {
+                segmentHashes.delete();
+            }
+        }
+    }
+
+    @FunctionalInterface
+    private interface MemberWriter {
+        void write(int index) throws Exception;
+    }
+
+    /**
+     * Reads the "patient" object of the input file one member at a time and encrypts the selected members into
+     * temporary files holding their Base64 ciphertext.
+     */
+    private static void encryptFieldsToTempFiles(String inputFile, String[] targets, FieldCipher fieldCipher,
+                        Map<String, EncryptedField> encrypted) throws Exception {
+        List<String> selected = Arrays.asList(targets);
+        try (JsonReader reader = new JsonReader(new BufferedReader(new InputStreamReader(
+                 new FileInputStream(inputFile), StandardCharsets.UTF_8)))) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (!reader.nextName().equals(PATIENT)) {
+                    reader.skipValue();
+                    continue;
+                }
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String field = reader.nextName();
+                    if (!selected.contains(field) || encrypted.containsKey(field)) {
+                        reader.skipValue();
+                        continue;
+                    }
+                    EncryptedField encryptedField = new EncryptedField();
+                    encrypted.put(field, encryptedField);
+                    encryptField(field, reader, fieldCipher, encryptedField);
+                }
+                reader.endObject();
+            }
+            reader.endObject();
+        }
+    }
+
+    private static void encryptField(String field, JsonReader reader, FieldCipher fieldCipher,
+                        EncryptedField encryptedField) throws Exception {
+        Key key = CryptoLibrary.generateKeyAES();
+        encryptedField.key = key.getEncoded();
+        encryptedField.ciphertext = File.createTempFile(TEMP_PREFIX + field, null);
+        encryptedField.ivs = File.createTempFile(TEMP_PREFIX + field, null);
+
+        if (field.equals(CONSULTATION_RECORDS) && reader.peek() == JsonToken.BEGIN_ARRAY) {
+            encryptedField.segmentHashes = File.createTempFile(TEMP_PREFIX + field, null);
+            encryptSegments(field, reader, key, fieldCipher, encryptedField);
+            return;
+        }
+
+        byte[] iv = fieldCipher.nextIv();
+        try (Writer ivs = new OutputStreamWriter(new FileOutputStream(encryptedField.ivs), StandardCharsets.US_ASCII)) {
+            ivs.write(quote(Base64.getEncoder().encodeToString(iv)));
+        }
+
+        Cipher cipher = fieldCipher.init(Cipher.ENCRYPT_MODE, field, key, iv);
+        // the leaf is hashed over the Base64 text as it is written
+        MessageDigest leaf = RecordMerkleTree.leafDigest(field);
+        try (OutputStream file = new BufferedOutputStream(new FileOutputStream(encryptedField.ciphertext))) {
+            file.write('"');
+            try (OutputStream ciphertext = new CipherOutputStream(Base64.getEncoder().wrap(
+                     new DigestOutputStream(new UnclosableOutputStream(file), leaf)), cipher)) {
+                writePlaintextValue(field, reader, ciphertext);
+            }
+            file.write('"');
+        }
+        encryptedField.hash = leaf.digest();
+    }
+
+    /**
+     * Encrypts the consultation records one at a time into the chunked layout, writing the segment and IV arrays
+     * as JSON text.
+     */
+    private static void encryptSegments(String field, JsonReader reader, Key key, FieldCipher fieldCipher,
+                        EncryptedField encryptedField) throws Exception {
+        List<byte[]> leaves = new ArrayList<byte[]>();
+        try (Writer segments = new BufferedWriter(new OutputStreamWriter(
+                 new FileOutputStream(encryptedField.ciphertext), StandardCharsets.US_ASCII));
+             Writer ivs = new BufferedWriter(new OutputStreamWriter(
+                 new FileOutputStream(encryptedField.ivs), StandardCharsets.US_ASCII));
+             Writer hashes = new BufferedWriter(new OutputStreamWriter(
+                 new FileOutputStream(encryptedField.segmentHashes), StandardCharsets.US_ASCII))) {
+            segments.write('[');
+            ivs.write('[');
+            hashes.write('[');
+            reader.beginArray();
+            for (int i = 0; reader.hasNext(); i++) {
+                // only one consultation record is materialized at a time
+                JsonObject segment = CryptoLibrary.encryptConsultationRecord(JsonParser.parseReader(reader), key,
+                    fieldCipher);
+                String segmentText = segment.get(SEGMENT).getAsString();
+                byte[] leaf = RecordMerkleTree.segmentLeaf(field, i, segmentText);
+                leaves.add(leaf);
+                String separator = i > 0 ? "," : "";
+                segments.write(separator + quote(segmentText));
+                ivs.write(separator + quote(segment.get(INITIALIZATION_VECTOR).getAsString()));
+                hashes.write(separator + quote(RecordMerkleTree.encode(leaf)));
+            }
+            reader.endArray();
+            segments.write(']');
+            ivs.write(']');
+            hashes.write(']');
+        }
+        encryptedField.hash = RecordMerkleTree.subtree(field, leaves);
+    }
+
+    private static void writePlaintextValue(String field, JsonReader reader, OutputStream ciphertext)
+                        throws Exception {
+        // the in-memory path uses the platform charset (String.getBytes()), so we do too
+        Writer plaintext = new OutputStreamWriter(ciphertext, Charset.defaultCharset());
+        if (field.equals(KNOWN_ALLERGIES) && reader.peek() == JsonToken.BEGIN_ARRAY) {
+            JsonWriter writer = new JsonWriter(plaintext);
+            writer.setLenient(true);
+            writer.beginArray();
+            reader.beginArray();
+            while (reader.hasNext()) {
+                // only one element is materialized at a time
+                PLAIN_GSON.toJson(JsonParser.parseReader(reader), writer);
+            }
+            reader.endArray();
+            writer.endArray();
+            writer.flush();
+        } else {
+            plaintext.write(reader.nextString());
+            plaintext.flush();
+        }
+    }
+
+    /**
+     * Copies a temporary file holding the JSON text of a protected value (Base64 strings, possibly in an array) to
+     * the output.
+     */
+    private static void copyJson(File ciphertext, Writer out) throws Exception {
+        byte[] buffer = new byte[8192];
+        char[] chars = new char[buffer.length];
+        try (InputStream in = new BufferedInputStream(new FileInputStream(ciphertext))) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                for (int i = 0; i < read; i++) {
+                    chars[i] = (char) buffer[i];
+                }
+                out.write(chars, 0, read);
+            }
+        }
+    }
+
+    /**
+     * Writes the "merkle" member of the metadata in the layout of {@link RecordMerkleTree#build(JsonObject)}. The
+     * segment hashes of chunked fields are copied from their temporary files.
+     */
+    private static void writeMerkleTree(Writer out, JsonObject fieldHashes, Map<String, EncryptedField> encrypted,
+                        String root) throws Exception {
+        String[] fields = fieldHashes.keySet().toArray(new String[0]);
+        out.write(INDENT + INDENT + quote(RecordMerkleTree.MERKLE) + ": {\n");
+        writeMembers(out, RecordMerkleTree.FIELDS, fields,
+            i -> out.write(quote(fieldHashes.get(fields[i]).getAsString())), INDENT);
+        for (String field : fields) {
+            if (encrypted.get(field).segmentHashes != null) {
+                out.write(",\n" + INDENT + INDENT + INDENT + quote(field) + ": ");
+                copyJson(encrypted.get(field).segmentHashes, out);
+            }
+        }
+        out.write(",\n" + INDENT + INDENT + INDENT + quote(RecordMerkleTree.ROOT) + ": " + quote(root) + "\n");
+        out.write(INDENT + INDENT + "}");
+    }
+
+    private static void writeMembers(Writer out, String name, String[] fields, MemberWriter value) throws Exception {
+        writeMembers(out, name, fields, value, "");
+    }
+
+    private static void writeMembers(Writer out, String name, String[] fields, MemberWriter value, String indent)
+                        throws Exception {
+        out.write(indent + INDENT + INDENT + quote(name) + ": {\n");
+        for (int i = 0; i < fields.length; i++) {
+            out.write(indent + INDENT + INDENT + INDENT + quote(fields[i]) + ": ");
+            value.write(i);
+            out.write(i + 1 < fields.length ? ",\n" : "\n");
+        }
+        out.write(indent + INDENT + INDENT + "}");
+    }
+
+    /**
+     * Writes a keys object, whose members are the wrapped field keys and, in the KEK layout, the wrapped KEK.
+     */
+    private static void writeKeys(Writer out, String name, JsonObject keys) throws Exception {
+        String[] members = keys.keySet().toArray(new String[0]);
+        writeMembers(out, name, members, i -> out.write(quote(keys.get(members[i]).getAsString())));
+    }
+
+    private static String quote(String value) {
+        return "\"" + value + "\"";
+    }
+
+    // --------------------------------------------------------------------------------------------
+    //  Utilities - unprotect
+    // --------------------------------------------------------------------------------------------
+
+    /**
+     * Where the values of a protected file start, in bytes from the start of the file: every member of the record,
+     * the metadata, and every member of the metadata's IVs.
+     */
+    private static final class MemberIndex {
+        private final Map<String, Long> record = new LinkedHashMap<String, Long>();
+        private final Map<String, Long> ivs = new LinkedHashMap<String, Long>();
+        private Long metadata;
+    }
+
+    /**
+     * Indexes a protected file in a single scan, skipping over the values without materializing them.
+     */
+    private static MemberIndex indexMembers(String inputFile) throws Exception {
+        MemberIndex index = new MemberIndex();
+        try (InputStream file = openAt(inputFile, 0L, RECORD)) {
+            JsonScanner scanner = new JsonScanner(file);
+            scanner.expect('{');
+            String member;
+            while ((member = scanner.nextMember()) != null) {
+                if (member.equals(RECORD)) {
+                    indexObject(scanner, index.record);
+                } else if (member.equals(METADATA)) {
+                    index.metadata = scanner.offset();
+                    scanner.expect('{');
+                    String name;
+                    while ((name = scanner.nextMember()) != null) {
+                        if (name.equals(INITIALIZATION_VECTOR)) {
+                            indexObject(scanner, index.ivs);
+                        } else {
+                            scanner.skipValue();
+                        }
+                    }
+                } else {
+                    scanner.skipValue();
+                }
+            }
+        }
+        return index;
+    }
+
+    private static void indexObject(JsonScanner scanner, Map<String, Long> offsets) throws Exception {
+        scanner.expect('{');
+        String member;
+        while ((member = scanner.nextMember()) != null) {
+            offsets.put(member, scanner.offset());
+            scanner.skipValue();
+        }
+    }
+
+    /**
+     * Reads only the metadata of a protected file, from its offset. The Merkle tree and the per-segment IV arrays
+     * of chunked fields are skipped, the latter replaced by an empty array marking the field as chunked.
+     */
+    private static JsonObject readMetadata(String inputFile, MemberIndex index) throws Exception {
+        if (index.metadata == null) {
+            throw new Exception(ERROR_MISSING_OBJECT + METADATA);
+        }
+        try (JsonReader reader = new JsonReader(new BufferedReader(new InputStreamReader(
+                 openAt(inputFile, index.metadata, METADATA), StandardCharsets.UTF_8)))) {
+            JsonObject metadata = new JsonObject();
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (name.equals(RecordMerkleTree.MERKLE)) {
+                    // one hash per segment, and not needed to decrypt
+                    reader.skipValue();
+                    continue;
+                }
+                if (!name.equals(INITIALIZATION_VECTOR)) {
+                    metadata.add(name, JsonParser.parseReader(reader));
+                    continue;
+                }
+                JsonObject iv = new JsonObject();
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String field = reader.nextName();
+                    if (reader.peek() == JsonToken.BEGIN_ARRAY) {
+                        reader.skipValue();
+                        iv.add(field, new JsonArray());
+                    } else {
+                        iv.addProperty(field, reader.nextString());
+                    }
+                }
+                reader.endObject();
+                metadata.add(INITIALIZATION_VECTOR, iv);
+            }
+            reader.endObject();
+            return metadata;
+        }
+    }
+
+    /**
+     * Decrypts a chunked field by walking its segment array and its IV array side by side, one segment at a time.
+     */
+    private static void writeDecryptedSegments(String inputFile, MemberIndex index, String field, Key key,
+                        FieldCipher fieldCipher, JsonWriter out) throws Exception {
+        try (InputStream segmentsFile = openAt(inputFile, index.record.get(field), field);
+             InputStream ivsFile = openAt(inputFile, index.ivs.get(field), INITIALIZATION_VECTOR)) {
+            JsonScanner segments = new JsonScanner(segmentsFile);
+            JsonScanner ivs = new JsonScanner(ivsFile);
+            segments.expect('[');
+            ivs.expect('[');
+            out.beginArray();
+            while (segments.nextStringElement()) {
+                if (!ivs.nextStringElement()) {
+                    throw new Exception(ERROR_MISSING_FIELD + INITIALIZATION_VECTOR);
+                }
+                byte[] iv = Base64.getDecoder().decode(ivs.readString());
+                Cipher cipher = fieldCipher.init(Cipher.DECRYPT_MODE, field, key, iv);
+                try (InputStream plaintext = new CipherInputStream(Base64.getDecoder().wrap(
+                         new AsciiInputStream(segments.stringReader())), cipher)) {
+                    JsonElement consultationRecord = JsonParser.parseReader(
+                        new InputStreamReader(plaintext, Charset.defaultCharset()));
+                    PRETTY_GSON.toJson(consultationRecord, out);
+                }
+            }
+            out.endArray();
+        }
+    }
+
+    private static void writeDecryptedValue(String field, InputStream plaintext, JsonWriter out) throws Exception {
+        Reader reader = new BufferedReader(new InputStreamReader(plaintext, Charset.defaultCharset()));
+        if (field.equals(CONSULTATION_RECORDS) || field.equals(KNOWN_ALLERGIES)) {
+            JsonReader arrayReader = new JsonReader(reader);
+            out.beginArray();
+            arrayReader.beginArray();
+            while (arrayReader.hasNext()) {
+                JsonElement element = JsonParser.parseReader(arrayReader);
+                PRETTY_GSON.toJson(element, out);
+            }
+            arrayReader.endArray();
+            out.endArray();
+        } else {
+            StringWriter value = new StringWriter();
+            char[] buffer = new char[1024];
+            int read;
+            while ((read = reader.read(buffer)) != -1) {
+                value.write(buffer, 0, read);
+            }
+            out.value(value.toString());
+        }
+    }
+
+    /**
+     * Opens the file at a value found by {@link #indexMembers(String)}.
+     *
+     * @param member The member whose value it is, to report it if the file has no such member.
+     */
+    private static InputStream openAt(String inputFile, Long offset, String member) throws Exception {
+        if (offset == null) {
+            throw new Exception(ERROR_MISSING_FIELD + member);
+        }
+        FileInputStream file = new FileInputStream(inputFile);
+        try {
+            file.getChannel().position(offset);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+        return new BufferedInputStream(file);
+    }
+
+    /**
+     * A minimal scanner over the bytes of a JSON file: Gson's JsonReader always materializes whole strings, which
+     * is exactly what must be avoided for multi-megabyte ciphertexts, and cannot tell where in the file a value
+     * starts. The structure of JSON is ASCII and no byte of a multi-byte UTF-8 character is, so the scanner works
+     * on bytes; the strings it returns (member names, Base64 text) are compared or decoded as ASCII.
+     */
+    private static final class JsonScanner {
+        private final InputStream in;
+        private int peeked = -2;
+        private long position;
+
+        private JsonScanner(InputStream in) {
+            this.in = in;
+        }
+
+        /** The number of bytes consumed, i.e. the offset of the next one when the scanner started at 0. */
+        private long offset() {
+            return peeked == -2 ? position : position - 1;
+        }
+
+        private int read() throws IOException {
+            if (peeked != -2) {
+                int c = peeked;
+                peeked = -2;
+                return c;
+            }
+            position++;
+            return in.read();
+        }
+
+        private int peek() throws IOException {
+            if (peeked == -2) {
+                peeked = in.read();
+                position++;
+            }
+            return peeked;
+        }
+
+        private int nextNonWhitespace() throws IOException {
+            int c;
+            do {
+                c = read();
+            } while (c == ' ' || c == '\n' || c == '\r' || c == '\t');
+            return c;
+        }
+
+        private void expect(char expected) throws Exception {
+            if (nextNonWhitespace() != expected) {
+                throw new Exception(ERROR_MALFORMED + position);
+            }
+        }
+
+        /**
+         * Moves to the next member of the current object and returns its name, leaving the scanner on its value.
+         * Returns null at the end of the object.
+         */
+        private String nextMember() throws Exception {
+            int c = nextNonWhitespace();
+            if (c == ',') {
+                c = nextNonWhitespace();
+            }
+            if (c == '}') {
+                return null;
+            }
+            if (c != '"') {
+                throw new Exception(ERROR_MALFORMED + position);
+            }
+            String name = readString();
+            expect(':');
+            return name;
+        }
+
+        /**
+         * Moves to the next element of the current array, which must be a string; the opening quote is consumed.
+         * Returns false at the end of the array.
+         */
+        private boolean nextStringElement() throws Exception {
+            int c = nextNonWhitespace();
+            if (c == ',') {
+                c = nextNonWhitespace();
+            }
+            if (c == ']') {
+                return false;
+            }
+            if (c != '"') {
+                throw new Exception(ERROR_MALFORMED + position);
+            }
+            return true;
+        }
+
+        private String readString() throws IOException {
+            StringBuilder builder = new StringBuilder();
+            Reader string = stringReader();
+            int c;
+            while ((c = string.read()) != -1) {
+                builder.append((char) c);
+            }
+            return builder.toString();
+        }
+
+        private void skipValue() throws Exception {
+            int c = nextNonWhitespace();
+            if (c == '"') {
+                Reader string = stringReader();
+                while (string.read() != -1) {
+                    // skip
+                }
+            } else if (c == '{' || c == '[') {
+                int depth = 1;
+                while (depth > 0) {
+                    c = read();
+                    if (c == -1) {
+                        throw new Exception(ERROR_MALFORMED + position);
+                    } else if (c == '"') {
+                        Reader string = stringReader();
+                        while (string.read() != -1) {
+                            // skip
+                        }
+                    } else if (c == '{' || c == '[') {
+                        depth++;
+                    } else if (c == '}' || c == ']') {
+                        depth--;
+                    }
+                }
+            } else {
+                // literal: number, true, false or null
+                while ((c = peek()) != -1 && c != ',' && c != '}' && c != ']' && !Character.isWhitespace(c)) {
+                    read();
+                }
+            }
+        }
+
+        /** Returns a Reader over the rest of the current string, decoding escapes; the opening quote is consumed. */
+        private Reader stringReader() {
+            return new Reader() {
+                private boolean done;
+
+                @Override
+                public int read() throws IOException {
+                    if (done) {
+                        return -1;
+                    }
+                    int c = JsonScanner.this.read();
+                    if (c == -1) {
+                        throw new EOFException();
+                    }
+                    if (c == '"') {
+                        done = true;
+                        return -1;
+                    }
+                    if (c != '\\') {
+                        return c;
+                    }
+                    int escaped = JsonScanner.this.read();
+                    switch (escaped) {
+                        case 'b': return '\b';
+                        case 'f': return '\f';
+                        case 'n': return '\n';
+                        case 'r': return '\r';
+                        case 't': return '\t';
+                        case 'u':
+                            char[] hex = new char[4];
+                            for (int i = 0; i < hex.length; i++) {
+                                hex[i] = (char) JsonScanner.this.read();
+                            }
+                            return Integer.parseInt(new String(hex), 16);
+                        default: return escaped;
+                    }
+                }
+
+                @Override
+                public int read(char[] buffer, int offset, int length) throws IOException {
+                    int count = 0;
+                    while (count < length) {
+                        int c = read();
+                        if (c == -1) {
+                            break;
+                        }
+                        buffer[offset + count++] = (char) c;
+                    }
+                    return count == 0 && length > 0 ? -1 : count;
+                }
+
+                @Override
+                public void close() throws IOException {
+                    // consumers such as the Base64 decoder may stop at the padding, before the closing quote
+                    while (read() != -1) {
+                        // skip
+                    }
+                }
+            };
+        }
+    }
+
+    /** Lets a stream wrapper (e.g. the Base64 encoder) be closed without closing the underlying stream. */
+    private static final class UnclosableOutputStream extends FilterOutputStream {
+        private UnclosableOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            out.write(buffer, offset, length);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+
+    /** Adapts a Reader over ASCII characters (such as Base64 text) to an InputStream. */
+    private static final class AsciiInputStream extends InputStream {
+        private final Reader reader;
+
+        private AsciiInputStream(Reader reader) {
+            this.reader = reader;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return reader.read();
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            char[] chars = new char[length];
+            int read = reader.read(chars, 0, length);
+            for (int i = 0; i < read; i++) {
+                buffer[offset + i] = (byte) chars[i];
+            }
+            return read;
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.close();
+        }
+    }
+}
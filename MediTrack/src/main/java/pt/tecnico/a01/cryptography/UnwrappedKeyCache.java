@@ -0,0 +1,180 @@
+package main.java.pt.tecnico.a01.cryptography;
+
+import java.security.Key;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded, time-limited cache of RSA-unwrapped field keys.
+ *
+ * Opening the same record (or the same set of shared keys) repeatedly would otherwise pay one RSA private-key
+ * operation per field every time. Entries are keyed by the SHA-256 of the wrapped key bytes and remember which
+ * private key unwrapped them, so a lookup with any other key is a miss. Evicted, expired and invalidated entries
+ * have their key material overwritten with zeros.
+ *
+ * The size and lifetime can be tuned with the {@code meditrack.keycache.maxEntries} and
+ * {@code meditrack.keycache.ttlMillis} system properties; a size of 0 disables caching.
+ */
+public final class UnwrappedKeyCache {
+
+    public static final String MAX_ENTRIES_PROPERTY = "meditrack.keycache.maxEntries";
+    public static final String TTL_PROPERTY = "meditrack.keycache.ttlMillis";
+
+    private static final int DEFAULT_MAX_ENTRIES = 1024;
+    // 5 minutes
+    private static final long DEFAULT_TTL = 300000;
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+
+    private static final UnwrappedKeyCache INSTANCE = new UnwrappedKeyCache(
+        Integer.getInteger(MAX_ENTRIES_PROPERTY, DEFAULT_MAX_ENTRIES),
+        Long.getLong(TTL_PROPERTY, DEFAULT_TTL));
+
+    private static final class Entry {
+        private final byte[] unwrapped;
+        private final Key unwrapKey;
+        private final long expiresAt;
+
+        private Entry(byte[] unwrapped, Key unwrapKey, long expiresAt) {
+            this.unwrapped = unwrapped;
+            this.unwrapKey = unwrapKey;
+            this.expiresAt = expiresAt;
+        }
+
+        private void wipe() {
+            Arrays.fill(unwrapped, (byte) 0);
+        }
+    }
+
+    private final int maxEntries;
+    private final long ttl;
+    private final LinkedHashMap<String, Entry> entries;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public UnwrappedKeyCache(int maxEntries, long ttl) {
+        this.maxEntries = maxEntries;
+        this.ttl = ttl;
+        // access order, so the eldest entry is the least recently used one
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() > UnwrappedKeyCache.this.maxEntries) {
+                    eldest.getValue().wipe();
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * @return The process-wide cache used by {@link CryptoLibrary}.
+     */
+    public static UnwrappedKeyCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Looks up the unwrapped form of a wrapped key.
+     *
+     * @param  wrapped    The RSA-wrapped key bytes.
+     * @param  unwrapKey  The private key the caller would use to unwrap them.
+     * @return            A copy of the unwrapped key bytes, or null on a miss.
+     */
+    public synchronized byte[] get(byte[] wrapped, Key unwrapKey) throws Exception {
+        if (maxEntries <= 0) {
+            misses++;
+            return null;
+        }
+        String id = fingerprint(wrapped);
+        Entry entry = entries.get(id);
+        if (entry == null || !entry.unwrapKey.equals(unwrapKey)) {
+            misses++;
+            return null;
+        }
+        if (entry.expiresAt <= System.currentTimeMillis()) {
+            entries.remove(id);
+            entry.wipe();
+            evictions++;
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.unwrapped.clone();
+    }
+
+    /**
+     * Stores the unwrapped form of a wrapped key. The given bytes are copied.
+     *
+     * @param wrapped    The RSA-wrapped key bytes.
+     * @param unwrapKey  The private key that unwrapped them.
+     * @param unwrapped  The unwrapped key bytes.
+     */
+    public synchronized void put(byte[] wrapped, Key unwrapKey, byte[] unwrapped) throws Exception {
+        if (maxEntries <= 0) {
+            return;
+        }
+        Entry previous = entries.put(fingerprint(wrapped),
+            new Entry(unwrapped.clone(), unwrapKey, System.currentTimeMillis() + ttl));
+        if (previous != null) {
+            previous.wipe();
+        }
+    }
+
+    /**
+     * Removes a single wrapped key from the cache, e.g. after the record it belongs to was re-keyed.
+     *
+     * @param wrapped  The RSA-wrapped key bytes.
+     */
+    public synchronized void invalidate(byte[] wrapped) throws Exception {
+        Entry entry = entries.remove(fingerprint(wrapped));
+        if (entry != null) {
+            entry.wipe();
+        }
+    }
+
+    /**
+     * Removes and wipes every cached key.
+     */
+    public synchronized void invalidateAll() {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            iterator.next().wipe();
+            iterator.remove();
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("UnwrappedKeyCache[size=%d, hits=%d, misses=%d, evictions=%d]",
+            entries.size(), hits, misses, evictions);
+    }
+
+    private static String fingerprint(byte[] wrapped) throws Exception {
+        MessageDigest digest = CryptoPrimitives.messageDigest(DIGEST_ALGORITHM);
+        return Base64.getEncoder().encodeToString(digest.digest(wrapped));
+    }
+}
@@ -0,0 +1,65 @@
+package main.java.pt.tecnico.a01.server;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads the UTF-8 lines of a stream, none of which is held in memory beyond a maximum length.
+ *
+ * A line longer than the maximum is skipped up to its end instead of being read whole: {@link #readLine()}
+ * returns an empty line for it and {@link #isTooLong()} is true until the next line is read. Lines end with
+ * "\n" or "\r\n".
+ */
+final class BoundedLineReader {
+
+    private final InputStream in;
+    private final int maxBytes;
+    private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+    private boolean tooLong;
+
+    BoundedLineReader(InputStream in, int maxBytes) {
+        this.in = new BufferedInputStream(in);
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return The next line, without its end, or null at the end of the stream.
+     */
+    String readLine() throws IOException {
+        line.reset();
+        tooLong = false;
+        int b = in.read();
+        if (b == -1) {
+            return null;
+        }
+        while (b != -1 && b != '\n') {
+            if (line.size() < maxBytes) {
+                line.write(b);
+            } else {
+                tooLong = true;
+            }
+            b = in.read();
+        }
+        if (tooLong) {
+            line.reset();
+            return "";
+        }
+        byte[] bytes = line.toByteArray();
+        int length = bytes.length > 0 && bytes[bytes.length - 1] == '\r' ? bytes.length - 1 : bytes.length;
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return true if the last line read was longer than the maximum, and skipped.
+     */
+    boolean isTooLong() {
+        return tooLong;
+    }
+
+    int getMaxBytes() {
+        return maxBytes;
+    }
+}
@@ -0,0 +1,106 @@
+package main.java.pt.tecnico.a01.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed pool for the server's CPU-bound crypto work: signing digests, and unwrapping and rewrapping SOS keys.
+ *
+ * Request threads mostly wait on Mongo; if each of them also ran RSA operations, a burst of SOS or write requests
+ * would occupy every core and every request thread at once, and reads that only need I/O would queue behind them.
+ * Crypto tasks are instead run on a pool sized to the cores, behind a bounded queue. When the queue is full the
+ * task is rejected with a {@link ServerBusyException} straight away, instead of piling up work whose latency would
+ * grow without bound.
+ *
+ * The pool size and queue length are configured in {@link ServerConfig}.
+ */
+public class ComputePool {
+
+    private static final String ERROR_BUSY = "Server busy, retry later";
+    private static final String ERROR_INTERRUPTED = "Interrupted while waiting for a crypto task";
+
+    private final ThreadPoolExecutor executor;
+
+    public ComputePool(int threads, int queueLength) {
+        if (threads < 1 || queueLength < 1) {
+            throw new IllegalArgumentException("Invalid compute pool size: " + threads + " thread(s), "
+                + queueLength + " queued task(s)");
+        }
+        AtomicInteger count = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(queueLength), runnable -> {
+                Thread thread = new Thread(runnable, "crypto-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+    }
+
+    /**
+     * Runs the task on the pool and waits for its result.
+     *
+     * @throws ServerBusyException If the pool's queue is full.
+     * @throws Exception           The task's own failure.
+     */
+    public <T> T call(Callable<T> task) throws Exception {
+        Future<T> future;
+        try {
+            future = executor.submit(task);
+        } catch (RejectedExecutionException e) {
+            throw new ServerBusyException(ERROR_BUSY);
+        }
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw (Error) cause;
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new Exception(ERROR_INTERRUPTED);
+        }
+    }
+
+    /**
+     * Submits every task at once, for bulk work. Tasks the queue has no room for are run on the calling thread
+     * instead of being rejected, which slows the caller down to the pace of the pool.
+     *
+     * @return One future per task, in task order.
+     */
+    public <T> List<Future<T>> submitAll(List<Callable<T>> tasks) {
+        List<Future<T>> futures = new ArrayList<Future<T>>(tasks.size());
+        for (Callable<T> task : tasks) {
+            try {
+                futures.add(executor.submit(task));
+            } catch (RejectedExecutionException e) {
+                FutureTask<T> future = new FutureTask<T>(task);
+                future.run();
+                futures.add(future);
+            }
+        }
+        return futures;
+    }
+
+    public int getThreads() {
+        return executor.getMaximumPoolSize();
+    }
+
+    public int getQueueLength() {
+        return executor.getQueue().size() + executor.getQueue().remainingCapacity();
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,104 @@
+package main.java.pt.tecnico.a01.server;
+
+import main.java.pt.tecnico.a01.cryptography.CryptoLibrary;
+
+import java.security.Key;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hands out freshness tokens signed once per epoch instead of once per response.
+ *
+ * A background thread signs the token of each epoch as it starts, so under load the RSA private-key operation is
+ * paid once per epoch regardless of the number of requests; every response of the epoch carries the same token.
+ * If the signer falls behind (e.g. after a long GC pause), the token is signed on the calling thread.
+ *
+ * The epoch length, in milliseconds, is set with the {@code meditrack.freshness.epochMillis} system property
+ * (1 second by default). Clients accept a token for their freshness range plus one epoch.
+ */
+public class FreshnessService {
+
+    public static final String EPOCH_PROPERTY = "meditrack.freshness.epochMillis";
+
+    private static final long DEFAULT_EPOCH_MILLIS = 1000;
+
+    private final Key serverPrivate;
+    private final long epochMillis;
+    private final ScheduledExecutorService signer;
+
+    private volatile EpochToken current;
+
+    public FreshnessService(Key serverPrivate) {
+        this(serverPrivate, Long.getLong(EPOCH_PROPERTY, DEFAULT_EPOCH_MILLIS));
+    }
+
+    public FreshnessService(Key serverPrivate, long epochMillis) {
+        if (epochMillis <= 0) {
+            throw new IllegalArgumentException("The freshness epoch must be positive: " + epochMillis);
+        }
+        this.serverPrivate = serverPrivate;
+        this.epochMillis = epochMillis;
+        this.signer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "freshness-signer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long untilNextEpoch = epochMillis - System.currentTimeMillis() % epochMillis;
+        this.signer.scheduleAtFixedRate(this::signCurrentEpoch, untilNextEpoch, epochMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return The signed freshness token of the current epoch.
+     */
+    public String getToken() throws Exception {
+        long epoch = System.currentTimeMillis() / epochMillis;
+        EpochToken token = this.current;
+        if (token != null && token.epoch == epoch) {
+            return token.token;
+        }
+        return sign(epoch).token;
+    }
+
+    public long getEpochMillis() {
+        return epochMillis;
+    }
+
+    public void shutdown() {
+        signer.shutdownNow();
+    }
+
+    private void signCurrentEpoch() {
+        try {
+            long epoch = System.currentTimeMillis() / epochMillis;
+            EpochToken token = this.current;
+            if (token == null || token.epoch < epoch) {
+                sign(epoch);
+            }
+        } catch (Exception e) {
+            // a failure here only means the next request signs the token itself
+            System.out.println("Error signing freshness token: " + e);
+        }
+    }
+
+    private synchronized EpochToken sign(long epoch) throws Exception {
+        EpochToken token = this.current;
+        if (token != null && token.epoch >= epoch) {
+            // signed by another thread in the meantime
+            return token;
+        }
+        token = new EpochToken(epoch, CryptoLibrary.createEpochRefreshToken(epoch, epochMillis, serverPrivate));
+        this.current = token;
+        return token;
+    }
+
+    private static final class EpochToken {
+        private final long epoch;
+        private final String token;
+
+        private EpochToken(long epoch, String token) {
+            this.epoch = epoch;
+            this.token = token;
+        }
+    }
+}
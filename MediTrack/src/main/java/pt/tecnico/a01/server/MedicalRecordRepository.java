@@ -12,19 +12,45 @@ import com.mongodb.client.model.Updates;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.result.UpdateResult;
 import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.WriteModel;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoException;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.client.model.Projections;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.stream.StreamSupport;
 import java.util.Optional;
 
-import com.google.gson.Gson;
+
+import main.java.pt.tecnico.a01.cryptography.CryptoLibrary;
+
 import com.google.gson.JsonObject;
 
+import org.bson.BsonType;
 import org.bson.Document;
 import org.bson.conversions.Bson;
 
 public class MedicalRecordRepository{
+    private static final IndexOptions UNIQUE = new IndexOptions().unique(true);
+    private static final ReplaceOptions UPSERT = new ReplaceOptions().upsert(true);
+    private static final UpdateOptions UPDATE_UPSERT = new UpdateOptions().upsert(true);
+    private static final BulkWriteOptions UNORDERED = new BulkWriteOptions().ordered(false);
+
+    // keys shared with doctors, one document per doctor and patient: {"doctor": ..., "patient": ..., "keys": {...}}
+    private static final String SHARED_KEYS = "shared_keys";
+
     private MongoClient mongoClient;
 
     private MongoDatabase database;
@@ -42,14 +68,105 @@ public class MedicalRecordRepository{
         this.mongoClient = MongoClients.create(url);
         this.databaseName = databaseName;
         this.database = this.mongoClient.getDatabase(this.databaseName);
+        ensureIndexes();
     }
-    
+
+    /**
+     * @param settings the connection string, pool, timeouts and write concern, see {@link ServerConfig}
+     */
+    public MedicalRecordRepository(MongoClientSettings settings, String databaseName) {
+        this.mongoClient = MongoClients.create(settings);
+        this.databaseName = databaseName;
+        this.database = this.mongoClient.getDatabase(this.databaseName);
+        ensureIndexes();
+    }
+
+    /**
+     * Records are looked up by name and shared keys by doctor and patient: without an index every lookup, save
+     * and append is a collection scan. The unique indexes also let saves and shares be single upserts. Creating an
+     * index that exists is a no-op, so this runs on every start.
+     */
+    private void ensureIndexes() {
+        try {
+            this.database.getCollection("patients").createIndex(Indexes.ascending("name"), UNIQUE);
+            this.database.getCollection(SHARED_KEYS).createIndex(Indexes.ascending("doctor", "patient"), UNIQUE);
+        } catch (MongoException e) {
+            // e.g. duplicate names stored before the index; the server still works, without the guarantee
+            System.out.println("Could not create the indexes: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Moves the keys shared before the shared_keys collection, held in one collection per doctor, into it. Only
+     * run when asked to (see {@link ServerConfig#MIGRATE_SHARED_KEYS}), as the database may hold other data.
+     *
+     * A collection is only taken for a doctor's if every one of its documents has the shape the old server wrote,
+     * {"name": ..., "keys": {...}}; any other collection is left untouched. A doctor collection is dropped only
+     * once all of its keys are copied and nothing was added to it meanwhile, so running this again is safe.
+     */
+    public void migrateDoctorCollections() {
+        for (String collection : this.database.listCollectionNames()) {
+            if (collection.equals("patients") || collection.equals(SHARED_KEYS) || collection.startsWith("system.")) {
+                continue;
+            }
+            List<WriteModel<Document>> updates = new ArrayList<WriteModel<Document>>();
+            long copied = 0;
+            boolean doctorKeys = true;
+            for (Document patientKeys : this.database.getCollection(collection).find()) {
+                if (!isDoctorKeys(patientKeys)) {
+                    doctorKeys = false;
+                    break;
+                }
+                Document keys = patientKeys.get("keys", Document.class);
+                if (!keys.isEmpty()) {
+                    updates.add(new UpdateOneModel<Document>(sharedKeysFilter(collection, patientKeys.getString("name")),
+                        setKeys(keys), UPDATE_UPSERT));
+                }
+                copied++;
+            }
+            if (!doctorKeys || copied == 0) {
+                System.out.println("Left collection " + collection + ": it does not hold keys shared with a doctor");
+                continue;
+            }
+            try {
+                if (!updates.isEmpty()) {
+                    this.database.getCollection(SHARED_KEYS).bulkWrite(updates);
+                }
+            } catch (MongoException e) {
+                System.out.println("Could not move the keys shared with " + collection + ": " + e.getMessage());
+                continue;
+            }
+            if (this.database.getCollection(collection).countDocuments() != copied) {
+                System.out.println("Left collection " + collection + ": it changed while its keys were copied");
+                continue;
+            }
+            this.database.getCollection(collection).drop();
+            System.out.println("Moved the keys shared with " + collection + " to " + SHARED_KEYS);
+        }
+    }
+
+    /**
+     * @return true if the document is one the old server kept in a doctor's collection: a patient's name and the
+     *         keys shared for them, and nothing else
+     */
+    private static boolean isDoctorKeys(Document document) {
+        for (String member : document.keySet()) {
+            if (!member.equals("_id") && !member.equals("name") && !member.equals("keys")) {
+                return false;
+            }
+        }
+        return document.get("name") instanceof String && document.get("keys") instanceof Document;
+    }
+
+    /**
+     * @return the number of records, from the collection's metadata instead of a count of its documents
+     */
     public long count() {
-        return this.database.getCollection("patients").countDocuments();
+        return this.database.getCollection("patients").estimatedDocumentCount();
     }
     
     public void delete(String record) {
-        this.database.getCollection("patients").deleteOne(Document.parse(record));
+        this.database.getCollection("patients").deleteOne(RecordDocuments.parse(record));
     }
     
     public void deleteAll() {
@@ -57,7 +174,7 @@ public class MedicalRecordRepository{
     }
     
     public void deleteAll(Iterable<? extends String> records) {
-        records.forEach(record -> {this.database.getCollection("patients").deleteOne(Document.parse(record));});
+        records.forEach(record -> {this.database.getCollection("patients").deleteOne(RecordDocuments.parse(record));});
     }
     
     public void deleteByName(String patientName) {
@@ -65,79 +182,254 @@ public class MedicalRecordRepository{
     }
 
     public Optional<String> find(String patientName) {
-        Document record = this.database.getCollection("patients").find(new Document("name", patientName)).first();
-        if (record == null) {
+        return findDocument(patientName, null).map(RecordDocuments::toJson);
+    }
+
+    /**
+     * Finds a record leaving out the protected fields that were not asked for, so they are not read from Mongo
+     * nor sent to the client. The metadata is always returned whole.
+     *
+     * @param patientName
+     * @param fields the protected fields to return
+     */
+    public Optional<String> find(String patientName, String[] fields) {
+        return findDocument(patientName, fields).map(RecordDocuments::toJson);
+    }
+
+    /**
+     * Same as {@link #find(String, String[])}, but returns the document itself so callers can add to it before
+     * serializing it once.
+     *
+     * @param patientName
+     * @param fields the protected fields to return, or null for all of them
+     */
+    public Optional<Document> findDocument(String patientName, String[] fields) {
+        FindIterable<Document> records = this.database.getCollection("patients").find(new Document("name", patientName));
+        if (fields != null) {
+            List<String> requested = Arrays.asList(fields);
+            List<String> excluded = new ArrayList<String>();
+            for (String field : CryptoLibrary.FIELDS) {
+                if (!requested.contains(field)) {
+                    excluded.add("record." + field);
+                }
+            }
+            records = records.projection(Projections.exclude(excluded));
+        }
+        return Optional.ofNullable(records.first());
+    }
+
+    /**
+     * @param patientName
+     * @return the Merkle tree of the record, or empty if there is no such patient or the record has no tree
+     */
+    public Optional<Document> findMerkleTree(String patientName) {
+        Document record = this.database.getCollection("patients").find(new Document("name", patientName))
+            .projection(Projections.include("metadata.merkle")).first();
+        if (record == null || record.get("metadata") == null) {
+            return Optional.empty();
+        }
+        Document merkle = record.get("metadata", Document.class).get("merkle", Document.class);
+        if (merkle == null) {
             return Optional.empty();
         }
-        return Optional.ofNullable(record.toJson());
+        return Optional.of(merkle);
+    }
+
+    /**
+     * Pages through every record in name order, over the name index, for exports. Mongo returns the records in
+     * batches, so only one batch is held in memory at a time however many records there are.
+     *
+     * @param afterName the name of the last record already read, or null to start from the first
+     * @param batchSize the number of records per batch
+     * @return the records, as stored and without their Mongo id
+     */
+    public FindIterable<Document> findAllAfter(String afterName, int batchSize) {
+        Bson filter = afterName == null ? new Document() : Filters.gt("name", afterName);
+        return this.database.getCollection("patients").find(filter)
+            .projection(Projections.excludeId())
+            .sort(Indexes.ascending("name"))
+            .batchSize(batchSize);
     }
 
     public Iterable<String> findAll() {
-        return () -> StreamSupport.stream(this.database.getCollection("patients").find().spliterator(), false).map(document -> document.toJson()).iterator();
+        return () -> StreamSupport.stream(this.database.getCollection("patients").find().spliterator(), false).map(RecordDocuments::toJson).iterator();
     }
 
-    // Verificar se o registo é substituido
+    /**
+     * Stores a protected record, its Base64 values as BSON binary, replacing the patient's record if there is one.
+     * The record is parsed once and written in a single round trip, found through the unique name index.
+     *
+     * @param record the protected record as JSON
+     * @return the record
+     */
     public String save(String record) {
-        if (this.find(new Gson().fromJson(record, JsonObject.class).get("name").getAsString()).isPresent()) {
-            this.database.getCollection("patients").replaceOne(new Document("name", new Gson().fromJson(record, JsonObject.class).get("name").getAsString()), Document.parse(record));
-        }
-        else {
-            this.database
-            .getCollection("patients")
-            .insertOne(Document.parse(record));
-        }
+        save(RecordDocuments.parse(record));
         return record;
     }
 
+    /**
+     * @param record the protected record as stored, see {@link RecordDocuments#toDocument(JsonObject)}
+     */
+    public void save(Document record) {
+        this.database.getCollection("patients").replaceOne(Filters.eq("name", record.get("name")), record, UPSERT);
+    }
+
+    /**
+     * Stores records in a single unordered bulk write, each replacing the patient's record if there is one. A
+     * record that fails does not stop the others.
+     *
+     * @param records the protected records as stored, see {@link RecordDocuments#toDocument(JsonObject)}
+     * @return the result, whose upserts are the records that were inserted
+     * @throws MongoBulkWriteException if some of the records failed, with their errors and the result of the others
+     */
+    public BulkWriteResult upsertAll(List<Document> records) {
+        List<WriteModel<Document>> writes = new ArrayList<WriteModel<Document>>(records.size());
+        for (Document record : records) {
+            writes.add(new ReplaceOneModel<Document>(Filters.eq("name", record.get("name")), record, UPSERT));
+        }
+        return this.database.getCollection("patients").bulkWrite(writes, UNORDERED);
+    }
+
     public Iterable<String> saveAll(Iterable<String> records) {
         ArrayList<Document> documents = new ArrayList<Document>();
-        records.forEach(record -> {documents.add(Document.parse(record));});
+        records.forEach(record -> {documents.add(RecordDocuments.parse(record));});
         this.database
         .getCollection("patients")
         .insertMany(documents);
         return records;
     }
 
+    /**
+     * Appends an encrypted consultation record segment and its IV to a record stored in the chunked layout.
+     * Only the new segment is sent to and written by Mongo, regardless of the length of the history.
+     *
+     * @param patientName
+     * @param segment Base64 encoded ciphertext of the consultation record
+     * @param iv Base64 encoded IV of the segment
+     * @return false if there is no such patient, its consultation records are not chunked or it was sealed with a
+     *         Merkle tree, which the segment would have to be added to
+     */
+    public boolean appendConsultationRecord(String patientName, String segment, String iv) {
+        Bson filter = Filters.and(Filters.eq("name", patientName),
+            Filters.type("record.consultationRecords", BsonType.ARRAY),
+            Filters.exists("metadata.merkle", false));
+        Bson updates = Updates.combine(Updates.push("record.consultationRecords", RecordDocuments.toStorage(segment)),
+            Updates.push("metadata.iv.consultationRecords", RecordDocuments.toStorage(iv)));
+        UpdateResult res = this.database.getCollection("patients").updateOne(filter, updates);
+        return res.getMatchedCount() > 0;
+    }
+
+    /**
+     * Appends a segment to a record sealed with a Merkle tree, adding the segment's hash to the tree and replacing
+     * the hashes along its path and the signed root. The update only applies if the root is still the one the new
+     * tree was computed from, so concurrent appends cannot lose each other's segments.
+     *
+     * @param patientName
+     * @param segment Base64 encoded ciphertext of the consultation record
+     * @param iv Base64 encoded IV of the segment
+     * @param segmentHash Base64 encoded hash of the segment
+     * @param fieldHash Base64 encoded new hash of the consultationRecords field
+     * @param root Base64 encoded new root of the tree
+     * @param hash the new root signed by the server
+     * @param previousRoot the root the new tree was computed from
+     * @return false if there is no such patient, its consultation records are not chunked or the tree has changed
+     */
+    public boolean appendConsultationRecord(String patientName, String segment, String iv, String segmentHash,
+            String fieldHash, String root, String hash, String previousRoot) {
+        Bson filter = Filters.and(Filters.eq("name", patientName),
+            Filters.type("record.consultationRecords", BsonType.ARRAY),
+            // trees stored before binary values hold their root as a string
+            Filters.in("metadata.merkle.root", previousRoot, RecordDocuments.toStorage(previousRoot)));
+        Bson updates = Updates.combine(Updates.push("record.consultationRecords", RecordDocuments.toStorage(segment)),
+            Updates.push("metadata.iv.consultationRecords", RecordDocuments.toStorage(iv)),
+            Updates.push("metadata.merkle.consultationRecords", RecordDocuments.toStorage(segmentHash)),
+            Updates.set("metadata.merkle.fields.consultationRecords", RecordDocuments.toStorage(fieldHash)),
+            Updates.set("metadata.merkle.root", RecordDocuments.toStorage(root)),
+            Updates.set("metadata.hash", RecordDocuments.toStorage(hash)));
+        UpdateResult res = this.database.getCollection("patients").updateOne(filter, updates);
+        return res.getMatchedCount() > 0;
+    }
+
+    /**
+     * Stores the Merkle tree and the signed root of a record that was saved without them. The update only applies
+     * if the record still has no tree and its encrypted fields and IVs are the ones the tree was computed from, so
+     * a record replaced or appended to meanwhile is never stored with a tree and signature over its old contents.
+     *
+     * @param patientName
+     * @param record the encrypted fields the tree was computed from, as read
+     * @param iv the IVs read with them
+     * @param merkle the tree, of the form {"fields": {...}, "root": "..."}
+     * @param hash the root signed by the server
+     * @return false if the record has changed (or is gone) since it was read
+     */
+    public boolean updateDigest(String patientName, Document record, Object iv, JsonObject merkle, String hash) {
+        Bson filter = Filters.and(Filters.eq("name", patientName),
+            Filters.exists("metadata.merkle", false),
+            Filters.eq("record", record),
+            Filters.eq("metadata.iv", iv));
+        Bson updates = Updates.combine(Updates.set("metadata.merkle", RecordDocuments.toStorage(merkle)),
+            Updates.set("metadata.hash", RecordDocuments.toStorage(hash)));
+        UpdateResult res = this.database.getCollection("patients").updateOne(filter, updates);
+        return res.getMatchedCount() > 0;
+    }
+
     /**
      * 
      * @param doctorName
      * @param patientName
-     * @return string of the form {"field": "value1", "field": "value2"}
+     * @return string of the form {"doctor": ..., "patient": ..., "keys": {"field": "value1", "field": "value2"}}
      */
     public String findKeys(String doctorName, String patientName) {
-        // Testar gets com coleções vazias
-        Document patientKeys = this.database.getCollection(doctorName).find(new Document("name", patientName)).first();
+        Document patientKeys = this.database.getCollection(SHARED_KEYS).find(sharedKeysFilter(doctorName, patientName))
+            .projection(Projections.excludeId()).first();
         if (patientKeys == null) {
             return null;
         }
-        return patientKeys.toJson();
+        return RecordDocuments.toJson(patientKeys);
     }
 
     /**
-     * 
+     * @param doctorName
+     * @return the keys of every patient who shared keys with the doctor, by patient name, in one query over the
+     *         (doctor, patient) index
+     */
+    public Map<String, String> findAllKeys(String doctorName) {
+        Map<String, String> keysByPatient = new LinkedHashMap<String, String>();
+        for (Document patientKeys : this.database.getCollection(SHARED_KEYS).find(Filters.eq("doctor", doctorName))
+                .projection(Projections.include("patient", "keys")).sort(Indexes.ascending("patient"))) {
+            keysByPatient.put(patientKeys.getString("patient"),
+                RecordDocuments.toJson(patientKeys.get("keys", Document.class)));
+        }
+        return keysByPatient;
+    }
+
+    /**
+     * Shares keys with a doctor, adding them to (or replacing) the ones already shared for the same fields. The
+     * merge is a single atomic update, so concurrent shares of different fields cannot lose each other's keys.
+     *
      * @param doctorName
      * @param patientName
      * @param keys string of the form {"field": "value1", "field": "value2"}
      * @return keys
      */
     public String addKeys(String doctorName, String patientName, String keys) {
-        String currentKeys = findKeys(doctorName, patientName);
-        if (currentKeys == null) {
-            this.database.getCollection(doctorName).insertOne(new Document().append("name", patientName).append("keys", Document.parse(keys)));
-            return keys;
-        }
-        currentKeys = new Gson().toJson(new Gson().fromJson(currentKeys, JsonObject.class).get("keys"));
         Document keysDocument = Document.parse(keys);
-        Document newKeysDocument = Document.parse(currentKeys);
-        for (String key : keysDocument.keySet()) {
-            newKeysDocument.put(key, keysDocument.get(key));
+        if (!keysDocument.isEmpty()) {
+            this.database.getCollection(SHARED_KEYS).updateOne(sharedKeysFilter(doctorName, patientName),
+                setKeys(keysDocument), UPDATE_UPSERT);
         }
-        System.out.println("The new keys ares:" + newKeysDocument.toJson());
-        System.out.println("-_-_-_-_-_-_-_-_-_-_---_-_-_-_-_-_-_-_-_-_-_-_-_-_-----_-_-_-_---_-_-_-_-_-_");
-        Bson updates = Updates.set("keys", newKeysDocument);
-        UpdateResult res = this.database.getCollection(doctorName).updateOne(new Document("name", patientName), updates);
-        System.out.println("The result of the update is: " + res.toString());
-        System.out.println("The update did:" + res.wasAcknowledged());
         return keys;
     }
-}
\ No newline at end of file
+
+    private static Bson sharedKeysFilter(String doctorName, String patientName) {
+        return Filters.and(Filters.eq("doctor", doctorName), Filters.eq("patient", patientName));
+    }
+
+    private static Bson setKeys(Document keys) {
+        List<Bson> updates = new ArrayList<Bson>();
+        for (Map.Entry<String, Object> key : keys.entrySet()) {
+            updates.add(Updates.set("keys." + key.getKey(), RecordDocuments.toStorage(key.getValue())));
+        }
+        return Updates.combine(updates);
+    }
+}
@@ -1,16 +1,51 @@
 package main.java.pt.tecnico.a01.server;
 
 import main.java.pt.tecnico.a01.cryptography.CryptoLibrary;
+import main.java.pt.tecnico.a01.cryptography.KeyRegistry;
+import main.java.pt.tecnico.a01.cryptography.RecordEnvelope;
+import main.java.pt.tecnico.a01.cryptography.RecordMerkleTree;
 
 import com.google.gson.Gson;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.bulk.BulkWriteUpsert;
 import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCursor;
 
+import org.bson.Document;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.security.Key;
 import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 public class MedicalRecordService {
+
+    private static final String CONSULTATION_RECORDS = "consultationRecords";
+    private static final int MAX_APPEND_ATTEMPTS = 5;
+    private static final int MAX_SEAL_ATTEMPTS = 5;
+    private static final String BULK_INSERTED = "inserted";
+    private static final String BULK_REPLACED = "replaced";
+    private static final String BULK_FAILED = "failed";
+    private static final String EXPORT_TRAILER = "export";
+    // the trailer line of an export, as written by Gson, so exports can be imported as they are
+    private static final String EXPORT_TRAILER_LINE = "{\"" + EXPORT_TRAILER + "\":";
     
     private MedicalRecordRepository medicalRecordRepository;
 
@@ -24,29 +59,252 @@ public class MedicalRecordService {
 
     private Gson gson;
 
+    private FreshnessService freshnessService;
+
+    private KeyRegistry keyRegistry;
+
+    private ComputePool computePool;
+
+    private RecordCache recordCache;
+
+    private int exportBatchSize;
+
+    private int bulkBatchSize;
+    private int bulkMaxRecordBytes;
+
     public MedicalRecordService() throws Exception{
-        //this.medicalRecordRepository = new MedicalRecordRepository("mongodb://192.168.56.10:27017/?ssl=true","meditrack");
-        this.medicalRecordRepository = new MedicalRecordRepository("mongodb://192.168.56.10:27017","meditrack");
-        this.userPublic = CryptoLibrary.readPublicKey("../keys/user.pubkey");
-        this.sosPublic = CryptoLibrary.readPublicKey("../keys/sospub.key");
-        this.sosPrivate = CryptoLibrary.readPrivateKey("../keys/sospriv.key");
-        this.serverPrivate = CryptoLibrary.readPrivateKey("../keys/server.privkey");
+        this(ServerConfig.load());
+    }
+
+    /**
+     * @param config where Mongo and the keys are, the size of the pool the RSA work of requests (signing
+     *               digests, rewrapping SOS keys) runs on and the limits of the record cache
+     */
+    public MedicalRecordService(ServerConfig config) throws Exception{
+        this.computePool = config.createComputePool();
+        this.recordCache = config.createRecordCache();
+        this.exportBatchSize = config.getExportBatchSize();
+        this.bulkBatchSize = config.getBulkBatchSize();
+        this.bulkMaxRecordBytes = config.getBulkMaxRecordBytes();
+        this.medicalRecordRepository = new MedicalRecordRepository(config.mongoClientSettings(), config.getMongoDatabase());
+        if (config.isMigrateSharedKeys()) {
+            medicalRecordRepository.migrateDoctorCollections();
+        }
+        this.keyRegistry = new KeyRegistry(config.getKeysDir()).watch();
+        this.userPublic = keyRegistry.getPublicKey(KeyRegistry.USER_PUBLIC);
+        this.sosPublic = keyRegistry.getPublicKey(KeyRegistry.SOS_PUBLIC);
+        this.sosPrivate = keyRegistry.getPrivateKey(KeyRegistry.SOS_PRIVATE);
+        this.serverPrivate = keyRegistry.getPrivateKey(KeyRegistry.SERVER_PRIVATE);
+        this.freshnessService = new FreshnessService(serverPrivate, config.getFreshnessEpochMillis());
         
       this.gson = new Gson();
     }
 
     // if we get an empty string, we should throw an exception
     public String getMedicalRecord(String patientName) throws Exception{
+        return getMedicalRecord(patientName, null);
+    }
+
+    /**
+     * @param patientName
+     * @param fields the protected fields to return, or null for the whole record. The Merkle tree in the metadata
+     *               lets the client verify the returned fields without the others.
+     */
+    public String getMedicalRecord(String patientName, String[] fields) throws Exception{
+        return RecordDocuments.toJson(readMedicalRecord(patientName, fields));
+    }
+
+    /**
+     * Same as {@link #getMedicalRecord(String, String[])}, written to the response as it is serialized.
+     */
+    public void writeMedicalRecord(String patientName, String[] fields, OutputStream out) throws Exception {
+        RecordDocuments.writeJson(readMedicalRecord(patientName, fields), out);
+    }
+
+    /**
+     * Writes every record after the cursor, as stored (without a freshness token), in name order. Each record is
+     * written as soon as it is read and the output is flushed after every batch, so the export runs in constant
+     * memory and the client receives it as it is produced.
+     *
+     * The records are followed by a trailer, {"export": {"count": ..., "cursor": "...", "complete": true}}: the
+     * number of records written, the cursor to resume after the last of them (absent if there is none) and
+     * whether there are no more records. If the export fails once records were sent, the trailer has complete
+     * false and an "error", so the client can tell a failed export from a finished one and resume it from the
+     * cursor; failures before anything is sent (e.g. an invalid cursor) are thrown.
+     *
+     * @param cursor where to resume, the cursor of the last record already received (see {@link #cursorOf(String)}),
+     *               or null to start from the first record
+     * @param limit the maximum number of records to write, or 0 for all of them
+     * @param envelopes true to write each record as a binary record envelope preceded by its length (a 4-byte
+     *                  big-endian integer), then a length of 0 and the trailer as length-prefixed UTF-8 JSON; false
+     *                  for NDJSON (one JSON record per line, then the trailer on the last line)
+     * @return the number of records written
+     * @throws IllegalArgumentException if the cursor is invalid
+     */
+    public long exportMedicalRecords(String cursor, long limit, boolean envelopes, OutputStream out) throws Exception {
+        String afterName = cursor == null || cursor.isEmpty() ? null : nameOf(cursor);
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+        Writer lines = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        long count = 0;
+        String lastName = afterName;
+        boolean complete;
+        String error = null;
+        try (MongoCursor<Document> records = medicalRecordRepository.findAllAfter(afterName, exportBatchSize).iterator()) {
+            try {
+                while (records.hasNext() && (limit <= 0 || count < limit)) {
+                    Document record = records.next();
+                    if (envelopes) {
+                        byte[] envelope = RecordEnvelope.encode(RecordDocuments.toJsonTree(record).getAsJsonObject());
+                        data.writeInt(envelope.length);
+                        data.write(envelope);
+                    } else {
+                        RecordDocuments.writeJson(record, lines);
+                        lines.write('\n');
+                    }
+                    lastName = record.getString("name");
+                    if (++count % exportBatchSize == 0) {
+                        // one chunk per batch
+                        data.flush();
+                        lines.flush();
+                    }
+                }
+                complete = !records.hasNext();
+            } catch (Exception e) {
+                // the response is already under way, its status cannot change anymore
+                System.out.println("Export failed after " + count + " record(s): " + e.getMessage());
+                complete = false;
+                error = String.valueOf(e.getMessage());
+            }
+        }
+
+        JsonObject trailer = new JsonObject();
+        trailer.addProperty("count", count);
+        if (lastName != null) {
+            trailer.addProperty("cursor", cursorOf(lastName));
+        }
+        trailer.addProperty("complete", complete);
+        if (error != null) {
+            trailer.addProperty("error", error);
+        }
+        JsonObject exportTrailer = new JsonObject();
+        exportTrailer.add(EXPORT_TRAILER, trailer);
+        if (envelopes) {
+            byte[] trailerBytes = gson.toJson(exportTrailer).getBytes(StandardCharsets.UTF_8);
+            data.writeInt(0);
+            data.writeInt(trailerBytes.length);
+            data.write(trailerBytes);
+            data.flush();
+        } else {
+            lines.write(gson.toJson(exportTrailer));
+            lines.write('\n');
+            lines.flush();
+        }
+        return count;
+    }
+
+    /**
+     * @return the cursor to resume an export after the record of the given patient: the name, Base64url encoded so
+     *         it can be passed in a query string
+     */
+    public static String cursorOf(String patientName) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(patientName.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String nameOf(String cursor) {
+        try {
+            return new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid cursor: " + cursor);
+        }
+    }
+
+    /**
+     * Same as {@link #getMedicalRecord(String, String[])}, as a binary record envelope.
+     */
+    public byte[] getMedicalRecordEnvelope(String patientName, String[] fields) throws Exception {
+        return RecordEnvelope.encode(RecordDocuments.toJsonTree(readMedicalRecord(patientName, fields)).getAsJsonObject());
+    }
+
+    private Document readMedicalRecord(String patientName, String[] fields) throws Exception {
         // maybe add Status
-        String medicalRecord = medicalRecordRepository.find(patientName).orElse(null);
+        Document medicalRecord = findMedicalRecord(patientName, fields);
         if (medicalRecord == null) {
             throw new Exception("Patient not found");
         }
-        JsonObject medicalRecordObject = gson.fromJson(medicalRecord, JsonObject.class);
-        CryptoLibrary.addFreshness(medicalRecordObject, serverPrivate);
-        CryptoLibrary.addDigest(medicalRecordObject, serverPrivate);
-        return gson.toJson(medicalRecordObject);
+        Document metadata = medicalRecord.get("metadata", Document.class);
+        if (metadata.get(RecordMerkleTree.MERKLE) == null) {
+            // a record stored before the digest was computed on write: it is sealed once, on its first read
+            sealMedicalRecord(patientName);
+            medicalRecord = findMedicalRecord(patientName, fields);
+            if (medicalRecord == null) {
+                throw new Exception("Patient not found");
+            }
+            metadata = medicalRecord.get("metadata", Document.class);
+        }
+        // the digest was signed on write; reads only pay for one serialization, the freshness token is per epoch
+        metadata.put("refreshToken", freshnessService.getToken());
+        return medicalRecord;
     }
+
+    /**
+     * Reads a record through the record cache. On a miss the whole record is read and cached, so later reads of
+     * any of its fields are hits; without the cache only the requested fields are read from Mongo.
+     *
+     * @return a view of the record with the requested fields, whose metadata can be added to, or null
+     */
+    private Document findMedicalRecord(String patientName, String[] fields) {
+        if (!recordCache.isEnabled()) {
+            return medicalRecordRepository.findDocument(patientName, fields).orElse(null);
+        }
+        Document medicalRecord = recordCache.get(patientName);
+        if (medicalRecord == null) {
+            long generation = recordCache.generation();
+            medicalRecord = medicalRecordRepository.findDocument(patientName, null).orElse(null);
+            if (medicalRecord == null) {
+                return null;
+            }
+            recordCache.put(patientName, medicalRecord, generation);
+        }
+        return RecordDocuments.view(medicalRecord, fields);
+    }
+
+    /**
+     * @return string of the form {"size": ..., "hits": ..., ...} with the counters of the record cache
+     */
+    public String getCacheStats() {
+        return gson.toJson(recordCache.getStats());
+    }
+
+    /**
+     * Signs the digest of a record stored without one. If the record is written to while it is being signed the
+     * digest is not stored, and the record is read and signed again, unless the write sealed it.
+     */
+    private void sealMedicalRecord(String patientName) throws Exception {
+        for (int attempt = 0; attempt < MAX_SEAL_ATTEMPTS; attempt++) {
+            Document medicalRecord = medicalRecordRepository.findDocument(patientName, null).orElse(null);
+            if (medicalRecord == null) {
+                throw new Exception("Patient not found");
+            }
+            Document storedMetadata = medicalRecord.get("metadata", Document.class);
+            if (storedMetadata.get(RecordMerkleTree.MERKLE) != null) {
+                // sealed meanwhile, e.g. replaced by a PUT
+                recordCache.invalidate(patientName);
+                return;
+            }
+            JsonObject medicalRecordObject = RecordDocuments.toJsonTree(medicalRecord).getAsJsonObject();
+            computePool.call(() -> CryptoLibrary.addDigest(medicalRecordObject, serverPrivate));
+            JsonObject metadata = medicalRecordObject.get("metadata").getAsJsonObject();
+            boolean sealed = medicalRecordRepository.updateDigest(patientName, medicalRecord.get("record", Document.class),
+                storedMetadata.get("iv"), metadata.get(RecordMerkleTree.MERKLE).getAsJsonObject(),
+                metadata.get("hash").getAsString());
+            recordCache.invalidate(patientName);
+            if (sealed) {
+                return;
+            }
+        }
+        throw new Exception("Record changed while being sealed, retry later");
+    }
+
     public String saveMedicalRecord(String carrierJson) throws Exception {
         JsonObject medicalRecordJson;
         try {
@@ -56,8 +314,176 @@ public class MedicalRecordService {
         catch(Exception e){
             throw new Exception("Invalid record + " + carrierJson);
         }
+        return saveMedicalRecord(medicalRecordJson);
+    }
+
+    /**
+     * @param envelope the protected record as a binary record envelope
+     */
+    public String saveMedicalRecord(byte[] envelope) throws Exception {
+        JsonObject medicalRecordJson;
+        try {
+            medicalRecordJson = RecordEnvelope.decode(envelope);
+        }
+        catch(Exception e){
+            throw new Exception("Invalid record envelope: " + e.getMessage());
+        }
+        return saveMedicalRecord(medicalRecordJson);
+    }
+
+    private String saveMedicalRecord(JsonObject medicalRecordJson) throws Exception {
+        // the digest is signed once per write instead of on every read
+        computePool.call(() -> CryptoLibrary.addDigest(medicalRecordJson, serverPrivate));
         // The name has to be exposed
-        return medicalRecordRepository.save(gson.toJson(medicalRecordJson));
+        medicalRecordRepository.save(RecordDocuments.toDocument(medicalRecordJson));
+        recordCache.invalidate(medicalRecordJson.get("name").getAsString());
+        return gson.toJson(medicalRecordJson);
+    }
+
+    /**
+     * Imports protected records in bulk, as a patient's PUT would store each of them: the server signs every
+     * record's digest and the record replaces the patient's record if there is one. The records are read from the
+     * stream one batch at a time; the digests of a batch are signed in parallel on the compute pool and the batch
+     * is stored in one unordered bulk write, so a failed record does not stop the others.
+     *
+     * @param in NDJSON, one protected record (as {@code GET /records} exports them) per line; blank lines and
+     *           export trailers are skipped, and lines longer than {@link ServerConfig#BULK_MAX_RECORD_BYTES} fail without being read
+     *           into memory
+     * @param out where the results are written once the whole input was read, as NDJSON: one line per record of
+     *            the form {"line": 1, "name": "...", "status": "inserted"}, the status being inserted, replaced
+     *            or failed (with an "error"), then a summary {"inserted": ..., "replaced": ..., "failed": ...}
+     */
+    public void importMedicalRecords(InputStream in, OutputStream out) throws Exception {
+        BoundedLineReader lines = new BoundedLineReader(in, bulkMaxRecordBytes);
+        // the results are only sent after the body was read, as a client does not read the response while sending;
+        // they are kept in a temporary file meanwhile, so memory does not grow with the number of records
+        Path resultFile = Files.createTempFile("meditrack-import", ".ndjson");
+        try {
+            try (Writer results = Files.newBufferedWriter(resultFile, StandardCharsets.UTF_8)) {
+                importMedicalRecords(lines, results);
+            }
+            Files.copy(resultFile, out);
+            out.flush();
+        } finally {
+            Files.deleteIfExists(resultFile);
+        }
+    }
+
+    private void importMedicalRecords(BoundedLineReader lines, Writer results) throws Exception {
+        long[] counts = new long[3];
+        List<Integer> batchLines = new ArrayList<Integer>(bulkBatchSize);
+        List<String> batch = new ArrayList<String>(bulkBatchSize);
+        int lineNumber = 0;
+        String line;
+        while ((line = lines.readLine()) != null) {
+            lineNumber++;
+            if (lines.isTooLong()) {
+                // the results stay in line order
+                if (!batch.isEmpty()) {
+                    importBatch(batchLines, batch, results, counts);
+                    batchLines.clear();
+                    batch.clear();
+                }
+                JsonObject outcome = new JsonObject();
+                outcome.addProperty("line", lineNumber);
+                outcome.addProperty("status", BULK_FAILED);
+                outcome.addProperty("error", "Record larger than " + lines.getMaxBytes() + " bytes");
+                counts[2]++;
+                results.write(gson.toJson(outcome));
+                results.write('\n');
+                continue;
+            }
+            if (line.trim().isEmpty() || line.startsWith(EXPORT_TRAILER_LINE)) {
+                continue;
+            }
+            batchLines.add(lineNumber);
+            batch.add(line);
+            if (batch.size() == bulkBatchSize) {
+                importBatch(batchLines, batch, results, counts);
+                batchLines.clear();
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            importBatch(batchLines, batch, results, counts);
+        }
+        JsonObject summary = new JsonObject();
+        summary.addProperty(BULK_INSERTED, counts[0]);
+        summary.addProperty(BULK_REPLACED, counts[1]);
+        summary.addProperty(BULK_FAILED, counts[2]);
+        results.write(gson.toJson(summary));
+        results.write('\n');
+    }
+
+    private void importBatch(List<Integer> lineNumbers, List<String> lines, Writer results, long[] counts)
+            throws Exception {
+        List<Callable<Document>> tasks = new ArrayList<Callable<Document>>(lines.size());
+        for (String line : lines) {
+            tasks.add(() -> {
+                JsonObject medicalRecordJson = gson.fromJson(line, JsonObject.class);
+                if (medicalRecordJson == null || medicalRecordJson.get("name") == null
+                        || !medicalRecordJson.get("name").isJsonPrimitive()) {
+                    throw new Exception("Invalid record: no name");
+                }
+                CryptoLibrary.addDigest(medicalRecordJson, serverPrivate);
+                return RecordDocuments.toDocument(medicalRecordJson);
+            });
+        }
+        List<Future<Document>> prepared = computePool.submitAll(tasks);
+
+        String[] errors = new String[lines.size()];
+        List<Document> documents = new ArrayList<Document>();
+        List<Integer> documentIndexes = new ArrayList<Integer>();
+        for (int i = 0; i < lines.size(); i++) {
+            try {
+                documents.add(prepared.get(i).get());
+                documentIndexes.add(i);
+            } catch (ExecutionException e) {
+                errors[i] = String.valueOf(e.getCause().getMessage());
+            }
+        }
+
+        boolean[] inserted = new boolean[lines.size()];
+        if (!documents.isEmpty()) {
+            BulkWriteResult result;
+            try {
+                result = medicalRecordRepository.upsertAll(documents);
+            } catch (MongoBulkWriteException e) {
+                for (BulkWriteError error : e.getWriteErrors()) {
+                    errors[documentIndexes.get(error.getIndex())] = error.getMessage();
+                }
+                result = e.getWriteResult();
+            }
+            for (BulkWriteUpsert upsert : result.getUpserts()) {
+                inserted[documentIndexes.get(upsert.getIndex())] = true;
+            }
+            for (Document document : documents) {
+                recordCache.invalidate(document.get("name").toString());
+            }
+        }
+
+        int document = 0;
+        for (int i = 0; i < lines.size(); i++) {
+            JsonObject outcome = new JsonObject();
+            outcome.addProperty("line", lineNumbers.get(i));
+            if (document < documentIndexes.size() && documentIndexes.get(document) == i) {
+                outcome.addProperty("name", documents.get(document).get("name").toString());
+                document++;
+            }
+            if (errors[i] != null) {
+                outcome.addProperty("status", BULK_FAILED);
+                outcome.addProperty("error", errors[i]);
+                counts[2]++;
+            } else if (inserted[i]) {
+                outcome.addProperty("status", BULK_INSERTED);
+                counts[0]++;
+            } else {
+                outcome.addProperty("status", BULK_REPLACED);
+                counts[1]++;
+            }
+            results.write(gson.toJson(outcome));
+            results.write('\n');
+        }
     }
 
     public String getKeys(String doctorName, String patientName) {
@@ -65,44 +491,106 @@ public class MedicalRecordService {
         return gson.toJson(gson.fromJson(keysDoc, JsonObject.class).get("keys"));
     }
 
+    /**
+     * @param doctorName
+     * @param patientName
+     * @return the fields the patient shared with the doctor, so the doctor's client can request them together with
+     *         the keys instead of after them
+     */
+    public String[] getSharedFields(String doctorName, String patientName) throws Exception {
+        String keysDoc = medicalRecordRepository.findKeys(doctorName, patientName);
+        if (keysDoc == null) {
+            throw new Exception("Keys not found");
+        }
+        return gson.fromJson(keysDoc, JsonObject.class).getAsJsonObject("keys").keySet().toArray(new String[0]);
+    }
+
+    /**
+     * @param doctorName
+     * @return string of the form {"patient": {"field": "value1", ...}, ...} with the keys of every patient who
+     *         shared keys with the doctor
+     */
+    public String getAllKeys(String doctorName) {
+        JsonObject keysByPatient = new JsonObject();
+        medicalRecordRepository.findAllKeys(doctorName).forEach((patientName, keys) ->
+            keysByPatient.add(patientName, gson.fromJson(keys, JsonObject.class)));
+        return gson.toJson(keysByPatient);
+    }
+
     public void shareKeys(String doctorName, String patientName, String keys) throws Exception {
         medicalRecordRepository.addKeys(doctorName, patientName, keys);
+        recordCache.invalidate(patientName);
         System.out.println("Keys shared");
-        System.out.println(keys);
     }
 
-    public void addConsultationRecordAsDoctor(String patientName, String consultationRecord) {
-        // For this to work consultationRecords must be split up
-        medicalRecordRepository.find(patientName).ifPresent(medicalRecord -> {
-            JsonObject medicalRecordJson = gson.fromJson(medicalRecord, JsonObject.class);
-            JsonObject record = medicalRecordJson.get("record").getAsJsonObject();
-            JsonArray consultationRecords;
-            if (record.get("consultationRecords") != null) {
-                consultationRecords = gson.fromJson(record.get("consultationRecords").getAsJsonArray(), JsonArray.class);
-            }
-            else {
-                consultationRecords = new JsonArray();
+    /**
+     * Appends a consultation record, already encrypted by the doctor under the patient's consultationRecords key,
+     * to the chunked consultation history. The existing segments are neither read nor rewritten: only the new
+     * segment is hashed into the record's Merkle tree, whose root is signed again.
+     *
+     * @param patientName
+     * @param encryptedConsultationRecord string of the form {"segment": "...", "iv": "..."}
+     */
+    public void addConsultationRecordAsDoctor(String patientName, String encryptedConsultationRecord) throws Exception {
+        JsonObject segment;
+        try {
+            segment = gson.fromJson(encryptedConsultationRecord, JsonObject.class);
+        }
+        catch(Exception e){
+            throw new Exception("Invalid consultation record + " + encryptedConsultationRecord);
+        }
+        if (segment == null || segment.get("segment") == null || segment.get("iv") == null) {
+            throw new Exception("Invalid consultation record + " + encryptedConsultationRecord);
+        }
+        String encryptedSegment = segment.get("segment").getAsString();
+        String iv = segment.get("iv").getAsString();
+
+        for (int attempt = 0; attempt < MAX_APPEND_ATTEMPTS; attempt++) {
+            Document merkleDocument = medicalRecordRepository.findMerkleTree(patientName).orElse(null);
+            if (merkleDocument == null) {
+                // a record stored before the Merkle digest, it is sealed when read
+                if (medicalRecordRepository.appendConsultationRecord(patientName, encryptedSegment, iv)) {
+                    recordCache.invalidate(patientName);
+                    return;
+                }
+                // either not appendable or sealed in the meantime
+                continue;
             }
-            // redo digest?
-            consultationRecords.add(consultationRecord);
-            record.add("consultations", consultationRecords.getAsJsonObject());
-            try {
-                medicalRecordRepository.save(gson.toJson(medicalRecordJson));
-            } catch (Exception e) {
-                e.printStackTrace();
+            JsonObject merkle = RecordDocuments.toJsonTree(merkleDocument).getAsJsonObject();
+            String previousRoot = merkle.get(RecordMerkleTree.ROOT).getAsString();
+            byte[] root = RecordMerkleTree.appendSegment(merkle, CONSULTATION_RECORDS, encryptedSegment);
+            JsonArray segmentHashes = merkle.get(CONSULTATION_RECORDS).getAsJsonArray();
+            String signature = computePool.call(() -> CryptoLibrary.signDigest(root, serverPrivate));
+
+            boolean appended = medicalRecordRepository.appendConsultationRecord(patientName, encryptedSegment, iv,
+                segmentHashes.get(segmentHashes.size() - 1).getAsString(),
+                merkle.get(RecordMerkleTree.FIELDS).getAsJsonObject().get(CONSULTATION_RECORDS).getAsString(),
+                RecordMerkleTree.encode(root), signature, previousRoot);
+            if (appended) {
+                recordCache.invalidate(patientName);
+                return;
             }
-        });
+            // either not appendable or another append changed the tree in the meantime
+        }
+        throw new Exception("Patient not found or consultation records not appendable");
     }
 
+    /**
+     * @param patientName
+     * @param doctorName the doctor whose public key, looked up in the key registry, wraps the keys
+     * @param keyfile kept for compatibility with older clients; the doctor's key is not read from a client-given path
+     */
     public String getSosKeys(String patientName, String doctorName, String keyfile) throws Exception {
-        String patientRecord = medicalRecordRepository.find(patientName).orElse(null);
+        // only the metadata is needed
+        Document patientRecord = findMedicalRecord(patientName, new String[0]);
         if (patientRecord == null) {
             return null;
         }
-        JsonObject patientRecordJson = gson.fromJson(patientRecord, JsonObject.class);
-        JsonObject encryptedSosKeys = patientRecordJson.get("metadata").getAsJsonObject().get("sos").getAsJsonObject();
-        Key doctorPublic = CryptoLibrary.readPublicKey("../keys/" + keyfile);
-        JsonObject doctorKeys = CryptoLibrary.protectKeys(CryptoLibrary.unprotectKeys(encryptedSosKeys, sosPrivate), doctorPublic, CryptoLibrary.FIELDS);
+        JsonObject encryptedSosKeys = RecordDocuments.toJsonTree(
+            patientRecord.get("metadata", Document.class).get("sos")).getAsJsonObject();
+        Key doctorPublic = keyRegistry.getDoctorPublicKey(doctorName);
+        JsonObject doctorKeys = computePool.call(() -> CryptoLibrary.protectKeys(
+            CryptoLibrary.unprotectKeys(encryptedSosKeys, sosPrivate), doctorPublic, CryptoLibrary.FIELDS));
         return gson.toJson(doctorKeys);
     }
 }
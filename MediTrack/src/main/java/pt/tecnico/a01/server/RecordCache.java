@@ -0,0 +1,210 @@
+package main.java.pt.tecnico.a01.server;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bson.Document;
+import org.bson.types.Binary;
+
+import com.google.gson.JsonObject;
+
+/**
+ * Bounded, time-limited cache of stored records, by patient name.
+ *
+ * The same records are read by many doctors within minutes (e.g. on an ER admission). A cached record is the
+ * Document read from Mongo, already parsed, so a hit skips both the query and the parsing; reads build their
+ * response from a view of it (see {@link RecordDocuments#view(Document, String[])}) and never modify it.
+ *
+ * Entries are evicted least recently used first when there are more than the maximum number of them or their
+ * total weight, the approximate size of their values in bytes, is above the maximum, and expire after a fixed
+ * time. The service invalidates a patient's entry on every write to the record. A record read from Mongo is only
+ * cached if no entry was invalidated while it was being read, so a read racing with a write never caches the
+ * record as it was before the write.
+ *
+ * The limits are configured in {@link ServerConfig}; a maximum of 0 entries disables caching.
+ */
+public final class RecordCache {
+
+    private static final class Entry {
+        private final Document record;
+        private final long weight;
+        private final long expiresAt;
+
+        private Entry(Document record, long weight, long expiresAt) {
+            this.record = record;
+            this.weight = weight;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final int maxEntries;
+    private final long maxWeight;
+    private final long ttl;
+    private final LinkedHashMap<String, Entry> entries;
+
+    private long weight;
+    private long generation;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long invalidations;
+
+    public RecordCache(int maxEntries, long maxWeight, long ttl) {
+        this.maxEntries = maxEntries;
+        this.maxWeight = maxWeight;
+        this.ttl = ttl;
+        // access order, so the eldest entry is the least recently used one
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    }
+
+    public boolean isEnabled() {
+        return maxEntries > 0;
+    }
+
+    /**
+     * @param  patientName
+     * @return             The cached record, which must not be modified, or null on a miss.
+     */
+    public synchronized Document get(String patientName) {
+        Entry entry = entries.get(patientName);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        if (entry.expiresAt <= System.currentTimeMillis()) {
+            remove(patientName);
+            evictions++;
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.record;
+    }
+
+    /**
+     * @return The generation to pass to {@link #put(String, Document, long)}, taken before reading the record.
+     */
+    public synchronized long generation() {
+        return generation;
+    }
+
+    /**
+     * Caches a record read from Mongo, unless an entry was invalidated since the given generation was taken.
+     */
+    public synchronized void put(String patientName, Document record, long readGeneration) {
+        if (!isEnabled() || readGeneration != generation) {
+            return;
+        }
+        long recordWeight = weigh(record);
+        if (recordWeight > maxWeight) {
+            return;
+        }
+        remove(patientName);
+        entries.put(patientName, new Entry(record, recordWeight, System.currentTimeMillis() + ttl));
+        weight += recordWeight;
+        Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+        while (entries.size() > maxEntries || weight > maxWeight) {
+            weight -= eldest.next().getValue().weight;
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * Removes a patient's record, to be called after every write to it.
+     */
+    public synchronized void invalidate(String patientName) {
+        generation++;
+        if (remove(patientName)) {
+            invalidations++;
+        }
+    }
+
+    public synchronized void invalidateAll() {
+        generation++;
+        invalidations += entries.size();
+        entries.clear();
+        weight = 0;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getWeight() {
+        return weight;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized long getInvalidations() {
+        return invalidations;
+    }
+
+    /**
+     * @return The cache's size and counters, e.g. for a metrics endpoint.
+     */
+    public synchronized JsonObject getStats() {
+        JsonObject stats = new JsonObject();
+        stats.addProperty("size", entries.size());
+        stats.addProperty("weight", weight);
+        stats.addProperty("maxEntries", maxEntries);
+        stats.addProperty("maxWeight", maxWeight);
+        stats.addProperty("hits", hits);
+        stats.addProperty("misses", misses);
+        stats.addProperty("evictions", evictions);
+        stats.addProperty("invalidations", invalidations);
+        return stats;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("RecordCache[size=%d, weight=%d, hits=%d, misses=%d, evictions=%d, invalidations=%d]",
+            entries.size(), weight, hits, misses, evictions, invalidations);
+    }
+
+    private boolean remove(String patientName) {
+        Entry entry = entries.remove(patientName);
+        if (entry == null) {
+            return false;
+        }
+        weight -= entry.weight;
+        return true;
+    }
+
+    /**
+     * @return The approximate size of a stored value in bytes: the length of its binaries and strings, and a
+     *         few bytes per member and element.
+     */
+    private static long weigh(Object value) {
+        if (value instanceof Binary) {
+            return ((Binary) value).length();
+        }
+        if (value instanceof String) {
+            return ((String) value).length();
+        }
+        long weight = 16;
+        if (value instanceof Document) {
+            for (Map.Entry<String, Object> member : ((Document) value).entrySet()) {
+                weight += member.getKey().length() + weigh(member.getValue());
+            }
+        } else if (value instanceof List) {
+            for (Object element : (List<?>) value) {
+                weight += weigh(element);
+            }
+        }
+        return weight;
+    }
+}
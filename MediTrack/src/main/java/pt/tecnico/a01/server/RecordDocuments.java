@@ -0,0 +1,251 @@
+package main.java.pt.tecnico.a01.server;
+
+import main.java.pt.tecnico.a01.cryptography.CryptoLibrary;
+import main.java.pt.tecnico.a01.cryptography.RecordEnvelope;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+
+import org.bson.Document;
+import org.bson.codecs.DocumentCodec;
+import org.bson.codecs.EncoderContext;
+import org.bson.json.JsonMode;
+import org.bson.json.JsonWriter;
+import org.bson.json.JsonWriterSettings;
+import org.bson.types.Binary;
+import org.bson.types.ObjectId;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+
+/**
+ * Converts protected records between their JSON form and the form they are stored in.
+ *
+ * In Mongo, every ciphertext, IV, wrapped key, hash and token of a record is a BSON Binary instead of a Base64
+ * string, which is about a quarter smaller on disk and over the wire to Mongo. Records stay documents, so fields
+ * can still be projected out and segments pushed one at a time. When a record is serialized to JSON, the binary
+ * values are written back as the Base64 strings they came from; records stored before, with string values, read
+ * the same.
+ *
+ * The server converts between documents and the Gson trees the cryptographic library works on directly, and
+ * writes documents straight to the response, so a record is never held as an intermediate JSON string.
+ */
+public final class RecordDocuments {
+
+    /** Relaxed JSON with binary values written as Base64 strings. */
+    public static final JsonWriterSettings JSON = JsonWriterSettings.builder()
+        .outputMode(JsonMode.RELAXED)
+        .binaryConverter((value, writer) -> writer.writeString(Base64.getEncoder().encodeToString(value.getData())))
+        .build();
+
+    private static final String RECORD = "record";
+    private static final String METADATA = "metadata";
+    private static final String OBJECT_ID = "$oid";
+
+    private static final DocumentCodec CODEC = new DocumentCodec();
+
+    private RecordDocuments() {
+    }
+
+    /**
+     * Parses a protected record for storage. Only the record and its metadata are converted: the patient's name,
+     * which records are looked up by, is kept as it is.
+     */
+    public static Document parse(String json) {
+        Document document = Document.parse(json);
+        for (String member : new String[] {RECORD, METADATA}) {
+            if (document.get(member) != null) {
+                document.put(member, toStorage(document.get(member)));
+            }
+        }
+        return document;
+    }
+
+    /**
+     * Same as {@link #parse(String)}, for a record that was already parsed with Gson (e.g. to add its digest).
+     */
+    public static Document toDocument(JsonObject record) {
+        Document document = new Document();
+        for (Map.Entry<String, JsonElement> member : record.entrySet()) {
+            boolean stored = member.getKey().equals(RECORD) || member.getKey().equals(METADATA);
+            document.put(member.getKey(), toValue(member.getValue(), stored));
+        }
+        return document;
+    }
+
+    /**
+     * @return The value as stored, with every canonical Base64 string, at any depth, replaced with its bytes.
+     */
+    public static Object toStorage(JsonElement value) {
+        return toValue(value, true);
+    }
+
+    /**
+     * @return The value with every canonical Base64 string, at any depth, replaced with its bytes.
+     */
+    public static Object toStorage(Object value) {
+        if (value instanceof String) {
+            byte[] bytes = RecordEnvelope.decodeCanonicalBase64((String) value);
+            return bytes != null ? new Binary(bytes) : value;
+        }
+        if (value instanceof Document) {
+            Document document = (Document) value;
+            for (Map.Entry<String, Object> member : document.entrySet()) {
+                member.setValue(toStorage(member.getValue()));
+            }
+            return document;
+        }
+        if (value instanceof List) {
+            List<Object> converted = new ArrayList<Object>();
+            for (Object element : (List<?>) value) {
+                converted.add(toStorage(element));
+            }
+            return converted;
+        }
+        return value;
+    }
+
+    /**
+     * @param  record  A stored record, which is not modified.
+     * @param  fields  The protected fields to keep, or null for all of them.
+     * @return         A copy of the record with only the given fields, and a metadata copy that can be added to.
+     *                 The values themselves are shared with the record.
+     */
+    public static Document view(Document record, String[] fields) {
+        Document view = new Document(record);
+        Document protectedFields = record.get(RECORD, Document.class);
+        if (protectedFields != null && fields != null) {
+            Document requested = new Document(protectedFields);
+            for (String field : CryptoLibrary.FIELDS) {
+                if (!Arrays.asList(fields).contains(field)) {
+                    requested.remove(field);
+                }
+            }
+            view.put(RECORD, requested);
+        }
+        Document metadata = record.get(METADATA, Document.class);
+        if (metadata != null) {
+            view.put(METADATA, new Document(metadata));
+        }
+        return view;
+    }
+
+    public static String toJson(Document document) {
+        return document.toJson(JSON);
+    }
+
+    /**
+     * Writes the document as {@link #toJson(Document)} does, without building the string.
+     */
+    public static void writeJson(Document document, OutputStream out) throws IOException {
+        Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+        writeJson(document, writer);
+        writer.flush();
+    }
+
+    /**
+     * Same as {@link #writeJson(Document, OutputStream)}, leaving it to the caller to flush the writer.
+     */
+    public static void writeJson(Document document, Writer writer) {
+        CODEC.encode(new JsonWriter(writer, JSON), document, EncoderContext.builder().build());
+    }
+
+    /**
+     * @return The value as the Gson tree {@link #toJson(Document)} would be parsed into, built without the string.
+     */
+    public static JsonElement toJsonTree(Object value) {
+        if (value == null) {
+            return JsonNull.INSTANCE;
+        }
+        if (value instanceof Binary) {
+            return new JsonPrimitive(Base64.getEncoder().encodeToString(((Binary) value).getData()));
+        }
+        if (value instanceof String) {
+            return new JsonPrimitive((String) value);
+        }
+        if (value instanceof Boolean) {
+            return new JsonPrimitive((Boolean) value);
+        }
+        if (value instanceof Integer || value instanceof Long || value instanceof Double) {
+            return new JsonPrimitive((Number) value);
+        }
+        if (value instanceof ObjectId) {
+            JsonObject objectId = new JsonObject();
+            objectId.addProperty(OBJECT_ID, ((ObjectId) value).toHexString());
+            return objectId;
+        }
+        if (value instanceof Document) {
+            JsonObject object = new JsonObject();
+            for (Map.Entry<String, Object> member : ((Document) value).entrySet()) {
+                object.add(member.getKey(), toJsonTree(member.getValue()));
+            }
+            return object;
+        }
+        if (value instanceof List) {
+            JsonArray array = new JsonArray();
+            for (Object element : (List<?>) value) {
+                array.add(toJsonTree(element));
+            }
+            return array;
+        }
+        // any other BSON type, which records do not hold, is converted the slow way
+        return JsonParser.parseString(new Document("value", value).toJson(JSON)).getAsJsonObject().get("value");
+    }
+
+    private static Object toValue(JsonElement value, boolean stored) {
+        if (value.isJsonNull()) {
+            return null;
+        }
+        if (value.isJsonObject()) {
+            JsonObject object = value.getAsJsonObject();
+            if (object.size() == 1 && object.has(OBJECT_ID) && object.get(OBJECT_ID).isJsonPrimitive()) {
+                // the id of a record that was read from the server and is saved again
+                return new ObjectId(object.get(OBJECT_ID).getAsString());
+            }
+            Document document = new Document();
+            for (Map.Entry<String, JsonElement> member : object.entrySet()) {
+                document.put(member.getKey(), toValue(member.getValue(), stored));
+            }
+            return document;
+        }
+        if (value.isJsonArray()) {
+            List<Object> list = new ArrayList<Object>();
+            for (JsonElement element : value.getAsJsonArray()) {
+                list.add(toValue(element, stored));
+            }
+            return list;
+        }
+        JsonPrimitive primitive = value.getAsJsonPrimitive();
+        if (primitive.isBoolean()) {
+            return primitive.getAsBoolean();
+        }
+        if (primitive.isNumber()) {
+            return toNumber(primitive.getAsString());
+        }
+        return stored ? toStorage(primitive.getAsString()) : primitive.getAsString();
+    }
+
+    /**
+     * @return The number as Document.parse reads it: an Integer or Long if it is integral, else a Double.
+     */
+    private static Number toNumber(String number) {
+        try {
+            long integral = Long.parseLong(number);
+            return integral == (int) integral ? (Number) (int) integral : (Number) integral;
+        } catch (NumberFormatException e) {
+            return Double.parseDouble(number);
+        }
+    }
+}
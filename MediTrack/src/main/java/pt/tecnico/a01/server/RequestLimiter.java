@@ -0,0 +1,71 @@
+package main.java.pt.tecnico.a01.server;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import spark.Response;
+import spark.Route;
+
+/**
+ * Bounds the number of requests the server handles at once.
+ *
+ * Spark queues the connections its Jetty threads cannot take yet without limit, so under a burst the latency of
+ * every request grows with the backlog. Routes wrapped by the limiter first take one of a fixed number of permits;
+ * a request that cannot get one within the admission timeout is answered with 503 Service Unavailable and a
+ * Retry-After header right away, which keeps the latency of the admitted requests bounded.
+ *
+ * The limits are configured in {@link ServerConfig}.
+ */
+public class RequestLimiter {
+
+    private static final int SERVICE_UNAVAILABLE = 503;
+    private static final String RETRY_AFTER_SECONDS = "1";
+    private static final String ERROR_BUSY = "Server busy, retry later";
+
+    private final Semaphore permits;
+    private final int maxConcurrent;
+    private final long admissionTimeoutMillis;
+
+    public RequestLimiter(int maxConcurrent, long admissionTimeoutMillis) {
+        if (maxConcurrent < 1 || admissionTimeoutMillis < 0) {
+            throw new IllegalArgumentException("Invalid request limits: " + maxConcurrent + " request(s), "
+                + admissionTimeoutMillis + " ms");
+        }
+        this.permits = new Semaphore(maxConcurrent, true);
+        this.maxConcurrent = maxConcurrent;
+        this.admissionTimeoutMillis = admissionTimeoutMillis;
+    }
+
+    /**
+     * @return The route, admitted only while fewer than the maximum number of requests are being handled.
+     */
+    public Route limit(Route route) {
+        return (req, res) -> {
+            if (!permits.tryAcquire(admissionTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                return busy(res);
+            }
+            try {
+                return route.handle(req, res);
+            } finally {
+                permits.release();
+            }
+        };
+    }
+
+    /**
+     * Answers a request that was turned away, either here or by the compute pool.
+     */
+    public static String busy(Response res) {
+        res.status(SERVICE_UNAVAILABLE);
+        res.header("Retry-After", RETRY_AFTER_SECONDS);
+        return ERROR_BUSY;
+    }
+
+    public int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+
+    public long getAdmissionTimeoutMillis() {
+        return admissionTimeoutMillis;
+    }
+}
@@ -2,33 +2,115 @@ package main.java.pt.tecnico.a01.server;
 
 import static spark.Spark.*;
 
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+
+import main.java.pt.tecnico.a01.cryptography.RecordEnvelope;
+import spark.Request;
+import spark.Response;
+
 
 public class ServerApplication {
 
+	private static final String JSON_TYPE = "application/json";
+	private static final String NDJSON_TYPE = "application/x-ndjson";
+
 	public static void main(String[] args) {
 		try {
-			MedicalRecordService medicalRecordService = new MedicalRecordService();
-			port(4000);
-			get("/:name", (req, res) -> {
+			ServerConfig config = ServerConfig.load();
+			config.print();
+			RequestLimiter limiter = config.createRequestLimiter();
+			MedicalRecordService medicalRecordService = new MedicalRecordService(config);
+			port(config.getPort());
+			// request threads wait on Mongo; RSA work runs on the compute pool, admission is bounded by the limiter
+			threadPool(config.getMaxThreads(), config.getMinThreads(), config.getIdleTimeoutMillis());
+			// registered before /:name, which would match it too
+			get("/records", limiter.limit((req, res) -> {
 				try {
-					return medicalRecordService.getMedicalRecord(req.params(":name"));
-				} catch (Exception e) {
-					res.status(404);
+					long limit = parseLimit(req.queryParams("limit"));
+					boolean envelopes = acceptsEnvelope(req);
+					res.type(envelopes ? RecordEnvelope.MEDIA_TYPE : NDJSON_TYPE);
+					// no Content-Length: the records are sent with chunked transfer encoding as they are read
+					medicalRecordService.exportMedicalRecords(req.queryParams("after"), limit, envelopes,
+						res.raw().getOutputStream());
+					return "";
+				} catch (IllegalArgumentException e) {
+					res.status(400);
 					return e.getMessage();
+				} catch (Exception e) {
+					return failure(res, e);
 				}
-			});
+			}));
+
+			get("/:name", limiter.limit((req, res) -> {
+				try {
+					String fields = req.queryParams("fields");
+					String[] requested = fields == null ? null : fields.split(",");
+					String sharedWith = req.queryParams("sharedWith");
+					if (sharedWith != null) {
+						requested = medicalRecordService.getSharedFields(sharedWith, req.params(":name"));
+					}
+					if (acceptsEnvelope(req)) {
+						res.type(RecordEnvelope.MEDIA_TYPE);
+						return medicalRecordService.getMedicalRecordEnvelope(req.params(":name"), requested);
+					}
+					res.type(JSON_TYPE);
+					medicalRecordService.writeMedicalRecord(req.params(":name"), requested, res.raw().getOutputStream());
+					return "";
+				} catch (Exception e) {
+					return failure(res, e);
+				}
+			}));
 
-			put("/:name", (req, res) -> {
+			put("/:name", limiter.limit((req, res) -> {
 				System.out.println("_________________________________Saving record..._________________________");
 				try {
+					if (isEnvelope(req)) {
+						return medicalRecordService.saveMedicalRecord(req.bodyAsBytes());
+					}
 					return medicalRecordService.saveMedicalRecord(req.body());
 				} catch (Exception e) {
-					res.status(404);
-					return e.getMessage();
+					return failure(res, e);
 				}
+			}));
+
+			post("/records/bulk", limiter.limit((req, res) -> {
+				try {
+					res.type(NDJSON_TYPE);
+					medicalRecordService.importMedicalRecords(bodyStream(req), res.raw().getOutputStream());
+					return "";
+				} catch (Exception e) {
+					return failure(res, e);
+				}
+			}));
+
+			post("/:name/consultations", limiter.limit((req, res) -> {
+				try {
+					medicalRecordService.addConsultationRecordAsDoctor(req.params(":name"), req.body());
+					return "OK";
+				} catch (Exception e) {
+					return failure(res, e);
+				}
+			}));
+
+			get("/metrics/cache", (req, res) -> {
+				res.type(JSON_TYPE);
+				return medicalRecordService.getCacheStats();
 			});
 
-			get("/keys/:doctorName/:patientName", (req, res) -> {
+			get("/keys/:doctorName", limiter.limit((req, res) -> {
+				try {
+					res.type(JSON_TYPE);
+					return medicalRecordService.getAllKeys(req.params(":doctorName"));
+				} catch (Exception e) {
+					return failure(res, e);
+				}
+			}));
+
+			get("/keys/:doctorName/:patientName", limiter.limit((req, res) -> {
 				try {
 					String keys = medicalRecordService.getKeys(req.params(":doctorName"), req.params(":patientName"));
 					if (keys == null) {
@@ -36,32 +118,89 @@ public class ServerApplication {
 					}
 					return keys;
 				} catch (Exception e) {
-					res.status(404);
-					return e.getMessage();
+					return failure(res, e);
 				}
-			});
+			}));
 
-			post("/keys/:doctorName/:patientName", (req, res) -> {
+			post("/keys/:doctorName/:patientName", limiter.limit((req, res) -> {
 				try {
 					medicalRecordService.shareKeys(req.params(":doctorName"), req.params(":patientName"), req.body());
 					return "OK";
 				} catch (Exception e) {
-					res.status(404);
-					return e.getMessage();
+					return failure(res, e);
 				}
-			});
+			}));
 
-			get("/sos/:patientName/:doctorName/:keyfile", (req, res) -> {
+			get("/sos/:patientName/:doctorName/:keyfile", limiter.limit((req, res) -> {
 				try {
 					return medicalRecordService.getSosKeys(req.params(":patientName"), req.params(":doctorName"), req.params(":keyfile"));
 				} catch (Exception e) {
-					res.status(404);
-					return e.getMessage();
+					return failure(res, e);
 				}
-			});
+			}));
 		} catch(Exception e) {
 			System.out.println("Error starting server: " + e);
 		}
 	}
+
+	/**
+	 * Requests turned away for lack of capacity are answered with 503, any other failure with 404. A response
+	 * already partly sent cannot change status, and an error message would be taken as part of its content.
+	 */
+	private static String failure(Response res, Exception e) {
+		if (res.raw().isCommitted()) {
+			System.out.println("Request failed after its response was sent: " + e.getMessage());
+			return "";
+		}
+		if (e instanceof ServerBusyException) {
+			return RequestLimiter.busy(res);
+		}
+		res.status(404);
+		return e.getMessage();
+	}
+
+	/**
+	 * @return the limit of an export, 0 if none
+	 * @throws IllegalArgumentException if it is not a number of records
+	 */
+	private static long parseLimit(String limit) {
+		if (limit == null) {
+			return 0;
+		}
+		try {
+			long parsed = Long.parseLong(limit);
+			if (parsed >= 0) {
+				return parsed;
+			}
+		} catch (NumberFormatException e) {
+			// reported below
+		}
+		throw new IllegalArgumentException("Invalid limit: " + limit);
+	}
+
+	/**
+	 * Spark's request wrapper reads the whole body into memory when it is first read; the request it wraps streams
+	 * it.
+	 */
+	private static InputStream bodyStream(Request req) throws IOException {
+		HttpServletRequest raw = req.raw();
+		while (raw instanceof HttpServletRequestWrapper) {
+			raw = (HttpServletRequest) ((HttpServletRequestWrapper) raw).getRequest();
+		}
+		return raw.getInputStream();
+	}
+
+	/**
+	 * Records are sent as binary envelopes to clients that ask for them, and as JSON otherwise.
+	 */
+	private static boolean acceptsEnvelope(Request req) {
+		String accept = req.headers("Accept");
+		return accept != null && accept.contains(RecordEnvelope.MEDIA_TYPE);
+	}
+
+	private static boolean isEnvelope(Request req) {
+		String contentType = req.contentType();
+		return contentType != null && contentType.startsWith(RecordEnvelope.MEDIA_TYPE);
+	}
 	
 }
@@ -0,0 +1,12 @@
+package main.java.pt.tecnico.a01.server;
+
+/**
+ * Thrown when a request is turned away because the server is at capacity. Routes answer it with 503 Service
+ * Unavailable, so clients can tell an overloaded server from a missing record and retry later.
+ */
+public class ServerBusyException extends Exception {
+
+    public ServerBusyException(String message) {
+        super(message);
+    }
+}
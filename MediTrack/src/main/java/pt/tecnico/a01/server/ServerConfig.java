@@ -0,0 +1,371 @@
+package main.java.pt.tecnico.a01.server;
+
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import com.mongodb.ConnectionString;
+import com.mongodb.MongoClientSettings;
+import com.mongodb.WriteConcern;
+
+/**
+ * The server's configuration: where it listens, where Mongo and the keys are, and how its pools are sized.
+ *
+ * Every setting has a default and can be overridden, from lowest to highest precedence, by:
+ * <ul>
+ *   <li>a properties file, {@code server.properties} in the working directory if present, or the file named by
+ *       the {@code meditrack.server.config} system property or {@code MEDITRACK_SERVER_CONFIG} environment
+ *       variable;</li>
+ *   <li>an environment variable, named after the setting in upper case with dots replaced by underscores
+ *       (e.g. {@code MEDITRACK_MONGO_URI} for {@code meditrack.mongo.uri});</li>
+ *   <li>a system property with the setting's name (e.g. {@code -Dmeditrack.server.port=4001}).</li>
+ * </ul>
+ * The configuration is validated once, when loaded, and every invalid setting is reported together.
+ */
+public final class ServerConfig {
+
+    public static final String CONFIG_PROPERTY = "meditrack.server.config";
+    public static final String DEFAULT_CONFIG_FILE = "server.properties";
+
+    public static final String PORT = "meditrack.server.port";
+    public static final String KEYS_DIR = "meditrack.server.keysDir";
+    public static final String MAX_THREADS = "meditrack.server.maxThreads";
+    public static final String MIN_THREADS = "meditrack.server.minThreads";
+    public static final String IDLE_TIMEOUT = "meditrack.server.idleTimeoutMillis";
+    public static final String MAX_CONCURRENT_REQUESTS = "meditrack.server.maxConcurrentRequests";
+    public static final String ADMISSION_TIMEOUT = "meditrack.server.admissionTimeoutMillis";
+    public static final String COMPUTE_THREADS = "meditrack.server.computeThreads";
+    public static final String COMPUTE_QUEUE = "meditrack.server.computeQueue";
+    public static final String FRESHNESS_EPOCH = FreshnessService.EPOCH_PROPERTY;
+    public static final String CACHE_MAX_ENTRIES = "meditrack.cache.maxEntries";
+    public static final String CACHE_MAX_WEIGHT = "meditrack.cache.maxWeightBytes";
+    public static final String CACHE_TTL = "meditrack.cache.ttlMillis";
+    public static final String EXPORT_BATCH_SIZE = "meditrack.export.batchSize";
+    public static final String BULK_BATCH_SIZE = "meditrack.bulk.batchSize";
+    public static final String BULK_MAX_RECORD_BYTES = "meditrack.bulk.maxRecordBytes";
+    public static final String MONGO_URI = "meditrack.mongo.uri";
+    public static final String MONGO_DATABASE = "meditrack.mongo.database";
+    public static final String MONGO_MAX_POOL_SIZE = "meditrack.mongo.maxPoolSize";
+    public static final String MONGO_MIN_POOL_SIZE = "meditrack.mongo.minPoolSize";
+    public static final String MONGO_MAX_WAIT = "meditrack.mongo.maxWaitMillis";
+    public static final String MONGO_CONNECT_TIMEOUT = "meditrack.mongo.connectTimeoutMillis";
+    public static final String MONGO_SOCKET_TIMEOUT = "meditrack.mongo.socketTimeoutMillis";
+    public static final String MONGO_WRITE_CONCERN = "meditrack.mongo.writeConcern";
+    // one-time move of the keys kept in per-doctor collections by older servers into shared_keys
+    public static final String MIGRATE_SHARED_KEYS = "meditrack.mongo.migrateSharedKeys";
+
+    // a few request threads are kept out of the limiter, so there is always one to turn requests away
+    private static final int RESERVED_THREADS = 4;
+    private static final int COMPUTE_QUEUE_PER_THREAD = 16;
+
+    private static final String MESSAGE_CONFIG = "[MediTrack - server]: ";
+    private static final String ERROR_INVALID = "Invalid server configuration: ";
+    private static final String ERROR_FILE = "Cannot read the server configuration file ";
+
+    private final Properties settings;
+    private final List<String> errors = new ArrayList<String>();
+
+    private final int port;
+    private final String keysDir;
+    private final int maxThreads;
+    private final int minThreads;
+    private final int idleTimeoutMillis;
+    private final int maxConcurrentRequests;
+    private final long admissionTimeoutMillis;
+    private final int computeThreads;
+    private final int computeQueue;
+    private final long freshnessEpochMillis;
+    private final int cacheMaxEntries;
+    private final long cacheMaxWeight;
+    private final long cacheTtlMillis;
+    private final int exportBatchSize;
+    private final int bulkBatchSize;
+    private final int bulkMaxRecordBytes;
+    private final String mongoUri;
+    private final String mongoDatabase;
+    private final int mongoMaxPoolSize;
+    private final int mongoMinPoolSize;
+    private final long mongoMaxWaitMillis;
+    private final int mongoConnectTimeoutMillis;
+    private final int mongoSocketTimeoutMillis;
+    private final String mongoWriteConcernName;
+    private final WriteConcern mongoWriteConcern;
+    private final boolean migrateSharedKeys;
+
+    private ServerConfig(Properties settings) throws Exception {
+        this.settings = settings;
+        this.port = intSetting(PORT, 4000, 1);
+        this.keysDir = stringSetting(KEYS_DIR, "../keys");
+        this.maxThreads = intSetting(MAX_THREADS, 64, RESERVED_THREADS + 1);
+        this.minThreads = intSetting(MIN_THREADS, Math.min(8, maxThreads), 1);
+        this.idleTimeoutMillis = intSetting(IDLE_TIMEOUT, 60000, 1);
+        this.maxConcurrentRequests = intSetting(MAX_CONCURRENT_REQUESTS, maxThreads - RESERVED_THREADS, 1);
+        this.admissionTimeoutMillis = longSetting(ADMISSION_TIMEOUT, 100, 0);
+        this.computeThreads = intSetting(COMPUTE_THREADS, Runtime.getRuntime().availableProcessors(), 1);
+        this.computeQueue = intSetting(COMPUTE_QUEUE, COMPUTE_QUEUE_PER_THREAD * computeThreads, 1);
+        this.freshnessEpochMillis = longSetting(FRESHNESS_EPOCH, 1000, 1);
+        this.cacheMaxEntries = intSetting(CACHE_MAX_ENTRIES, 1024, 0);
+        this.cacheMaxWeight = longSetting(CACHE_MAX_WEIGHT, 64L * 1024 * 1024, 1);
+        this.cacheTtlMillis = longSetting(CACHE_TTL, 60000, 1);
+        this.exportBatchSize = intSetting(EXPORT_BATCH_SIZE, 500, 1);
+        this.bulkBatchSize = intSetting(BULK_BATCH_SIZE, 1000, 1);
+        // Mongo's maximum document size
+        this.bulkMaxRecordBytes = intSetting(BULK_MAX_RECORD_BYTES, 16 * 1024 * 1024, 1);
+        this.mongoUri = stringSetting(MONGO_URI, "mongodb://192.168.56.10:27017");
+        this.mongoDatabase = stringSetting(MONGO_DATABASE, "meditrack");
+        this.mongoMaxPoolSize = intSetting(MONGO_MAX_POOL_SIZE, maxConcurrentRequests, 1);
+        this.mongoMinPoolSize = intSetting(MONGO_MIN_POOL_SIZE, 0, 0);
+        this.mongoMaxWaitMillis = longSetting(MONGO_MAX_WAIT, 2000, 0);
+        this.mongoConnectTimeoutMillis = intSetting(MONGO_CONNECT_TIMEOUT, 10000, 0);
+        this.mongoSocketTimeoutMillis = intSetting(MONGO_SOCKET_TIMEOUT, 30000, 0);
+        this.mongoWriteConcernName = stringSetting(MONGO_WRITE_CONCERN, "ACKNOWLEDGED").toUpperCase();
+        this.mongoWriteConcern = writeConcern(mongoWriteConcernName);
+        this.migrateSharedKeys = booleanSetting(MIGRATE_SHARED_KEYS, false);
+
+        if (minThreads > maxThreads) {
+            errors.add(MIN_THREADS + " (" + minThreads + ") is above " + MAX_THREADS + " (" + maxThreads + ")");
+        }
+        if (maxConcurrentRequests > maxThreads) {
+            errors.add(MAX_CONCURRENT_REQUESTS + " (" + maxConcurrentRequests + ") is above " + MAX_THREADS
+                + " (" + maxThreads + ")");
+        }
+        if (mongoMinPoolSize > mongoMaxPoolSize) {
+            errors.add(MONGO_MIN_POOL_SIZE + " (" + mongoMinPoolSize + ") is above " + MONGO_MAX_POOL_SIZE
+                + " (" + mongoMaxPoolSize + ")");
+        }
+        try {
+            new ConnectionString(mongoUri);
+        } catch (IllegalArgumentException e) {
+            errors.add(MONGO_URI + " is not a Mongo connection string: " + e.getMessage());
+        }
+        if (!Files.isDirectory(Paths.get(keysDir))) {
+            errors.add(KEYS_DIR + " is not a directory: " + keysDir);
+        }
+        if (!errors.isEmpty()) {
+            throw new Exception(ERROR_INVALID + String.join("; ", errors));
+        }
+    }
+
+    /**
+     * Loads the configuration from the defaults, the configuration file, the environment and the system
+     * properties.
+     *
+     * @throws Exception If the configuration file cannot be read or any setting is invalid.
+     */
+    public static ServerConfig load() throws Exception {
+        return load(System.getenv(), System.getProperties());
+    }
+
+    public static ServerConfig load(Map<String, String> environment, Properties systemProperties) throws Exception {
+        Properties settings = new Properties();
+
+        String file = systemProperties.getProperty(CONFIG_PROPERTY, environment.get(environmentName(CONFIG_PROPERTY)));
+        Path configFile = Paths.get(file != null ? file : DEFAULT_CONFIG_FILE);
+        if (file != null || Files.isRegularFile(configFile)) {
+            try (InputStream in = Files.newInputStream(configFile)) {
+                settings.load(in);
+            } catch (Exception e) {
+                throw new Exception(ERROR_FILE + configFile + ": " + e);
+            }
+        }
+        for (String name : names()) {
+            String value = environment.get(environmentName(name));
+            if (value != null) {
+                settings.setProperty(name, value);
+            }
+            value = systemProperties.getProperty(name);
+            if (value != null) {
+                settings.setProperty(name, value);
+            }
+        }
+        return new ServerConfig(settings);
+    }
+
+    /**
+     * @return The environment variable overriding a setting, e.g. MEDITRACK_MONGO_URI for meditrack.mongo.uri.
+     */
+    public static String environmentName(String name) {
+        return name.toUpperCase().replace('.', '_');
+    }
+
+    /**
+     * @return The Mongo client settings: connection string, pool size, timeouts and write concern.
+     */
+    public MongoClientSettings mongoClientSettings() {
+        return MongoClientSettings.builder()
+            .applyConnectionString(new ConnectionString(mongoUri))
+            .applyToConnectionPoolSettings(builder -> builder
+                .maxSize(mongoMaxPoolSize)
+                .minSize(mongoMinPoolSize)
+                .maxWaitTime(mongoMaxWaitMillis, TimeUnit.MILLISECONDS))
+            .applyToSocketSettings(builder -> builder
+                .connectTimeout(mongoConnectTimeoutMillis, TimeUnit.MILLISECONDS)
+                .readTimeout(mongoSocketTimeoutMillis, TimeUnit.MILLISECONDS))
+            .writeConcern(mongoWriteConcern)
+            .build();
+    }
+
+    public RequestLimiter createRequestLimiter() {
+        return new RequestLimiter(maxConcurrentRequests, admissionTimeoutMillis);
+    }
+
+    public RecordCache createRecordCache() {
+        return new RecordCache(cacheMaxEntries, cacheMaxWeight, cacheTtlMillis);
+    }
+
+    public ComputePool createComputePool() {
+        return new ComputePool(computeThreads, computeQueue);
+    }
+
+    /**
+     * Prints the effective configuration, the same way whichever source each setting came from.
+     */
+    public void print() {
+        Map<String, Object> effective = new TreeMap<String, Object>();
+        effective.put(PORT, port);
+        effective.put(KEYS_DIR, Paths.get(keysDir).toAbsolutePath().normalize());
+        effective.put(MAX_THREADS, maxThreads);
+        effective.put(MIN_THREADS, minThreads);
+        effective.put(IDLE_TIMEOUT, idleTimeoutMillis);
+        effective.put(MAX_CONCURRENT_REQUESTS, maxConcurrentRequests);
+        effective.put(ADMISSION_TIMEOUT, admissionTimeoutMillis);
+        effective.put(COMPUTE_THREADS, computeThreads);
+        effective.put(COMPUTE_QUEUE, computeQueue);
+        effective.put(FRESHNESS_EPOCH, freshnessEpochMillis);
+        effective.put(CACHE_MAX_ENTRIES, cacheMaxEntries);
+        effective.put(CACHE_MAX_WEIGHT, cacheMaxWeight);
+        effective.put(CACHE_TTL, cacheTtlMillis);
+        effective.put(EXPORT_BATCH_SIZE, exportBatchSize);
+        effective.put(BULK_BATCH_SIZE, bulkBatchSize);
+        effective.put(BULK_MAX_RECORD_BYTES, bulkMaxRecordBytes);
+        // the connection string may hold credentials
+        effective.put(MONGO_URI, new ConnectionString(mongoUri).getHosts());
+        effective.put(MONGO_DATABASE, mongoDatabase);
+        effective.put(MONGO_MAX_POOL_SIZE, mongoMaxPoolSize);
+        effective.put(MONGO_MIN_POOL_SIZE, mongoMinPoolSize);
+        effective.put(MONGO_MAX_WAIT, mongoMaxWaitMillis);
+        effective.put(MONGO_CONNECT_TIMEOUT, mongoConnectTimeoutMillis);
+        effective.put(MONGO_SOCKET_TIMEOUT, mongoSocketTimeoutMillis);
+        effective.put(MONGO_WRITE_CONCERN, mongoWriteConcernName);
+        effective.put(MIGRATE_SHARED_KEYS, migrateSharedKeys);
+        System.out.println(MESSAGE_CONFIG + "Effective configuration:");
+        for (Map.Entry<String, Object> setting : effective.entrySet()) {
+            System.out.println(MESSAGE_CONFIG + "  " + setting.getKey() + " = " + setting.getValue());
+        }
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public String getKeysDir() {
+        return keysDir;
+    }
+
+    public int getMaxThreads() {
+        return maxThreads;
+    }
+
+    public int getMinThreads() {
+        return minThreads;
+    }
+
+    public int getIdleTimeoutMillis() {
+        return idleTimeoutMillis;
+    }
+
+    public long getFreshnessEpochMillis() {
+        return freshnessEpochMillis;
+    }
+
+    public int getExportBatchSize() {
+        return exportBatchSize;
+    }
+
+    public int getBulkBatchSize() {
+        return bulkBatchSize;
+    }
+
+    public int getBulkMaxRecordBytes() {
+        return bulkMaxRecordBytes;
+    }
+
+    public String getMongoDatabase() {
+        return mongoDatabase;
+    }
+
+    public boolean isMigrateSharedKeys() {
+        return migrateSharedKeys;
+    }
+
+    private static String[] names() {
+        return new String[] {PORT, KEYS_DIR, MAX_THREADS, MIN_THREADS, IDLE_TIMEOUT, MAX_CONCURRENT_REQUESTS,
+            ADMISSION_TIMEOUT, COMPUTE_THREADS, COMPUTE_QUEUE, FRESHNESS_EPOCH, CACHE_MAX_ENTRIES, CACHE_MAX_WEIGHT,
+            CACHE_TTL, EXPORT_BATCH_SIZE, BULK_BATCH_SIZE, BULK_MAX_RECORD_BYTES, MONGO_URI, MONGO_DATABASE,
+            MONGO_MAX_POOL_SIZE, MONGO_MIN_POOL_SIZE, MONGO_MAX_WAIT, MONGO_CONNECT_TIMEOUT, MONGO_SOCKET_TIMEOUT,
+            MONGO_WRITE_CONCERN, MIGRATE_SHARED_KEYS};
+    }
+
+    private String stringSetting(String name, String defaultValue) {
+        String value = settings.getProperty(name, defaultValue).trim();
+        if (value.isEmpty()) {
+            errors.add(name + " is empty");
+        }
+        return value;
+    }
+
+    private int intSetting(String name, int defaultValue, int min) {
+        long value = longSetting(name, defaultValue, min);
+        if (value > Integer.MAX_VALUE) {
+            errors.add(name + " is too large: " + value);
+            return defaultValue;
+        }
+        return (int) value;
+    }
+
+    private long longSetting(String name, long defaultValue, long min) {
+        String value = settings.getProperty(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            long parsed = Long.parseLong(value.trim());
+            if (parsed < min) {
+                errors.add(name + " must be at least " + min + ": " + parsed);
+                return defaultValue;
+            }
+            return parsed;
+        } catch (NumberFormatException e) {
+            errors.add(name + " is not a number: " + value);
+            return defaultValue;
+        }
+    }
+
+    private boolean booleanSetting(String name, boolean defaultValue) {
+        String value = settings.getProperty(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        if (!value.trim().equalsIgnoreCase("true") && !value.trim().equalsIgnoreCase("false")) {
+            errors.add(name + " is not true or false: " + value);
+            return defaultValue;
+        }
+        return Boolean.parseBoolean(value.trim());
+    }
+
+    private WriteConcern writeConcern(String value) {
+        WriteConcern writeConcern = WriteConcern.valueOf(value);
+        if (writeConcern == null) {
+            errors.add(MONGO_WRITE_CONCERN + " is not a write concern (e.g. ACKNOWLEDGED, W1, MAJORITY, JOURNALED): " + value);
+            return WriteConcern.ACKNOWLEDGED;
+        }
+        return writeConcern;
+    }
+}
@@ -0,0 +1,91 @@
+package pt.tecnico.a01.cryptography;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import org.junit.Test;
+
+import main.java.pt.tecnico.a01.cryptography.Base64Buffers;
+
+public class Base64BuffersTest {
+
+    @Test
+    public void decodesLikeTheJdkDecoder() {
+        // lengths 0 to 8 cover no padding, one "=" and two "="
+        for (int length = 0; length <= 8; length++) {
+            byte[] bytes = new byte[length];
+            for (int i = 0; i < length; i++) {
+                bytes[i] = (byte) (i * 37 - 100);
+            }
+            assertDecodes(bytes);
+        }
+    }
+
+    @Test
+    public void decodesEveryCharacterOfTheAlphabet() {
+        byte[] bytes = new byte[48];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) (i * 5 + 3);
+        }
+        assertDecodes(bytes);
+        assertDecodes(Base64.getDecoder().decode(
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/"));
+    }
+
+    @Test
+    public void decodesTheRemainingBytesInPlace() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(16);
+        buffer.put("xxAQIDxx".getBytes(StandardCharsets.US_ASCII));
+        buffer.position(2).limit(6);
+
+        ByteBuffer decoded = Base64Buffers.decodeInPlace(buffer);
+
+        assertEquals(6, buffer.position());
+        assertEquals(3, decoded.remaining());
+        assertEquals(1, decoded.get(0));
+        assertEquals(2, decoded.get(1));
+        assertEquals(3, decoded.get(2));
+        // the decoded bytes overwrite the text, where it started
+        assertEquals(1, buffer.get(2));
+        assertEquals('x', buffer.get(0));
+    }
+
+    @Test
+    public void rejectsInvalidText() {
+        String[] invalid = {
+            "A",            // not a multiple of 4
+            "AAAAA",
+            "AA=",
+            "AA*A",         // not in the alphabet
+            "AA-_",         // URL-safe alphabet
+            "AAA\n",
+            "AAA\u00e9",
+            "=AAA",         // padding out of place
+            "A=AA",
+            "AA=A",
+            "AA==AAAA",     // padding before the end
+            "AAA=AAAA",
+        };
+        for (String text : invalid) {
+            try {
+                Base64Buffers.decodeInPlace(ByteBuffer.wrap(text.getBytes(StandardCharsets.ISO_8859_1)));
+                fail("Decoded invalid Base64 text: " + text);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    private static void assertDecodes(byte[] bytes) {
+        byte[] text = Base64.getEncoder().encode(bytes);
+        ByteBuffer decoded = Base64Buffers.decodeInPlace(ByteBuffer.wrap(text));
+        byte[] actual = new byte[decoded.remaining()];
+        decoded.get(actual);
+        assertArrayEquals(bytes, actual);
+    }
+}
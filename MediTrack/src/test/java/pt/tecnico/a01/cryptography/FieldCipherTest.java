@@ -0,0 +1,128 @@
+package pt.tecnico.a01.cryptography;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.fail;
+
+import java.nio.charset.StandardCharsets;
+import java.security.Key;
+import java.util.Base64;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import main.java.pt.tecnico.a01.cryptography.CryptoLibrary;
+import main.java.pt.tecnico.a01.cryptography.FieldCipher;
+import main.java.pt.tecnico.a01.cryptography.KeyMaterialService;
+
+public class FieldCipherTest {
+
+    private static final String KEYS_DIR = "../keys/";
+    private static final String RECORD_FILE = "records/Bob.json";
+
+    private static final String FIELD = "bloodType";
+    private static final String OTHER_FIELD = "sex";
+    private static final String CONSULTATION_RECORDS = "consultationRecords";
+    private static final byte[] PLAINTEXT = "A+".getBytes(StandardCharsets.UTF_8);
+
+    private final Key key = KeyMaterialService.nextAesKey();
+
+    @Before
+    public void useDefaultCipher() {
+        System.clearProperty(FieldCipher.CIPHER_PROPERTY);
+    }
+
+    @Test
+    public void newRecordsRoundTripInGcm() throws Exception {
+        FieldCipher cipher = FieldCipher.create();
+        assertEquals(FieldCipher.VERSION_GCM, cipher.getVersion());
+        byte[] iv = cipher.nextIv();
+
+        byte[] ciphertext = cipher.encrypt(FIELD, PLAINTEXT, key, iv);
+
+        // read back with the cipher of the metadata, as unprotect does
+        assertArrayEquals(PLAINTEXT, FieldCipher.of(metadata(cipher)).decrypt(FIELD, ciphertext, key, iv));
+    }
+
+    @Test
+    public void protectedRecordRoundTripsInGcm() throws Exception {
+        Key serverPrivate = CryptoLibrary.readPrivateKey(KEYS_DIR + "server.privkey");
+        Key userPublic = CryptoLibrary.readPublicKey(KEYS_DIR + "user.pubkey");
+        Key userPrivate = CryptoLibrary.readPrivateKey(KEYS_DIR + "user.privkey");
+        Key sosPublic = CryptoLibrary.readPublicKey(KEYS_DIR + "sospub.key");
+        JsonObject patient = CryptoLibrary.readFileToJsonObject(RECORD_FILE);
+
+        JsonObject protectedRecord = CryptoLibrary.protect(patient.deepCopy(), serverPrivate, userPublic, sosPublic);
+
+        JsonObject metadata = protectedRecord.getAsJsonObject("metadata");
+        assertEquals(FieldCipher.VERSION_GCM, FieldCipher.of(metadata).getVersion());
+        assertEquals(patient, CryptoLibrary.unprotect(protectedRecord, userPrivate));
+    }
+
+    @Test
+    public void consultationRecordSegmentRoundTripsInGcm() throws Exception {
+        FieldCipher cipher = FieldCipher.create();
+        JsonObject consultationRecord = JsonParser.parseString("{\"date\": \"2024-01-01\","
+            + " \"treatmentSummary\": \"Rest\"}").getAsJsonObject();
+
+        JsonObject segment = CryptoLibrary.encryptConsultationRecord(consultationRecord, key, cipher);
+
+        byte[] decrypted = cipher.decrypt(CONSULTATION_RECORDS, decode(segment, "segment"), key,
+            decode(segment, "iv"));
+        assertEquals(consultationRecord, JsonParser.parseString(new String(decrypted, StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    public void rejectsCiphertextOfAnotherField() throws Exception {
+        FieldCipher cipher = FieldCipher.create();
+        byte[] iv = cipher.nextIv();
+        byte[] ciphertext = cipher.encrypt(FIELD, PLAINTEXT, key, iv);
+
+        assertRejected(cipher, OTHER_FIELD, ciphertext, iv);
+    }
+
+    @Test
+    public void rejectsCiphertextOfAnotherRecord() throws Exception {
+        FieldCipher cipher = FieldCipher.create();
+        byte[] iv = cipher.nextIv();
+        byte[] ciphertext = cipher.encrypt(FIELD, PLAINTEXT, key, iv);
+
+        // same key, IV and field, but the metadata of another record
+        FieldCipher otherRecord = FieldCipher.create();
+        assertNotEquals(cipher.getRecordId(), otherRecord.getRecordId());
+        assertRejected(FieldCipher.of(metadata(otherRecord)), FIELD, ciphertext, iv);
+    }
+
+    @Test
+    public void rejectsAlteredCiphertext() throws Exception {
+        FieldCipher cipher = FieldCipher.create();
+        byte[] iv = cipher.nextIv();
+        byte[] ciphertext = cipher.encrypt(FIELD, PLAINTEXT, key, iv);
+        ciphertext[0] ^= 1;
+
+        assertRejected(cipher, FIELD, ciphertext, iv);
+    }
+
+    private static JsonObject metadata(FieldCipher cipher) {
+        JsonObject metadata = new JsonObject();
+        cipher.writeTo(metadata);
+        return metadata;
+    }
+
+    private static byte[] decode(JsonObject segment, String member) {
+        return Base64.getDecoder().decode(segment.get(member).getAsString());
+    }
+
+    private void assertRejected(FieldCipher cipher, String field, byte[] ciphertext, byte[] iv) {
+        try {
+            cipher.decrypt(field, ciphertext, key, iv);
+            fail("Decrypted a ciphertext that failed authentication");
+        } catch (Exception e) {
+            assertEquals("Field failed authentication: " + field, e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package pt.tecnico.a01.cryptography;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.security.Key;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import main.java.pt.tecnico.a01.cryptography.CryptoLibrary;
+import main.java.pt.tecnico.a01.cryptography.RecordEnvelope;
+
+public class RecordEnvelopeTest {
+
+    private static final String KEYS_DIR = "../keys/";
+    private static final String RECORD_FILE = "records/Bob.json";
+
+    private static final byte[] HEADER = {'M', 'T', 'R', 'E', 1};
+    private static final int SECTION_END = 0;
+    private static final int SECTION_RECORD = 1;
+    private static final int TAG_ARRAY = 6;
+    private static final int TAG_OBJECT = 7;
+
+    @Test
+    public void decodesProtectedRecordAsEncoded() throws Exception {
+        Key serverPrivate = CryptoLibrary.readPrivateKey(KEYS_DIR + "server.privkey");
+        Key userPublic = CryptoLibrary.readPublicKey(KEYS_DIR + "user.pubkey");
+        Key sosPublic = CryptoLibrary.readPublicKey(KEYS_DIR + "sospub.key");
+        JsonObject protectedRecord = CryptoLibrary.protect(CryptoLibrary.readFileToJsonObject(RECORD_FILE),
+            serverPrivate, userPublic, sosPublic);
+        protectedRecord.addProperty("name", "Bob");
+
+        assertRoundTrip(protectedRecord);
+    }
+
+    @Test
+    public void decodesEveryKindOfValueInOrder() throws Exception {
+        // record and header members keep any order; metadata members are in the order protect writes them
+        assertRoundTrip(JsonParser.parseString("{\"record\": {\"b\": \"AAEC\", \"a\": \"not base64\", \"n\": 12.5,"
+            + " \"t\": true, \"f\": false, \"z\": null, \"list\": [1, \"AA==\", [], {}]},"
+            + " \"metadata\": {\"iv\": {\"a\": \"BAUG\"}, \"version\": 2, \"id\": \"x\", \"hash\": \"AQID\"},"
+            + " \"name\": \"Alice\"}").getAsJsonObject());
+    }
+
+    @Test
+    public void rejectsTruncatedEnvelopes() throws Exception {
+        byte[] envelope = RecordEnvelope.encode(JsonParser.parseString("{\"record\": {\"name\": \"AAEC\","
+            + " \"list\": [1, 2]}, \"metadata\": {\"iv\": {\"name\": \"BAUG\"}}, \"name\": \"Alice\"}")
+            .getAsJsonObject());
+        for (int length = 0; length < envelope.length; length++) {
+            assertRejected(Arrays.copyOf(envelope, length));
+        }
+    }
+
+    @Test
+    public void rejectsOversizedLengths() throws Exception {
+        // a section claiming 2 GiB
+        assertRejected(envelope(section(Integer.MAX_VALUE)));
+        assertRejected(envelope(section(-1)));
+        // a string, an array and an object claiming more bytes or elements than the section holds
+        assertRejected(envelope(section(5), new byte[] {2}, intBytes(Integer.MAX_VALUE)));
+        assertRejected(envelope(section(5), new byte[] {TAG_ARRAY}, intBytes(Integer.MAX_VALUE)));
+        assertRejected(envelope(section(5), new byte[] {TAG_ARRAY}, intBytes(-1)));
+        assertRejected(envelope(section(5), new byte[] {TAG_OBJECT}, intBytes(1 << 30)));
+    }
+
+    @Test
+    public void rejectsDeeplyNestedValues() throws Exception {
+        int depth = 100000;
+        ByteArrayOutputStream nested = new ByteArrayOutputStream();
+        for (int i = 0; i < depth; i++) {
+            nested.write(TAG_ARRAY);
+            nested.write(intBytes(1));
+        }
+        nested.write(0);
+        assertRejected(envelope(section(nested.size()), nested.toByteArray()));
+    }
+
+    private static void assertRoundTrip(JsonObject protectedRecord) throws Exception {
+        JsonObject decoded = RecordEnvelope.decode(RecordEnvelope.encode(protectedRecord));
+        assertEquals(protectedRecord, decoded);
+        // same member order, so the serialized record (and any digest over it) is the same
+        assertEquals(protectedRecord.toString(), decoded.toString());
+    }
+
+    private static void assertRejected(byte[] envelope) {
+        try {
+            RecordEnvelope.decode(envelope);
+            fail("Decoded a malformed envelope: " + Arrays.toString(envelope));
+        } catch (Exception e) {
+            // expected, and not an Error such as OutOfMemoryError or StackOverflowError
+        }
+    }
+
+    private static byte[] section(int length) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        bytes.write(SECTION_RECORD);
+        bytes.write(intBytes(length));
+        return bytes.toByteArray();
+    }
+
+    private static byte[] envelope(byte[]... parts) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        bytes.write(HEADER);
+        for (byte[] part : parts) {
+            bytes.write(part);
+        }
+        bytes.write(SECTION_END);
+        return bytes.toByteArray();
+    }
+
+    private static byte[] intBytes(int value) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new DataOutputStream(bytes).writeInt(value);
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,104 @@
+package pt.tecnico.a01.cryptography;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.security.Key;
+
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.gson.JsonObject;
+
+import main.java.pt.tecnico.a01.cryptography.CryptoLibrary;
+import main.java.pt.tecnico.a01.cryptography.StreamingRecordCodec;
+
+/**
+ * The streaming and in-memory paths must read each other's output: same plaintext serialization, escaping and
+ * digest.
+ */
+public class StreamingRecordCodecTest {
+
+    private static final String KEYS_DIR = "../keys/";
+    private static final String RECORD_FILE = "records/Bob.json";
+
+    private static Key serverPrivate;
+    private static Key serverPublic;
+    private static Key userPrivate;
+    private static Key userPublic;
+    private static Key sosPublic;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void readKeys() throws Exception {
+        serverPrivate = CryptoLibrary.readPrivateKey(KEYS_DIR + "server.privkey");
+        serverPublic = CryptoLibrary.readPublicKey(KEYS_DIR + "server.pubkey");
+        userPrivate = CryptoLibrary.readPrivateKey(KEYS_DIR + "user.privkey");
+        userPublic = CryptoLibrary.readPublicKey(KEYS_DIR + "user.pubkey");
+        sosPublic = CryptoLibrary.readPublicKey(KEYS_DIR + "sospub.key");
+    }
+
+    @Test
+    public void streamingProtectPassesInMemoryCheckAndUnprotect() throws Exception {
+        JsonObject patient = patient();
+        File input = write(patient);
+        File output = folder.newFile();
+
+        StreamingRecordCodec.protect(input.getPath(), output.getPath(), serverPrivate, userPublic, sosPublic);
+
+        JsonObject protectedRecord = CryptoLibrary.readFileToJsonObject(output.getPath());
+        assertTrue(CryptoLibrary.check(protectedRecord, serverPublic));
+        assertEquals(patient, CryptoLibrary.unprotect(protectedRecord, userPrivate));
+    }
+
+    @Test
+    public void inMemoryProtectPassesStreamingUnprotect() throws Exception {
+        JsonObject patient = patient();
+        File input = folder.newFile();
+        File output = folder.newFile();
+        CryptoLibrary.writeJsonObjectToFile(CryptoLibrary.protect(patient.deepCopy(), serverPrivate, userPublic,
+            sosPublic), input.getPath());
+
+        StreamingRecordCodec.unprotect(input.getPath(), output.getPath(), userPrivate);
+
+        assertEquals(patient, CryptoLibrary.readFileToJsonObject(output.getPath()));
+    }
+
+    @Test
+    public void streamingProtectPassesStreamingUnprotect() throws Exception {
+        JsonObject patient = patient();
+        File input = write(patient);
+        File protectedFile = folder.newFile();
+        File output = folder.newFile();
+
+        StreamingRecordCodec.protect(input.getPath(), protectedFile.getPath(), serverPrivate, userPublic, sosPublic);
+        StreamingRecordCodec.unprotect(protectedFile.getPath(), output.getPath(), userPrivate);
+
+        assertEquals(patient, CryptoLibrary.readFileToJsonObject(output.getPath()));
+    }
+
+    /**
+     * Bob's record, with characters Gson writes as Unicode escapes (=, <, >, &, ') and JSON escapes in a
+     * plain field, an array field and a consultation record.
+     */
+    private static JsonObject patient() throws Exception {
+        JsonObject record = CryptoLibrary.readFileToJsonObject(RECORD_FILE);
+        JsonObject patient = record.getAsJsonObject("patient");
+        patient.addProperty("bloodType", "A+ <b>=</b> & 'rare'");
+        patient.getAsJsonArray("knownAllergies").add("Sulfa = \"severe\"\n");
+        patient.getAsJsonArray("consultationRecords").get(0).getAsJsonObject()
+            .addProperty("treatmentSummary", "Cast applied; dose = 2 x 5mg <daily> & \\ \"rest\"");
+        return record;
+    }
+
+    private File write(JsonObject record) throws Exception {
+        File file = folder.newFile();
+        CryptoLibrary.writeJsonObjectToFile(record, file.getPath());
+        return file;
+    }
+}